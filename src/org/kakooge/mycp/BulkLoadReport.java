@@ -0,0 +1,61 @@
+package org.kakooge.mycp;
+
+/**
+ * What a bulk load did, see {@link BulkLoader}
+ * @author Michael Sekamanya
+ *
+ */
+public class BulkLoadReport{
+	private final long rows;
+	private final long batches;
+	private final long retries;
+	private final long elapsedNanos;
+
+	BulkLoadReport(final long rows, final long batches, final long retries, final long elapsedNanos){
+		this.rows = rows;
+		this.batches = batches;
+		this.retries = retries;
+		this.elapsedNanos = elapsedNanos;
+	}
+
+	/**
+	 * @return the number of rows committed
+	 */
+	public long getRows() {
+		return rows;
+	}
+
+	/**
+	 * @return the number of batches run, not counting the runs again after a failure
+	 */
+	public long getBatches() {
+		return batches;
+	}
+
+	/**
+	 * @return the number of times uncommitted batches were run again after a transient failure
+	 */
+	public long getRetries() {
+		return retries;
+	}
+
+	/**
+	 * @return the time the load took in nanoseconds
+	 */
+	public long getElapsedNanos() {
+		return elapsedNanos;
+	}
+
+	/**
+	 * @return the rows committed per second
+	 */
+	public double getRowsPerSecond() {
+		return elapsedNanos == 0 ? 0 : rows * 1e9 / elapsedNanos;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%d rows in %d batches, %d retries, %.1f s, %.0f rows/s", rows, batches, retries,
+				elapsedNanos / 1e9, getRowsPerSecond());
+	}
+}
@@ -0,0 +1,349 @@
+package org.kakooge.mycp;
+
+import java.sql.BatchUpdateException;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.sql.SQLTransientException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Loads rows with {@link PreparedStatement#executeBatch()} on several connections of a pool at once.
+ * <p>
+ * The calling thread reads the rows and packs them into batches, which up to {@code parallelism} workers on the
+ * {@link Executor} run, each on its own connection with auto commit off. At most two batches per worker wait to be
+ * run, the reading blocks while they are full so the rows in memory stay bounded whatever the size of the load. Like
+ * the parallel queries, see {@link ParallelQuery}, a worker takes a permit of the pool's parallel leases before
+ * leasing so that loads and parallel queries together never hold more than
+ * {@link Configuration#getParallelConnections()} connections.
+ * </p>
+ * <p>
+ * The batches start at {@link Configuration#getBulkBatchSize()} rows. A batch run in less than half of
+ * {@link Configuration#getBulkBatchTime()} doubles the size of the next ones, up to
+ * {@link Configuration#getBulkBatchMax()}, a batch run in more than that time or failing halves it: the batches grow
+ * until the round trips no longer count, and no further, so that the locks they take are held briefly and a retry
+ * costs little. A worker commits once it has {@link Configuration#getBulkCommitRows()} rows uncommitted, after every
+ * batch by default, and at the end.
+ * </p>
+ * <p>
+ * After a transient failure, a deadlock, a serialization failure, a timeout or the loss of the connection, the worker
+ * rolls back, on a fresh connection if it was lost, and runs its uncommitted batches again, up to
+ * {@link Configuration#getBulkRetries()} times. Any other failure stops the load: the workers roll back what they have
+ * not committed and the failure is thrown. The rows committed before stay loaded
+ * </p>
+ * @param <T> the items loaded
+ * @author Michael Sekamanya
+ *
+ */
+class BulkLoader<T>{
+
+	final static int MIN_BATCH_SIZE = 10;
+
+	final private static Logger logger = Logger.getLogger(BulkLoader.class.getName());
+
+	/**
+	 * Tells a worker that there are no more batches
+	 */
+	private final List<T> end = Collections.emptyList();
+
+	private final PoolManager poolManager;
+	private final Semaphore permits;
+	private final String sql;
+	private final RowBinder<T> binder;
+
+	private final int maxBatchSize;
+	private final long batchTime;
+	private final int commitRows;
+	private final int retries;
+
+	/**
+	 * Adapted by the workers, read by the thread packing the batches
+	 */
+	private volatile int batchSize;
+
+	private final AtomicLong rows = new AtomicLong();
+	private final AtomicLong batches = new AtomicLong();
+	private final AtomicLong retried = new AtomicLong();
+	private final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+
+	BulkLoader(final PoolManager poolManager, final Semaphore permits, final String sql, final RowBinder<T> binder){
+		final Configuration configuration = poolManager.getConfiguration();
+		this.poolManager = poolManager;
+		this.permits = permits;
+		this.sql = sql;
+		this.binder = binder;
+		maxBatchSize = Math.max(MIN_BATCH_SIZE, configuration.getBulkBatchMax());
+		batchSize = Math.max(MIN_BATCH_SIZE, Math.min(maxBatchSize, configuration.getBulkBatchSize()));
+		batchTime = TimeUnit.MILLISECONDS.toNanos(configuration.getBulkBatchTime());
+		commitRows = configuration.getBulkCommitRows();
+		retries = configuration.getBulkRetries();
+	}
+
+	/**
+	 * Loads all the rows of {@code source} and waits for them to be committed
+	 */
+	BulkLoadReport run(final Executor executor, final int parallelism, final Iterator<T> source) throws SQLException, InterruptedException{
+		if(parallelism < 1)
+			throw new IllegalArgumentException("The parallelism must be positive, got " + parallelism);
+		final long start = System.nanoTime();
+		final BlockingQueue<List<T>> queue = new ArrayBlockingQueue<List<T>>(2 * parallelism);
+		final CountDownLatch finished = new CountDownLatch(parallelism);
+		int started = 0;
+		for(; started < parallelism; ++started){
+			try{
+				executor.execute(new Worker(queue, finished));
+			}catch(RejectedExecutionException e){
+				if(started == 0)
+					failure.compareAndSet(null, e);
+				break;
+			}
+		}
+		//- The workers not started will not count down
+		for(int idx = started; idx < parallelism; ++idx)
+			finished.countDown();
+
+		try{
+			try{
+				while(failure.get() == null && source.hasNext()){
+					final int size = batchSize;
+					final List<T> batch = new ArrayList<T>(size);
+					while(batch.size() < size && source.hasNext())
+						batch.add(source.next());
+					put(queue, batch);
+				}
+			}catch(RuntimeException e){
+				failure.compareAndSet(null, e);
+			}
+			for(int idx = 0; idx < started; ++idx)
+				put(queue, end);
+			finished.await();
+		}catch(InterruptedException e){
+			failure.compareAndSet(null, e);
+			throw e;
+		}
+
+		final Throwable e = failure.get();
+		if(e instanceof SQLException)
+			throw (SQLException)e;
+		if(e instanceof RuntimeException)
+			throw (RuntimeException)e;
+		if(e instanceof Error)
+			throw (Error)e;
+		if(e != null)
+			throw new SQLException("The bulk load failed", e);
+		final BulkLoadReport report = new BulkLoadReport(rows.get(), batches.get(), retried.get(), System.nanoTime() - start);
+		logger.fine(String.format("Pool %s: loaded %s", poolManager.getConfiguration().getPoolName(), report));
+		return report;
+	}
+
+	/**
+	 * Waits for room in the queue, unless the workers have given up
+	 */
+	private void put(final BlockingQueue<List<T>> queue, final List<T> batch) throws InterruptedException{
+		while(!queue.offer(batch, 100, TimeUnit.MILLISECONDS)){
+			if(failure.get() != null)
+				return;
+		}
+	}
+
+	/**
+	 * @return {@code true} if running the batches again may succeed
+	 */
+	private boolean isTransient(final SQLException e){
+		for(SQLException cause = e; cause != null; cause = cause.getNextException()){
+			if(cause instanceof SQLTransientException)
+				return true;
+			final String sqlState = cause.getSQLState();
+			//- Class 40: transaction rollback, deadlocks and serialization failures
+			if(sqlState != null && sqlState.startsWith("40"))
+				return true;
+			if(poolManager.isFatal(cause))
+				return true;
+			if(cause.getNextException() == cause)
+				break;
+		}
+		return false;
+	}
+
+	private final class Worker implements Runnable{
+		private final BlockingQueue<List<T>> queue;
+		private final CountDownLatch finished;
+
+		private MyCPConnection connection;
+		private PreparedStatement statement;
+
+		/**
+		 * Run but not committed, run again after a failure
+		 */
+		private final List<List<T>> uncommitted = new ArrayList<List<T>>();
+		private int uncommittedRows = 0;
+
+		Worker(final BlockingQueue<List<T>> queue, final CountDownLatch finished){
+			this.queue = queue;
+			this.finished = finished;
+		}
+
+		@Override
+		public void run() {
+			try{
+				permits.acquire();
+				try{
+					load();
+				}finally{
+					release();
+					permits.release();
+				}
+			}catch(Throwable e){
+				failure.compareAndSet(null, e);
+			}finally{
+				finished.countDown();
+			}
+		}
+
+		private void load() throws SQLException, InterruptedException{
+			open();
+			for(;;){
+				final List<T> batch = queue.poll(100, TimeUnit.MILLISECONDS);
+				if(failure.get() != null)
+					return;
+				if(batch == null)
+					continue;
+				if(batch == end){
+					if(!uncommitted.isEmpty())
+						runWithRetries(Collections.<List<T>>emptyList(), true);
+					return;
+				}
+				uncommitted.add(batch);
+				uncommittedRows += batch.size();
+				batches.incrementAndGet();
+				runWithRetries(Collections.singletonList(batch), uncommittedRows >= commitRows);
+			}
+		}
+
+		/**
+		 * Runs {@code batch}, and commits if asked, running all the uncommitted batches again after a transient failure
+		 */
+		private void runWithRetries(final List<List<T>> batch, final boolean commit) throws SQLException{
+			List<List<T>> toRun = batch;
+			for(int attempt = 0;; ++attempt){
+				try{
+					for(final List<T> run : toRun)
+						execute(run);
+					if(commit){
+						connection.commit();
+						rows.addAndGet(uncommittedRows);
+						uncommitted.clear();
+						uncommittedRows = 0;
+					}
+					return;
+				}catch(SQLException e){
+					if(attempt >= retries || !isTransient(e) || failure.get() != null)
+						throw e;
+					retried.incrementAndGet();
+					batchSize = Math.max(MIN_BATCH_SIZE, batchSize / 2);
+					logger.log(Level.FINE, String.format("Running %d uncommitted batches again", uncommitted.size()), e);
+					recover(e);
+					toRun = uncommitted;
+				}
+			}
+		}
+
+		private void execute(final List<T> batch) throws SQLException{
+			final long start = System.nanoTime();
+			for(final T row : batch){
+				binder.bind(statement, row);
+				statement.addBatch();
+			}
+			final int[] counts = statement.executeBatch();
+			for(final int count : counts)
+				if(count == Statement.EXECUTE_FAILED)
+					throw new BatchUpdateException("A row of the batch failed", counts);
+			adapt(batch.size(), System.nanoTime() - start);
+		}
+
+		private void adapt(final int size, final long nanos){
+			if(nanos > batchTime)
+				batchSize = Math.max(MIN_BATCH_SIZE, size / 2);
+			else if(nanos < batchTime / 2 && size >= batchSize)
+				batchSize = Math.min(maxBatchSize, size * 2);
+		}
+
+		/**
+		 * Rolls back, or takes a fresh connection if this one was lost
+		 */
+		private void recover(final SQLException e) throws SQLException{
+			if(poolManager.isFatal(e)){
+				if(!connection.isBroken())
+					poolManager.connectionFailed(connection, e);
+			}else{
+				try{
+					statement.clearBatch();
+					connection.rollback();
+					return;
+				}catch(SQLException rollbackFailure){
+					logger.log(Level.FINE, "Could not roll back a batch, retrying on a fresh connection", rollbackFailure);
+					connection.discard();
+					connection = null;
+				}
+			}
+			release();
+			try{
+				open();
+			}catch(InterruptedException interrupted){
+				Thread.currentThread().interrupt();
+				throw new SQLException("Interrupted while retrying a batch", interrupted);
+			}
+		}
+
+		private void open() throws SQLException, InterruptedException{
+			connection = poolManager.takeDetachedConnection();
+			if(connection.getUnderlyingConnection() == null){
+				connection = null;
+				throw new SQLTimeoutException("Timed out waiting for a connection");
+			}
+			connection.setAutoCommit(false);
+			statement = connection.prepareStatement(sql);
+		}
+
+		/**
+		 * Rolls back what is not committed and gives the connection back
+		 */
+		private void release(){
+			final MyCPConnection leased = connection;
+			if(leased == null)
+				return;
+			connection = null;
+			try{
+				statement.close();
+				if(!leased.isBroken()){
+					leased.rollback();
+					leased.setAutoCommit(true);
+				}
+			}catch(SQLException e){
+				logger.log(Level.FINE, "Could not close a bulk load connection cleanly", e);
+			}finally{
+				statement = null;
+				try{
+					leased.close();
+				}catch(SQLException e){
+					logger.log(Level.FINE, "Could not return a bulk load connection", e);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,631 @@
+package org.kakooge.mycp;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+
+/**
+ * The pool configuration read from the {@code mycp.*} properties. Anything not specified falls back to a default.
+ * The JDBC driver and url are required unless the configuration is for a non JDBC {@link Pool}
+ */
+public class Configuration{
+
+	final public static String MYCP_MAX_CONNECTIONS = "mycp.max.connections";
+	final public static String MYCP_MIN_CONNECTIONS = "mycp.min.connections";
+	final public static String MYCP_KEEP_ALIVE_SQL = "mycp.keep.alive.sql";
+	final public static String MYCP_DRIVER = "mycp.driver";
+	final public static String MYCP_DRIVER_URL = "mycp.driver.url";
+	final public static String MYCP_MAX_WAIT = "mycp.max.wait";
+	final public static String MYCP_QUERY_STATS = "mycp.query.stats";
+	final public static String MYCP_QUERY_STATS_MAX_ENTRIES = "mycp.query.stats.max.entries";
+	final public static String MYCP_QUERY_STATS_TOP = "mycp.query.stats.top";
+	final public static String MYCP_QUERY_STATS_INTERVAL = "mycp.query.stats.interval";
+	final public static String MYCP_SLOW_QUERY_THRESHOLD = "mycp.slow.query.threshold";
+	final public static String MYCP_SHUTDOWN_TIMEOUT = "mycp.shutdown.timeout";
+	final public static String MYCP_SHUTDOWN_CLOSE_TIMEOUT = "mycp.shutdown.close.timeout";
+	final public static String MYCP_SHUTDOWN_CLOSE_THREADS = "mycp.shutdown.close.threads";
+	final public static String MYCP_POOL_NAME = "mycp.pool.name";
+	final public static String MYCP_REENTRANT_LEASES = "mycp.reentrant.leases";
+	final public static String MYCP_SNAPSHOT_FILE = "mycp.snapshot.file";
+	final public static String MYCP_SNAPSHOT_INTERVAL = "mycp.snapshot.interval";
+	final public static String MYCP_BINDING = "mycp.binding";
+	final public static String MYCP_QUERY_TIMEOUT = "mycp.query.timeout";
+	final public static String MYCP_MAX_HOLD_TIME = "mycp.max.hold.time";
+	final public static String MYCP_TIMER_TICK = "mycp.timer.tick";
+	final public static String MYCP_CLOSE_QUEUE_SIZE = "mycp.close.queue.size";
+	final public static String MYCP_CLOSE_THREADS = "mycp.close.threads";
+	final public static String MYCP_CLOSE_TIMEOUT = "mycp.close.timeout";
+	final public static String MYCP_RETRY_READS = "mycp.retry.reads";
+	final public static String MYCP_EMBEDDED = "mycp.embedded";
+	final public static String MYCP_SHARED_MAINTENANCE = "mycp.shared.maintenance";
+	final public static String MYCP_CREDENTIAL_POOLS = "mycp.credential.pools";
+	final public static String MYCP_CREDENTIAL_BUDGET = "mycp.credential.budget";
+	final public static String MYCP_CREATE_RATE = "mycp.create.rate";
+	final public static String MYCP_CREATE_BURST = "mycp.create.burst";
+	final public static String MYCP_FATAL_SQLSTATES = "mycp.fatal.sqlstates";
+	final public static String MYCP_FATAL_ERROR_CODES = "mycp.fatal.error.codes";
+	final public static String MYCP_JOURNAL_FILE = "mycp.journal.file";
+	final public static String MYCP_JOURNAL_SIZE = "mycp.journal.size";
+	final public static String MYCP_JOURNAL_FILES = "mycp.journal.files";
+	final public static String MYCP_STREAM_FETCH_SIZE = "mycp.stream.fetch.size";
+	final public static String MYCP_PARALLEL_CONNECTIONS = "mycp.parallel.connections";
+	final public static String MYCP_BULK_BATCH_SIZE = "mycp.bulk.batch.size";
+	final public static String MYCP_BULK_BATCH_MAX = "mycp.bulk.batch.max";
+	final public static String MYCP_BULK_BATCH_TIME = "mycp.bulk.batch.time";
+	final public static String MYCP_BULK_COMMIT_ROWS = "mycp.bulk.commit.rows";
+	final public static String MYCP_BULK_RETRIES = "mycp.bulk.retries";
+	final public static String MYCP_SESSION_INIT_SQL = "mycp.session.init.sql";
+	
+	/**
+	 * Values of {@value #MYCP_BINDING}
+	 */
+	final public static String BINDING_EAGER = "eager";
+	final public static String BINDING_LAZY = "lazy";
+	final public static String BINDING_TRANSACTION = "transaction";
+	
+	final private Properties properties;
+	
+	/**
+	 * Reads a properties file. If the file does not exist it is searched in the class path. For a file on disk
+	 * {@value #MYCP_SNAPSHOT_FILE} defaults to a {@code .stats} file next to it
+	 * @throws FileNotFoundException if the file is neither on disk nor in the class path
+	 */
+	static Properties load(String propertiesFileName) throws IOException{
+		InputStream in = null;
+		final Properties prop = new Properties();
+		
+		try{
+			String snapshotFileName = null;
+			try{
+				in = new FileInputStream(propertiesFileName);
+				snapshotFileName = new File(propertiesFileName).getPath() + ".stats";
+			}catch(FileNotFoundException e){
+				if(!propertiesFileName.startsWith("/"))
+					propertiesFileName = "/" + propertiesFileName;
+				in = Configuration.class.getResourceAsStream(propertiesFileName);
+				if(in == null)
+					throw e;
+			}
+			prop.load(in);
+			if(snapshotFileName != null && !prop.containsKey(MYCP_SNAPSHOT_FILE))
+				prop.setProperty(MYCP_SNAPSHOT_FILE, snapshotFileName);
+			return prop;
+		}finally{
+			if(in!=null) in.close();
+		}
+	}
+	
+	public Configuration(final Properties customProperties) throws MyCPException{
+		this(customProperties, true);
+	}
+	
+	/**
+	 * @param customProperties the {@code mycp.*} properties
+	 * @param jdbc whether {@value #MYCP_DRIVER} and {@value #MYCP_DRIVER_URL} are required, pass {@code false} when
+	 * configuring a {@link Pool} of non JDBC resources
+	 * @throws MyCPException if a property is invalid or a required property is missing
+	 */
+	public Configuration(final Properties customProperties, final boolean jdbc) throws MyCPException{
+		properties = initDefaultProperties();
+		initCustomProperties(customProperties, jdbc);
+	}
+		
+	private void initCustomProperties(final Properties customProperties, final boolean jdbc) throws MyCPException{
+		try{
+			int minConnections = 0, maxConnections = 0;
+			if(!StringUtil.Empty(customProperties.getProperty(MYCP_MAX_CONNECTIONS))){
+				maxConnections = new Integer(customProperties.getProperty(MYCP_MAX_CONNECTIONS));
+				this.properties.put(MYCP_MAX_CONNECTIONS, new Integer(maxConnections));
+			}
+			
+			if(!StringUtil.Empty(customProperties.getProperty(MYCP_MIN_CONNECTIONS))){
+				minConnections = new Integer(customProperties.getProperty(MYCP_MIN_CONNECTIONS));
+				this.properties.put(MYCP_MIN_CONNECTIONS, new Integer(minConnections));
+			}
+			
+			if(minConnections<0 || maxConnections<0 || minConnections > maxConnections)
+				throw new MyCPException("MyCP Config failure, minConnections is greater than maxConnections");
+			
+			if(!StringUtil.Empty(customProperties.getProperty(MYCP_MAX_WAIT)))
+				properties.put(MYCP_MAX_WAIT, Long.parseLong(customProperties.getProperty(MYCP_MAX_WAIT)));
+			
+		}catch(NumberFormatException e){
+			throw new MyCPException(String.format("MyCP Config failure, check that '%s', '%s', " +
+					"'%s' are valid numbers", MYCP_MAX_CONNECTIONS, MYCP_MIN_CONNECTIONS, MYCP_MAX_WAIT), e);
+		}
+		
+		putBoolean(customProperties, MYCP_QUERY_STATS);
+		putInteger(customProperties, MYCP_QUERY_STATS_MAX_ENTRIES);
+		putInteger(customProperties, MYCP_QUERY_STATS_TOP);
+		putLong(customProperties, MYCP_QUERY_STATS_INTERVAL);
+		putLong(customProperties, MYCP_SLOW_QUERY_THRESHOLD);
+		putLong(customProperties, MYCP_SHUTDOWN_TIMEOUT);
+		putLong(customProperties, MYCP_SHUTDOWN_CLOSE_TIMEOUT);
+		putInteger(customProperties, MYCP_SHUTDOWN_CLOSE_THREADS);
+		putBoolean(customProperties, MYCP_REENTRANT_LEASES);
+		putLong(customProperties, MYCP_SNAPSHOT_INTERVAL);
+		putLong(customProperties, MYCP_QUERY_TIMEOUT);
+		putLong(customProperties, MYCP_MAX_HOLD_TIME);
+		putLong(customProperties, MYCP_TIMER_TICK);
+		putInteger(customProperties, MYCP_CLOSE_QUEUE_SIZE);
+		putInteger(customProperties, MYCP_CLOSE_THREADS);
+		putLong(customProperties, MYCP_CLOSE_TIMEOUT);
+		putBoolean(customProperties, MYCP_RETRY_READS);
+		putBoolean(customProperties, MYCP_EMBEDDED);
+		putBoolean(customProperties, MYCP_SHARED_MAINTENANCE);
+		putInteger(customProperties, MYCP_CREDENTIAL_POOLS);
+		putInteger(customProperties, MYCP_CREDENTIAL_BUDGET);
+		putInteger(customProperties, MYCP_CREATE_RATE);
+		putInteger(customProperties, MYCP_CREATE_BURST);
+		putLong(customProperties, MYCP_JOURNAL_SIZE);
+		putInteger(customProperties, MYCP_JOURNAL_FILES);
+		putInteger(customProperties, MYCP_STREAM_FETCH_SIZE);
+		putInteger(customProperties, MYCP_PARALLEL_CONNECTIONS);
+		putInteger(customProperties, MYCP_BULK_BATCH_SIZE);
+		putInteger(customProperties, MYCP_BULK_BATCH_MAX);
+		putInteger(customProperties, MYCP_BULK_BATCH_TIME);
+		putInteger(customProperties, MYCP_BULK_COMMIT_ROWS);
+		putInteger(customProperties, MYCP_BULK_RETRIES);
+		
+		final String binding = customProperties.getProperty(MYCP_BINDING);
+		if(!StringUtil.Empty(binding)){
+			final String value = binding.trim().toLowerCase();
+			if(!value.equals(BINDING_EAGER) && !value.equals(BINDING_LAZY) && !value.equals(BINDING_TRANSACTION))
+				throw new MyCPException(String.format("MyCP Config failure, '%s' must be one of %s, %s, %s", MYCP_BINDING,
+						BINDING_EAGER, BINDING_LAZY, BINDING_TRANSACTION));
+			properties.put(MYCP_BINDING, value);
+		}
+		
+		final String snapshotFile = customProperties.getProperty(MYCP_SNAPSHOT_FILE);
+		if(snapshotFile != null)
+			properties.put(MYCP_SNAPSHOT_FILE, snapshotFile.trim());
+		
+		final String keepAliveSQL = customProperties.getProperty(MYCP_KEEP_ALIVE_SQL);
+		if(!StringUtil.Empty(keepAliveSQL))
+			properties.put(MYCP_KEEP_ALIVE_SQL, keepAliveSQL);
+		
+		final String sessionInitSql = customProperties.getProperty(MYCP_SESSION_INIT_SQL);
+		if(sessionInitSql != null)
+			properties.put(MYCP_SESSION_INIT_SQL, sessionInitSql.trim());
+		
+		final String fatalSqlStates = customProperties.getProperty(MYCP_FATAL_SQLSTATES);
+		if(fatalSqlStates != null)
+			properties.put(MYCP_FATAL_SQLSTATES, fatalSqlStates.trim());
+		
+		final String fatalErrorCodes = customProperties.getProperty(MYCP_FATAL_ERROR_CODES);
+		if(fatalErrorCodes != null){
+			if(!fatalErrorCodes.trim().matches("(-?\\d+(\\s*,\\s*-?\\d+)*)?"))
+				throw new MyCPException(String.format("MyCP Config failure, '%s' must be a comma separated list of numbers", MYCP_FATAL_ERROR_CODES));
+			properties.put(MYCP_FATAL_ERROR_CODES, fatalErrorCodes.trim());
+		}
+		
+		final String journalFile = customProperties.getProperty(MYCP_JOURNAL_FILE);
+		if(journalFile != null)
+			properties.put(MYCP_JOURNAL_FILE, journalFile.trim());
+		
+		final String poolName = customProperties.getProperty(MYCP_POOL_NAME);
+		if(!StringUtil.Empty(poolName))
+			properties.put(MYCP_POOL_NAME, poolName.trim());
+		
+		if(!jdbc)
+			return;
+		
+		final String mycpDriver = customProperties.getProperty(MYCP_DRIVER);
+		if(StringUtil.Empty(mycpDriver))
+			throw new MyCPException(String.format("MyCP Config failure, specify database driver with '%s'", MYCP_MAX_CONNECTIONS, MYCP_DRIVER));
+		properties.put(MYCP_DRIVER, mycpDriver);
+		
+		final String url = customProperties.getProperty(MYCP_DRIVER_URL);
+		if(StringUtil.Empty(url))
+			throw new MyCPException(String.format("MyCP Config failure, specify database driver url with '%s'", MYCP_DRIVER_URL));
+		properties.put(MYCP_DRIVER_URL, url);
+	}
+	
+	private void putInteger(final Properties customProperties, final String key) throws MyCPException{
+		final String value = customProperties.getProperty(key);
+		if(StringUtil.Empty(value))
+			return;
+		try{
+			properties.put(key, Integer.valueOf(value.trim()));
+		}catch(NumberFormatException e){
+			throw new MyCPException(String.format("MyCP Config failure, check that '%s' is a valid number", key), e);
+		}
+	}
+	
+	private void putLong(final Properties customProperties, final String key) throws MyCPException{
+		final String value = customProperties.getProperty(key);
+		if(StringUtil.Empty(value))
+			return;
+		try{
+			properties.put(key, Long.valueOf(value.trim()));
+		}catch(NumberFormatException e){
+			throw new MyCPException(String.format("MyCP Config failure, check that '%s' is a valid number", key), e);
+		}
+	}
+	
+	private void putBoolean(final Properties customProperties, final String key){
+		final String value = customProperties.getProperty(key);
+		if(!StringUtil.Empty(value))
+			properties.put(key, Boolean.valueOf(value.trim()));
+	}
+	
+	private Properties initDefaultProperties(){
+		final Properties defaultProperties = new Properties();
+		defaultProperties.put(MYCP_DRIVER_URL, "");
+		defaultProperties.put(MYCP_KEEP_ALIVE_SQL, "");
+		defaultProperties.put(MYCP_MAX_CONNECTIONS, new Integer(Integer.MAX_VALUE));
+		defaultProperties.put(MYCP_MIN_CONNECTIONS, new Integer(10));
+		defaultProperties.put(MYCP_KEEP_ALIVE_SQL, "");
+		defaultProperties.put(MYCP_DRIVER, "");
+		defaultProperties.put(MYCP_DRIVER_URL, "");
+		defaultProperties.put(MYCP_MAX_WAIT, new Long(Long.MAX_VALUE));
+		defaultProperties.put(MYCP_QUERY_STATS, Boolean.FALSE);
+		defaultProperties.put(MYCP_QUERY_STATS_MAX_ENTRIES, new Integer(1000));
+		defaultProperties.put(MYCP_QUERY_STATS_TOP, new Integer(20));
+		defaultProperties.put(MYCP_QUERY_STATS_INTERVAL, new Long(300));
+		defaultProperties.put(MYCP_SLOW_QUERY_THRESHOLD, new Long(1000));
+		defaultProperties.put(MYCP_SHUTDOWN_TIMEOUT, new Long(30000));
+		defaultProperties.put(MYCP_SHUTDOWN_CLOSE_TIMEOUT, new Long(5000));
+		defaultProperties.put(MYCP_SHUTDOWN_CLOSE_THREADS, new Integer(8));
+		defaultProperties.put(MYCP_POOL_NAME, "mycp");
+		defaultProperties.put(MYCP_REENTRANT_LEASES, Boolean.FALSE);
+		defaultProperties.put(MYCP_SNAPSHOT_FILE, "");
+		defaultProperties.put(MYCP_SNAPSHOT_INTERVAL, new Long(600));
+		defaultProperties.put(MYCP_BINDING, BINDING_EAGER);
+		defaultProperties.put(MYCP_QUERY_TIMEOUT, new Long(0));
+		defaultProperties.put(MYCP_MAX_HOLD_TIME, new Long(0));
+		defaultProperties.put(MYCP_TIMER_TICK, new Long(100));
+		defaultProperties.put(MYCP_CLOSE_QUEUE_SIZE, new Integer(256));
+		defaultProperties.put(MYCP_CLOSE_THREADS, new Integer(2));
+		defaultProperties.put(MYCP_CLOSE_TIMEOUT, new Long(5000));
+		defaultProperties.put(MYCP_RETRY_READS, Boolean.FALSE);
+		defaultProperties.put(MYCP_EMBEDDED, Boolean.FALSE);
+		defaultProperties.put(MYCP_SHARED_MAINTENANCE, Boolean.FALSE);
+		defaultProperties.put(MYCP_CREDENTIAL_POOLS, new Integer(16));
+		defaultProperties.put(MYCP_CREDENTIAL_BUDGET, new Integer(0));
+		defaultProperties.put(MYCP_CREATE_RATE, new Integer(0));
+		defaultProperties.put(MYCP_CREATE_BURST, new Integer(5));
+		defaultProperties.put(MYCP_FATAL_SQLSTATES, "");
+		defaultProperties.put(MYCP_JOURNAL_FILE, "");
+		defaultProperties.put(MYCP_JOURNAL_SIZE, new Long(64L * 1024 * 1024));
+		defaultProperties.put(MYCP_JOURNAL_FILES, new Integer(4));
+		defaultProperties.put(MYCP_STREAM_FETCH_SIZE, new Integer(500));
+		defaultProperties.put(MYCP_PARALLEL_CONNECTIONS, new Integer(0));
+		defaultProperties.put(MYCP_BULK_BATCH_SIZE, new Integer(1000));
+		defaultProperties.put(MYCP_BULK_BATCH_MAX, new Integer(10000));
+		defaultProperties.put(MYCP_BULK_BATCH_TIME, new Integer(500));
+		defaultProperties.put(MYCP_BULK_COMMIT_ROWS, new Integer(0));
+		defaultProperties.put(MYCP_BULK_RETRIES, new Integer(3));
+		defaultProperties.put(MYCP_SESSION_INIT_SQL, "");
+		//- MySQL: server shutting down (1053, 1077-1080), cannot connect (2002, 2003), server gone or connection lost (2006, 2013, 2055)
+		defaultProperties.put(MYCP_FATAL_ERROR_CODES, "1053,1077,1078,1079,1080,2002,2003,2006,2013,2055");
+		
+		return defaultProperties;
+	}
+	
+	public long getMaxWaitForConnection() {
+		return (Long)properties.get(MYCP_MAX_WAIT);
+	}
+
+	public String getUrl() {
+		return properties.get(MYCP_DRIVER_URL).toString();
+	}
+
+	public String getDriver() {
+		return properties.get(MYCP_DRIVER).toString();
+	}
+
+	public int getMaxConnections() {
+		return (Integer)properties.get(MYCP_MAX_CONNECTIONS);
+	}
+
+	/**
+	 * 
+	 * @return
+	 */
+	public int getMinConnections() {
+		return (Integer)properties.get(MYCP_MIN_CONNECTIONS);
+	}
+
+	/**
+	 * Keep alive SQL specific to the connecting database such as {@code select 1} for a MySQL database
+	 * @return the SQL statement or and empty string if none was specified
+	 */
+	public String getKeepAliveSQL() {
+		return properties.get(MYCP_KEEP_ALIVE_SQL).toString();
+	}
+	
+	/**
+	 * Whether statements executed through the pool are fingerprinted and timed, see {@link QueryStatistics}
+	 * @return {@code false} unless {@value #MYCP_QUERY_STATS} is set to {@code true}
+	 */
+	public boolean isQueryStats() {
+		return (Boolean)properties.get(MYCP_QUERY_STATS);
+	}
+	
+	/**
+	 * @return the maximum number of statement fingerprints kept, the least executed are evicted beyond that
+	 */
+	public int getQueryStatsMaxEntries() {
+		return (Integer)properties.get(MYCP_QUERY_STATS_MAX_ENTRIES);
+	}
+	
+	/**
+	 * @return the number of statements in the periodic report
+	 */
+	public int getQueryStatsTop() {
+		return (Integer)properties.get(MYCP_QUERY_STATS_TOP);
+	}
+	
+	/**
+	 * @return the interval in seconds between two statement reports
+	 */
+	public long getQueryStatsInterval() {
+		return (Long)properties.get(MYCP_QUERY_STATS_INTERVAL);
+	}
+	
+	/**
+	 * @return the execution time in milliseconds above which a statement is written to the slow query log, 0 disables the log
+	 */
+	public long getSlowQueryThreshold() {
+		return (Long)properties.get(MYCP_SLOW_QUERY_THRESHOLD);
+	}
+	
+	/**
+	 * @return how long in milliseconds {@link PoolManager#destroy()} waits for leased connections to be returned
+	 */
+	public long getShutdownTimeout() {
+		return (Long)properties.get(MYCP_SHUTDOWN_TIMEOUT);
+	}
+	
+	/**
+	 * @return how long in milliseconds {@link PoolManager#destroy()} allows for closing one connection
+	 */
+	public long getShutdownCloseTimeout() {
+		return (Long)properties.get(MYCP_SHUTDOWN_CLOSE_TIMEOUT);
+	}
+	
+	/**
+	 * @return the number of threads {@link PoolManager#destroy()} closes connections on
+	 */
+	public int getShutdownCloseThreads() {
+		return (Integer)properties.get(MYCP_SHUTDOWN_CLOSE_THREADS);
+	}
+	
+	/**
+	 * @return the name used for the pool's threads and log messages
+	 */
+	public String getPoolName() {
+		return properties.get(MYCP_POOL_NAME).toString();
+	}
+	
+	/**
+	 * @return whether a thread asking for a connection while it already holds one gets the connection it holds again,
+	 * see {@link PoolManager#takeConnection()}
+	 */
+	public boolean isReentrantLeases() {
+		return (Boolean)properties.get(MYCP_REENTRANT_LEASES);
+	}
+	
+	/**
+	 * @return the file the pool statistics are saved to for warm starts, see {@link PoolSnapshot}. Empty if disabled
+	 */
+	public String getSnapshotFile() {
+		return properties.get(MYCP_SNAPSHOT_FILE).toString();
+	}
+	
+	/**
+	 * @return seconds between two periodic saves of the pool statistics
+	 */
+	public long getSnapshotInterval() {
+		return (Long)properties.get(MYCP_SNAPSHOT_INTERVAL);
+	}
+	
+	/**
+	 * @return when a lease holds a physical connection: {@value #BINDING_EAGER} from the time the connection is handed
+	 * out, {@value #BINDING_LAZY} from the first call that needs the database, {@value #BINDING_TRANSACTION} only while
+	 * statements are open or a transaction is under way, see {@link LogicalConnection}
+	 */
+	public String getBinding() {
+		return properties.get(MYCP_BINDING).toString();
+	}
+	
+	/**
+	 * @return milliseconds a statement may execute before it is cancelled with {@link java.sql.Statement#cancel()},
+	 * 0 for no limit
+	 */
+	public long getQueryTimeout() {
+		return (Long)properties.get(MYCP_QUERY_TIMEOUT);
+	}
+	
+	/**
+	 * @return milliseconds a borrower may hold a connection before the pool reclaims it, 0 for no limit
+	 */
+	public long getMaxHoldTime() {
+		return (Long)properties.get(MYCP_MAX_HOLD_TIME);
+	}
+	
+	/**
+	 * @return the resolution in milliseconds of {@link #getQueryTimeout()} and {@link #getMaxHoldTime()}
+	 */
+	public long getTimerTick() {
+		return (Long)properties.get(MYCP_TIMER_TICK);
+	}
+	
+	/**
+	 * @return the number of connections that can wait to be closed in the background, see {@link ResourceCloser}
+	 */
+	public int getCloseQueueSize() {
+		return (Integer)properties.get(MYCP_CLOSE_QUEUE_SIZE);
+	}
+	
+	/**
+	 * @return the number of threads closing connections in the background
+	 */
+	public int getCloseThreads() {
+		return (Integer)properties.get(MYCP_CLOSE_THREADS);
+	}
+	
+	/**
+	 * @return milliseconds after which a background close is given up on and left to finish on its own
+	 */
+	public long getCloseTimeout() {
+		return (Long)properties.get(MYCP_CLOSE_TIMEOUT);
+	}
+	
+	/**
+	 * @return whether a read, or a statement marked idempotent, that fails in auto commit because its connection died
+	 * is run again once on a fresh connection, see {@link StatementHandler}
+	 */
+	public boolean isRetryReads() {
+		return (Boolean)properties.get(MYCP_RETRY_READS);
+	}
+	
+	/**
+	 * @return whether the pool runs without a maintenance thread, its maintenance being done in small slices by the
+	 * threads taking and returning connections, see {@link Pool}
+	 */
+	public boolean isEmbedded() {
+		return (Boolean)properties.get(MYCP_EMBEDDED);
+	}
+	
+	/**
+	 * @return whether the pool is maintained by the {@link PoolRegistry} shared by the pools of the JVM rather than by
+	 * a thread of its own
+	 */
+	public boolean isSharedMaintenance() {
+		return (Boolean)properties.get(MYCP_SHARED_MAINTENANCE);
+	}
+	
+	/**
+	 * @return the maximum number of pools kept for the different credentials callers connect with, see
+	 * {@link CredentialPools}
+	 */
+	public int getCredentialPools() {
+		return (Integer)properties.get(MYCP_CREDENTIAL_POOLS);
+	}
+	
+	/**
+	 * @return the number of connections shared by the pools of all the credentials, 0 for
+	 * {@link #getMaxConnections()}
+	 */
+	public int getCredentialBudget() {
+		return (Integer)properties.get(MYCP_CREDENTIAL_BUDGET);
+	}
+	
+	/**
+	 * @return the number of connections per second the pool opens once {@link #getCreateBurst()} is used up, 0 for no
+	 * limit, see {@link TokenBucket}
+	 */
+	public int getCreateRate() {
+		return (Integer)properties.get(MYCP_CREATE_RATE);
+	}
+	
+	/**
+	 * @return the number of connections the pool opens at once before {@link #getCreateRate()} applies
+	 */
+	public int getCreateBurst() {
+		return (Integer)properties.get(MYCP_CREATE_BURST);
+	}
+	
+	/**
+	 * @return comma separated SQLStates, or prefixes of, that mean the connection is lost in addition to those
+	 * {@link SqlErrorClassifier} knows of
+	 */
+	public String getFatalSqlStates() {
+		return properties.get(MYCP_FATAL_SQLSTATES).toString();
+	}
+	
+	/**
+	 * @return comma separated vendor error codes that mean the connection is lost, by default those of MySQL. Replace
+	 * them with the driver's own for other databases, e.g. {@code 17002,17008,17410} for Oracle
+	 */
+	public String getFatalErrorCodes() {
+		return properties.get(MYCP_FATAL_ERROR_CODES).toString();
+	}
+	
+	/**
+	 * @return the file the lease events are recorded to, empty for none, see {@link LeaseJournal}. Only the pool of the
+	 * configured credentials records, see {@link CredentialPools}
+	 */
+	public String getJournalFile() {
+		return properties.get(MYCP_JOURNAL_FILE).toString();
+	}
+	
+	/**
+	 * @return the size in bytes of each file of the journal
+	 */
+	public long getJournalSize() {
+		return (Long)properties.get(MYCP_JOURNAL_SIZE);
+	}
+	
+	/**
+	 * @return the number of files the journal rotates through
+	 */
+	public int getJournalFiles() {
+		return (Integer)properties.get(MYCP_JOURNAL_FILES);
+	}
+	
+	/**
+	 * @return the largest fetch size asked of the driver when streaming a query, see {@link RowPublisher}
+	 */
+	public int getStreamFetchSize() {
+		return (Integer)properties.get(MYCP_STREAM_FETCH_SIZE);
+	}
+	
+	/**
+	 * @return the most connections the parallel queries of the pool hold together, the rest is left to the other
+	 * borrowers; 0 for half of {@link #getMaxConnections()}. See {@link ParallelQuery} and {@link BulkLoader}
+	 */
+	public int getParallelConnections() {
+		return (Integer)properties.get(MYCP_PARALLEL_CONNECTIONS);
+	}
+	
+	/**
+	 * @return the number of rows of the first batches of a bulk load, see {@link BulkLoader}
+	 */
+	public int getBulkBatchSize() {
+		return (Integer)properties.get(MYCP_BULK_BATCH_SIZE);
+	}
+	
+	/**
+	 * @return the most rows the batches of a bulk load grow to
+	 */
+	public int getBulkBatchMax() {
+		return (Integer)properties.get(MYCP_BULK_BATCH_MAX);
+	}
+	
+	/**
+	 * @return the time in milliseconds a batch of a bulk load should take, the batch size is adapted to it
+	 */
+	public int getBulkBatchTime() {
+		return (Integer)properties.get(MYCP_BULK_BATCH_TIME);
+	}
+	
+	/**
+	 * @return the number of rows a bulk load commits at once on each connection, 0 to commit after every batch
+	 */
+	public int getBulkCommitRows() {
+		return (Integer)properties.get(MYCP_BULK_COMMIT_ROWS);
+	}
+	
+	/**
+	 * @return the number of times the uncommitted batches of a bulk load are run again after a transient failure
+	 */
+	public int getBulkRetries() {
+		return (Integer)properties.get(MYCP_BULK_RETRIES);
+	}
+	
+	/**
+	 * SQL run once on every physical connection when it is opened, such as {@code SET NAMES utf8mb4; SET time_zone = '+00:00'},
+	 * and again on return only after a lease changed the session, see {@link SessionState}
+	 * @return the statements separated by semicolons, or an empty string if none was specified
+	 */
+	public String getSessionInitSql() {
+		return properties.get(MYCP_SESSION_INIT_SQL).toString();
+	}
+		
+}
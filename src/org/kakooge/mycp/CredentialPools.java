@@ -0,0 +1,369 @@
+package org.kakooge.mycp;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The pools of one configuration, one per set of driver properties (user, password, ...) so that callers connecting
+ * with their own credentials get pooled connections of their own instead of sharing the first caller's pool.
+ * <ul>
+ * <li>The pools are keyed by a fingerprint of the url and the driver properties, computed when a pool is created.
+ * Borrowers find their pool without lock in a map keyed by a copy of the driver properties, compared by content</li>
+ * <li>At most {@link Configuration#getCredentialPools()} pools are kept. The least recently used pool without leased
+ * connection is destroyed to make room for a new one. The pool of the configured credentials is never evicted. A
+ * borrower whose pool is evicted between the lookup and the lease looks it up again, see {@link #lease(Properties, Lease)}</li>
+ * <li>All the pools share a budget of {@link Configuration#getCredentialBudget()} connections. A pool needing a
+ * connection when the budget is spent takes it from the idle connections of the least recently used pools</li>
+ * <li>The pools for other credentials start empty and are embedded ({@link Configuration#isEmbedded()}): they open
+ * connections on demand on the borrowing thread and run no thread of their own. The maintenance cycle of the default
+ * pool shrinks them and validates their idle connections</li>
+ * </ul>
+ * @author Michael Sekamanya
+ *
+ */
+class CredentialPools{
+
+	final private static Logger logger = Logger.getLogger(CredentialPools.class.getName());
+
+	final private static Properties NO_PROPERTIES = new Properties();
+	final private static char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+	private final Properties mycpProperties;
+	private final Configuration configuration;
+	private final PoolManager defaultPool;
+	private final int maxPools;
+	private final int budget;
+
+	/**
+	 * Takes a connection from the pool {@link CredentialPools#lease(Properties, Lease)} looked up
+	 */
+	interface Lease<C extends Connection>{
+		/**
+		 * @return the connection, {@code null} only if the calling thread was interrupted
+		 */
+		C take(PoolManager pool) throws SQLException;
+	}
+
+	/**
+	 * A pool and when it was last borrowed from
+	 */
+	private static final class Entry implements Comparable<Entry>{
+		final PoolManager pool;
+		final Properties properties;
+		volatile long lastUsed = System.nanoTime();
+
+		/**
+		 * Set by {@link CredentialPools#evict()} before it looks at the leases of the pool, see
+		 * {@link CredentialPools#lease(Properties, Lease)}
+		 */
+		volatile boolean evicted = false;
+
+		Entry(final PoolManager pool, final Properties properties){
+			this.pool = pool;
+			this.properties = properties;
+		}
+
+		@Override
+		public int compareTo(final Entry other) {
+			return lastUsed - other.lastUsed < 0 ? -1 : lastUsed == other.lastUsed ? 0 : 1;
+		}
+	}
+
+	/**
+	 * The pools by fingerprint. Guarded by {@code this}
+	 */
+	private final Map<String, Entry> pools = new HashMap<String, Entry>();
+
+	/**
+	 * The pools by driver properties, read without lock. The keys are copies of the properties the pools were created
+	 * for, defaults included
+	 */
+	private final ConcurrentMap<Properties, Entry> byProperties = new ConcurrentHashMap<Properties, Entry>();
+	private boolean destroyed = false;
+
+	/**
+	 * @param mycpProperties the {@code mycp.*} properties
+	 * @param driverProperties the driver properties of the default pool
+	 * @throws MyCPException if the configuration is invalid
+	 * @throws ClassNotFoundException if the jdbc driver cannot be loaded
+	 */
+	CredentialPools(final Properties mycpProperties, final Properties driverProperties) throws MyCPException, ClassNotFoundException{
+		this.mycpProperties = mycpProperties;
+		configuration = new Configuration(mycpProperties);
+		Class.forName(configuration.getDriver());
+		maxPools = Math.max(1, configuration.getCredentialPools());
+		budget = configuration.getCredentialBudget() > 0 ? configuration.getCredentialBudget() : configuration.getMaxConnections();
+		defaultPool = new PoolManager(configuration, driverProperties, this);
+		defaultPool.getPool().addMaintenanceTask(new Runnable() {
+			@Override
+			public void run() {
+				reapOthers();
+			}
+		});
+		synchronized(this){
+			add(fingerprint(configuration.getUrl(), driverProperties), defaultPool, driverProperties);
+		}
+		defaultPool.init();
+	}
+
+	/**
+	 * @return the pool of the configured credentials
+	 */
+	PoolManager getDefault(){
+		return defaultPool;
+	}
+
+	/**
+	 * Leases a connection from the pool for {@code driverProperties}, created if needed. The pool may be evicted and
+	 * destroyed right after the lookup, the lease would then fail or hand out a connection of a pool shutting down. The
+	 * lease flags the pool in use before it checks the eviction mark, and {@link #evict()} marks the pool before it
+	 * checks the leases, so either the pool is kept or the borrower sees the mark. The borrower then gives back what it
+	 * got and looks the pool up again
+	 * @throws SQLTransientConnectionException if the maximum number of pools is reached and every pool has leased
+	 * connections
+	 */
+	<C extends Connection> C lease(final Properties driverProperties, final Lease<C> lease) throws SQLException{
+		for(;;){
+			final Entry entry = get(driverProperties);
+			final C connection;
+			try{
+				connection = lease.take(entry.pool);
+			}catch(SQLException e){
+				if(entry.evicted)
+					continue;
+				throw e;
+			}
+			if(connection == null || !entry.evicted)
+				return connection;
+			if(logger.isLoggable(Level.FINE))
+				logger.fine(String.format("The credential pool %s was evicted while leasing, retrying", entry.pool.getPool().getName()));
+			try{
+				connection.close();
+			}catch(SQLException e){
+				logger.log(Level.FINE, "Could not give back a connection of an evicted pool", e);
+			}
+		}
+	}
+
+	private Entry get(final Properties driverProperties) throws SQLException{
+		final Properties lookup = driverProperties != null ? driverProperties : NO_PROPERTIES;
+		final Entry found = byProperties.get(lookup);
+		//- The properties compare equal without their defaults, which must not add any
+		if(found != null && lookup.stringPropertyNames().size() == found.properties.size()){
+			found.lastUsed = System.nanoTime();
+			return found;
+		}
+		return getOrCreate(driverProperties);
+	}
+
+	private Entry getOrCreate(final Properties driverProperties) throws SQLException{
+		final String key = fingerprint(configuration.getUrl(), driverProperties);
+		final PoolManager evicted;
+		final Entry entry;
+		synchronized(this){
+			if(destroyed)
+				throw new SQLException("The connection pool has been shut down");
+			final Entry existing = pools.get(key);
+			if(existing != null){
+				existing.lastUsed = System.nanoTime();
+				return existing;
+			}
+			evicted = pools.size() >= maxPools ? evict() : null;
+			entry = add(key, newPool(key, driverProperties), driverProperties);
+		}
+		if(evicted != null)
+			destroyInBackground(evicted);
+		return entry;
+	}
+
+	/**
+	 * Called holding {@code this}
+	 */
+	private Entry add(final String key, final PoolManager pool, final Properties driverProperties){
+		final Properties copy = new Properties();
+		if(driverProperties != null){
+			for(final String name : driverProperties.stringPropertyNames())
+				copy.setProperty(name, driverProperties.getProperty(name));
+		}
+		final Entry entry = new Entry(pool, copy);
+		pools.put(key, entry);
+		byProperties.put(copy, entry);
+		return entry;
+	}
+
+	private PoolManager newPool(final String key, final Properties driverProperties) throws SQLException{
+		final Properties properties = new Properties();
+		properties.putAll(mycpProperties);
+		properties.setProperty(Configuration.MYCP_POOL_NAME, configuration.getPoolName() + "-" + key.substring(0, 8));
+		properties.setProperty(Configuration.MYCP_MIN_CONNECTIONS, "0");
+		properties.setProperty(Configuration.MYCP_EMBEDDED, "true");
+		//- The warm start statistics and the lease journal are those of the default pool, another pool would wipe and
+		//- overwrite the journal files
+		properties.setProperty(Configuration.MYCP_SNAPSHOT_FILE, "");
+		properties.setProperty(Configuration.MYCP_JOURNAL_FILE, "");
+		final PoolManager pool;
+		try{
+			pool = new PoolManager(new Configuration(properties), driverProperties, this);
+		}catch(MyCPException e){
+			throw new SQLException(e.getMessage(), e);
+		}
+		pool.init();
+		return pool;
+	}
+
+	/**
+	 * Removes the least recently used pool without leased connection
+	 */
+	private PoolManager evict() throws SQLException{
+		for(final Entry entry : leastRecentlyUsed()){
+			if(entry.pool == defaultPool)
+				continue;
+			//- Marked before the leases are counted, a lease under way either shows in the count or sees the mark
+			entry.evicted = true;
+			if(entry.pool.getLeasedCount() == 0){
+				pools.values().remove(entry);
+				byProperties.remove(entry.properties);
+				return entry.pool;
+			}
+			entry.evicted = false;
+		}
+		throw new SQLTransientConnectionException(String.format("All the %d credential pools of %s are in use", maxPools, configuration.getPoolName()));
+	}
+
+	/**
+	 * Destroys an evicted pool off the caller thread, closing its connections takes time
+	 */
+	private static void destroyInBackground(final PoolManager pool){
+		if(logger.isLoggable(Level.FINE))
+			logger.fine(String.format("Evicting the credential pool %s", pool.getPool().getName()));
+		final Thread thread = new Thread("mycp-evict"){
+			@Override
+			public void run() {
+				pool.destroy();
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Shrinks and validates the other pools at the end of every maintenance cycle of the default pool. Being embedded,
+	 * they otherwise only look after themselves when borrowed from, and the connections of a user gone quiet would stay
+	 * open until the pool is evicted
+	 */
+	private void reapOthers(){
+		final List<PoolManager> others;
+		synchronized(this){
+			others = new ArrayList<PoolManager>(pools.size());
+			for(final Entry entry : pools.values())
+				if(entry.pool != defaultPool)
+					others.add(entry.pool);
+		}
+		for(final PoolManager pool : others)
+			pool.getPool().reap();
+	}
+
+	/**
+	 * Called by a pool about to open a connection, whose count already includes that connection. If the budget is
+	 * spent, idle connections of the other pools are closed, least recently used pool first
+	 * @throws SQLTransientConnectionException if the budget is spent and no other pool has an idle connection
+	 */
+	synchronized void reserve(final PoolManager requester) throws SQLException{
+		int total = 0;
+		for(final Entry entry : pools.values())
+			total += entry.pool.getPool().getResourceCount();
+		if(total <= budget)
+			return;
+		for(final Entry entry : leastRecentlyUsed()){
+			final PoolManager pool = entry.pool;
+			if(total <= budget)
+				break;
+			if(pool == requester)
+				continue;
+			MyCPConnection idle;
+			while(total > budget && (idle = pool.getPool().pollIdle()) != null){
+				pool.getPool().destroyResource(idle);
+				--total;
+			}
+		}
+		if(total > budget)
+			throw new SQLTransientConnectionException(String.format("The %d connections of %s are all in use", budget, configuration.getPoolName()));
+	}
+
+	/**
+	 * @return the pools, least recently used first. Called holding {@code this}
+	 */
+	private List<Entry> leastRecentlyUsed(){
+		final List<Entry> entries = new ArrayList<Entry>(pools.values());
+		Collections.sort(entries);
+		return entries;
+	}
+
+	/**
+	 * Destroys all the pools
+	 */
+	void destroy(){
+		final List<PoolManager> all;
+		synchronized(this){
+			destroyed = true;
+			all = new ArrayList<PoolManager>(pools.size());
+			for(final Entry entry : pools.values())
+				all.add(entry.pool);
+			pools.clear();
+			byProperties.clear();
+		}
+		for(final PoolManager pool : all)
+			pool.destroy();
+	}
+
+	/**
+	 * @return the number of pools
+	 */
+	synchronized int size(){
+		return pools.size();
+	}
+
+	/**
+	 * @return a SHA-256 digest of the url and the driver properties in key order
+	 */
+	static String fingerprint(final String url, final Properties driverProperties){
+		try{
+			final MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			digest.update(url.getBytes("UTF-8"));
+			if(driverProperties != null){
+				for(final String key : new TreeSet<String>(driverProperties.stringPropertyNames())){
+					digest.update((byte)0);
+					digest.update(key.getBytes("UTF-8"));
+					digest.update((byte)'=');
+					digest.update(driverProperties.getProperty(key).getBytes("UTF-8"));
+				}
+			}
+			final byte[] bytes = digest.digest();
+			final char[] hex = new char[bytes.length * 2];
+			for(int idx = 0; idx < bytes.length; ++idx){
+				hex[2 * idx] = HEX_DIGITS[(bytes[idx] >> 4) & 0xf];
+				hex[2 * idx + 1] = HEX_DIGITS[bytes[idx] & 0xf];
+			}
+			return new String(hex);
+		}catch(NoSuchAlgorithmException e){
+			throw new Error(e);
+		}catch(UnsupportedEncodingException e){
+			throw new Error(e);
+		}
+	}
+}
@@ -0,0 +1,49 @@
+package org.kakooge.mycp;
+
+/**
+ * The reactive streams interfaces, with the same methods as {@code java.util.concurrent.Flow} of Java 9 which this
+ * library cannot depend on. Adapting a {@link Publisher} to the JDK's is a matter of forwarding the calls
+ * @author Michael Sekamanya
+ *
+ */
+public final class Flow{
+
+	private Flow(){
+	}
+
+	/**
+	 * A producer of items for the {@link Subscriber}s it is given, each getting no more items than it asked for
+	 */
+	public interface Publisher<T>{
+		void subscribe(Subscriber<? super T> subscriber);
+	}
+
+	/**
+	 * A receiver of items. The methods of one subscriber are never called concurrently; after {@link #onComplete()} or
+	 * {@link #onError(Throwable)} none is called again
+	 */
+	public interface Subscriber<T>{
+		void onSubscribe(Subscription subscription);
+
+		void onNext(T item);
+
+		void onError(Throwable throwable);
+
+		void onComplete();
+	}
+
+	/**
+	 * The link between a {@link Publisher} and one of its {@link Subscriber}s
+	 */
+	public interface Subscription{
+		/**
+		 * Asks for up to {@code n} more items
+		 */
+		void request(long n);
+
+		/**
+		 * Asks the publisher to stop sending items, some may still arrive
+		 */
+		void cancel();
+	}
+}
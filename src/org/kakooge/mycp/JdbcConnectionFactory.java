@@ -0,0 +1,124 @@
+package org.kakooge.mycp;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Properties;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The {@link ResourceFactory} behind the JDBC pool. Creates {@link MyCPConnection}s over connections obtained from the
+ * {@link DriverManager} and initialised with the session init SQL, validates them with the keep alive SQL and, when they
+ * are returned, closes the statements a borrower left open and restores the session state it changed
+ * @author Michael Sekamanya
+ *
+ */
+class JdbcConnectionFactory implements ResourceFactory<MyCPConnection>{
+
+	final private static Logger logger = Logger.getLogger(JdbcConnectionFactory.class.getName());
+
+	private final PoolManager poolManager;
+	private final Configuration configuration;
+	private final Properties driverProperties;
+
+	/**
+	 * The statements of {@link Configuration#getSessionInitSql()}
+	 */
+	private final String[] sessionInitSql;
+
+	/**
+	 * The pools sharing a connection budget with this one, {@code null} if none
+	 */
+	private final CredentialPools group;
+
+	JdbcConnectionFactory(final PoolManager poolManager, final Configuration configuration, final Properties driverProperties,
+			final CredentialPools group){
+		this.poolManager = poolManager;
+		this.configuration = configuration;
+		this.driverProperties = driverProperties;
+		this.group = group;
+		sessionInitSql = SessionState.parse(configuration.getSessionInitSql());
+	}
+
+	@Override
+	public MyCPConnection create() throws SQLException {
+		final String url = configuration.getUrl();
+		if(StringUtil.Empty(url))
+			throw new SQLException("Missing url, please specify one");
+		if(group != null)
+			group.reserve(poolManager);
+
+		final long start = System.nanoTime();
+		Connection connection;
+		try{
+			connection = DriverManager.getConnection(url, driverProperties);
+		}catch(RuntimeException re){
+			connection = DriverManager.getConnection(url);
+		}
+		if(connection == null)
+			throw new SQLException(String.format("Could not establish jdbc connection to url '%s'", url));
+		final SessionState session;
+		try{
+			session = SessionState.initialise(connection, sessionInitSql);
+		}catch(SQLException e){
+			try{
+				connection.close();
+			}catch(SQLException ignore){}
+			throw e;
+		}
+		final LeaseJournal journal = poolManager.getJournal();
+		if(journal != null)
+			journal.record(LeaseJournal.CREATE, System.nanoTime() - start, 0);
+		final MyCPConnection mycpConnection = new MyCPConnection(poolManager, connection);
+		mycpConnection.setSessionState(session);
+		return mycpConnection;
+	}
+
+	/**
+	 * Runs the keep alive SQL if one is configured, otherwise only checks that the connection is not closed
+	 */
+	@Override
+	public boolean validate(final MyCPConnection mycpConnection) {
+		final Connection connection = mycpConnection.getUnderlyingConnection();
+		try{
+			if(connection.isClosed())
+				return false;
+			final String keepAliveSQL = configuration.getKeepAliveSQL();
+			if(StringUtil.Empty(keepAliveSQL))
+				return true;
+			final Statement statement = connection.createStatement();
+			try{
+				statement.execute(keepAliveSQL);
+			}finally{
+				statement.close();
+			}
+			return true;
+		}catch(SQLException e){
+			logger.log(Level.FINE, "Connection failed validation", e);
+			return false;
+		}
+	}
+
+	/**
+	 * @throws SQLException if the session state could not be restored, the connection is then closed
+	 */
+	@Override
+	public void reset(final MyCPConnection mycpConnection) throws SQLException {
+		mycpConnection.closeStatements();
+		mycpConnection.restoreSession();
+	}
+
+	@Override
+	public void destroy(final MyCPConnection mycpConnection) throws SQLException {
+		final Connection connection = mycpConnection.getUnderlyingConnection();
+		if(connection == null)
+			return;
+		final long start = System.nanoTime();
+		connection.close();
+		final LeaseJournal journal = poolManager.getJournal();
+		if(journal != null)
+			journal.record(LeaseJournal.DESTROY, 0, System.nanoTime() - start);
+	}
+}
@@ -1,10 +1,7 @@
 package org.kakooge.mycp;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.InputStream;
 import java.sql.Array;
 import java.sql.Blob;
 import java.sql.CallableStatement;
@@ -33,6 +30,8 @@ import java.util.Map;
 import java.util.Properties;
 import java.util.concurrent.BlockingDeque;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
 
@@ -47,7 +46,10 @@ public final class JdbcDriver implements Driver{
 	 * </pre>
 	 */
 
-	private PoolManager poolManager = null;
+	/**
+	 * The pools of each configuration file, one per set of connect properties, see {@link CredentialPools}
+	 */
+	private final ConcurrentMap<String, CredentialPools> pools = new ConcurrentHashMap<String, CredentialPools>();
 	
 	   
     protected boolean debug = false;
@@ -69,47 +71,26 @@ public final class JdbcDriver implements Driver{
         return null;
     }
 
-    private Properties initProperties(String propertiesFileName) throws IOException{
-		InputStream in = null;
-		final Properties prop = new Properties();
-		
-		try{
-			try{
-				in = new FileInputStream(propertiesFileName);
-			}catch(FileNotFoundException e){
-				if(!propertiesFileName.startsWith("/"))
-					propertiesFileName = "/" + propertiesFileName;
-				in = JdbcDriver.class.getResourceAsStream(propertiesFileName);
-			}
-		    prop.load(in);
-		    return prop;
-		}finally{
-		    if(in!=null) in.close();
-		}
-    }
-    
     /**
      * @throws MyCPException 
      * 
      */
-    private synchronized void initConnectionPool(final Properties mycpProperties, final Properties driverProperties) throws MyCPException{
+    private synchronized CredentialPools initConnectionPool(final String configPath, final Properties driverProperties) throws MyCPException, IOException{
 
-    	if(poolManager!=null)
-    		return;
-    	
-    	Configuration configuration = new Configuration(mycpProperties);
-    	poolManager = new PoolManager(configuration, driverProperties);
+    	CredentialPools group = pools.get(configPath);
+    	if(group != null)
+    		return group;
     	
-    	String driver = configuration.getDriver();
 		try{
-		    Class.forName(driver); //loads the jdbc driver
+			//- The first caller's properties are those of the default pool
+			group = new CredentialPools(Configuration.load(configPath), driverProperties);
 		}catch(ClassNotFoundException e){
 			if(debug)
 				e.printStackTrace();
 		    throw new Error(e);
 		}
-		
-		poolManager.init();
+		pools.put(configPath, group);
+		return group;
     }
 
 	@Override
@@ -150,19 +131,35 @@ public final class JdbcDriver implements Driver{
 			String propertiesFileName = this.getConfigPath(url);
 			if(propertiesFileName == null)
 				return null;
-			final Properties configProperties = initProperties(propertiesFileName);
-			initConnectionPool(configProperties, properties);
+			//- The configuration is only read when the pool is created, not on every borrow
+			CredentialPools group = pools.get(propertiesFileName);
+			if(group == null)
+				group = initConnectionPool(propertiesFileName, properties);
 			
+			return group.lease(properties, CONNECT);
+		}catch(SQLException e){
+			throw e;
+		}catch(Exception e){
+			throw new SQLException(e);
+		}
+	}
+
+	/**
+	 * Leases a connection for {@link #connect(String, Properties)}, {@code null} if interrupted
+	 */
+	final private static CredentialPools.Lease<Connection> CONNECT = new CredentialPools.Lease<Connection>(){
+		@Override
+		public Connection take(final PoolManager pool) throws SQLException {
+			if(pool.isShutdown())
+				throw new SQLException("The connection pool has been shut down");
 			try {
-				return poolManager.takeConnection();
+				return pool.getConnection();
 			} catch (InterruptedException e) {
 				Thread.currentThread().interrupt();
+				return null;
 			}
-		}catch(Exception e){
-			throw new SQLException(e);
 		}
-		return null;
-	}
+	};
 
 	@Override
 	public int getMajorVersion() {
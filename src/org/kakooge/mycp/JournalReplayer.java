@@ -0,0 +1,211 @@
+package org.kakooge.mycp;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Replays the leases recorded in a {@link LeaseJournal} against a {@link PoolManager} built from another configuration,
+ * over the {@link StubDriver}, to see offline how that configuration would have served the recorded traffic.
+ * <p>
+ * Every lease of the journal is started at its recorded arrival time, i.e. when its borrower started waiting, and held
+ * for its recorded hold time; borrowers that timed out are replayed with the mean hold time. Connecting takes the mean
+ * recorded connect time. As in the {@link LoadGenerator} waits are measured from the arrival time so a pool falling
+ * behind is charged for it. A speed above 1 compresses time: arrivals, holds and connects are all sped up and the
+ * waits are scaled back to recorded time in the report, which sets the replayed waits against the recorded ones
+ * </p>
+ * <pre>
+ * java org.kakooge.mycp.JournalReplayer &lt;journal file&gt; &lt;mycp properties&gt; [speed]
+ * </pre>
+ * @author Michael Sekamanya
+ *
+ */
+public class JournalReplayer{
+
+	private static class Lease implements Comparable<Lease>{
+		/**
+		 * Nanoseconds since the epoch
+		 */
+		final long arrival;
+		final long hold;
+
+		Lease(final long arrival, final long hold){
+			this.arrival = arrival;
+			this.hold = hold;
+		}
+
+		@Override
+		public int compareTo(final Lease other) {
+			return arrival < other.arrival ? -1 : arrival == other.arrival ? 0 : 1;
+		}
+	}
+
+	private final List<Lease> leases = new ArrayList<Lease>();
+	private final LatencyHistogram recordedWait = new LatencyHistogram();
+	private final long recordedTimeouts;
+	private final long connectTime;
+
+	private final LatencyHistogram waitTime = new LatencyHistogram();
+	private final AtomicLong timeouts = new AtomicLong();
+	private volatile int peakSessions = 0;
+
+	/**
+	 * @param records the records of a journal, in time order
+	 */
+	JournalReplayer(final List<LeaseJournal.Record> records){
+		long holdTotal = 0, connectTotal = 0, connects = 0, timeoutCount = 0;
+		final List<Long> timedOut = new ArrayList<Long>();
+		for(final LeaseJournal.Record record : records){
+			switch(record.event){
+			case LeaseJournal.RETURN:
+				//- The record ends the lease, which started hold + wait earlier
+				leases.add(new Lease(record.time - (record.hold + record.wait) * 1000, record.hold * 1000));
+				recordedWait.record(record.wait);
+				holdTotal += record.hold;
+				break;
+			case LeaseJournal.TIMEOUT:
+				timedOut.add(Long.valueOf(record.time - record.wait * 1000));
+				recordedWait.record(record.wait);
+				++timeoutCount;
+				break;
+			case LeaseJournal.CREATE:
+				connectTotal += record.wait;
+				++connects;
+				break;
+			default:
+				break;
+			}
+		}
+		final long meanHold = leases.isEmpty() ? 0 : holdTotal * 1000 / leases.size();
+		for(final Long arrival : timedOut)
+			leases.add(new Lease(arrival.longValue(), meanHold));
+		Collections.sort(leases);
+		recordedTimeouts = timeoutCount;
+		connectTime = connects == 0 ? 0 : connectTotal * 1000 / connects;
+	}
+
+	private final class Replay implements Runnable{
+		private final PoolManager poolManager;
+		private final long intended;
+		private final long hold;
+		private final double speed;
+
+		Replay(final PoolManager poolManager, final long intended, final long hold, final double speed){
+			this.poolManager = poolManager;
+			this.intended = intended;
+			this.hold = hold;
+			this.speed = speed;
+		}
+
+		@Override
+		public void run() {
+			try{
+				final MyCPConnection connection = poolManager.takeConnection();
+				waitTime.record((long)((System.nanoTime() - intended) * speed / 1000));
+				if(connection.getUnderlyingConnection() == null){
+					timeouts.incrementAndGet();
+					return;
+				}
+				LoadGenerator.sleepUntil(System.nanoTime() + hold);
+				connection.close();
+			}catch(InterruptedException e){
+				Thread.currentThread().interrupt();
+			}catch(SQLException ignore){
+				//- The stub connections do not fail
+			}
+		}
+	}
+
+	/**
+	 * Replays the leases against a pool configured with {@code mycpProperties}, whose driver and url are replaced by
+	 * the {@link StubDriver}'s
+	 * @param speed how many times faster than recorded to replay
+	 */
+	void run(final Properties mycpProperties, final double speed) throws MyCPException, InterruptedException{
+		if(leases.isEmpty())
+			return;
+		final Properties properties = new Properties();
+		properties.putAll(mycpProperties);
+		properties.setProperty(Configuration.MYCP_DRIVER, StubDriver.class.getName());
+		properties.setProperty(Configuration.MYCP_DRIVER_URL, StubDriver.URL_PREFIX + Math.round(connectTime / 1e6 / speed));
+		//- Neither the journal being replayed nor the production warm start statistics may be overwritten
+		properties.setProperty(Configuration.MYCP_JOURNAL_FILE, "");
+		properties.setProperty(Configuration.MYCP_SNAPSHOT_FILE, "");
+		try{
+			Class.forName(StubDriver.class.getName());
+		}catch(ClassNotFoundException e){
+			throw new Error(e);
+		}
+
+		final PoolManager poolManager = new PoolManager(new Configuration(properties), new Properties());
+		poolManager.init();
+		final Pool<MyCPConnection> pool = poolManager.getPool();
+		//- The recorded pool was warm
+		final long warmUp = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+		while(pool.getResourceCount() < poolManager.getConfiguration().getMinConnections() && System.nanoTime() - warmUp < 0)
+			Thread.sleep(10);
+
+		final ExecutorService executor = Executors.newCachedThreadPool(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				final Thread thread = new Thread(runnable, "mycp-replay");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		try{
+			final long start = System.nanoTime();
+			final long first = leases.get(0).arrival;
+			for(final Lease lease : leases){
+				final long intended = start + (long)((lease.arrival - first) / speed);
+				LoadGenerator.sleepUntil(intended);
+				final int sessions = pool.getResourceCount();
+				if(sessions > peakSessions)
+					peakSessions = sessions;
+				executor.execute(new Replay(poolManager, intended, (long)(lease.hold / speed), speed));
+			}
+			executor.shutdown();
+			executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+		}finally{
+			executor.shutdownNow();
+			poolManager.destroy();
+		}
+	}
+
+	String report(){
+		final StringBuilder builder = new StringBuilder();
+		final double seconds = leases.size() < 2 ? 0 : (leases.get(leases.size() - 1).arrival - leases.get(0).arrival) / 1e9;
+		builder.append(String.format("Replayed %d leases recorded over %.1f s, mean connect time %.3f ms%n", leases.size(),
+				seconds, connectTime / 1e6));
+		builder.append(String.format("%-9s %10s %10s %10s %10s %10s %10s%n", "wait (ms)", "timed out", "p50", "p90", "p99",
+				"p99.9", "max"));
+		builder.append(row("recorded", recordedTimeouts, recordedWait));
+		builder.append(row("replayed", timeouts.get(), waitTime));
+		builder.append(String.format("peak sessions: %d%n", peakSessions));
+		return builder.toString();
+	}
+
+	private static String row(final String name, final long timeouts, final LatencyHistogram wait){
+		return String.format("%-9s %10d %10.3f %10.3f %10.3f %10.3f %10.3f%n", name, timeouts,
+				wait.getValueAtPercentile(50) / 1000.0, wait.getValueAtPercentile(90) / 1000.0,
+				wait.getValueAtPercentile(99) / 1000.0, wait.getValueAtPercentile(99.9) / 1000.0, wait.getMax() / 1000.0);
+	}
+
+	public static void main(String[] args) throws IOException, MyCPException, InterruptedException{
+		if(args.length < 2){
+			System.err.println("usage: JournalReplayer <journal file> <mycp properties> [speed]");
+			return;
+		}
+		final JournalReplayer replayer = new JournalReplayer(LeaseJournal.read(args[0]));
+		replayer.run(Configuration.load(args[1]), args.length > 2 ? Double.parseDouble(args[2]) : 1);
+		System.out.print(replayer.report());
+	}
+}
@@ -0,0 +1,131 @@
+package org.kakooge.mycp;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A small concurrent histogram with log-linear buckets in the style of HdrHistogram. Each power of two is split into
+ * {@link #SUB_BUCKETS} linear sub buckets so every recorded value is kept to within 1/8 (12.5%) of its true value,
+ * values below {@link #SUB_BUCKETS} are exact. The unit is up to the caller, the pool records microseconds.
+ * <p>
+ * Recording does not allocate and does not lock. Reading percentiles while values are being recorded gives a
+ * slightly fuzzy but consistent enough picture for reporting purposes
+ * </p>
+ * @author Michael Sekamanya
+ *
+ */
+public class LatencyHistogram{
+
+	final private static int SUB_BUCKET_BITS = 3;
+	final private static int SUB_BUCKETS = 1<<SUB_BUCKET_BITS;
+
+	/**
+	 * Values are clamped to 2^40 (about 12 days in microseconds)
+	 */
+	final private static int MAX_VALUE_BITS = 40;
+	final private static long MAX_VALUE = (1L<<MAX_VALUE_BITS) - 1;
+	final private static int BUCKET_COUNT = (MAX_VALUE_BITS - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+	final private AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+	final private AtomicLong totalCount = new AtomicLong();
+	final private AtomicLong totalValue = new AtomicLong();
+	final private AtomicLong maxValue = new AtomicLong();
+
+	private static int index(final long value){
+		if(value < SUB_BUCKETS)
+			return (int)value;
+		final int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+		final int subBucket = (int)(value >>> shift) & (SUB_BUCKETS - 1);
+		return (shift + 1) * SUB_BUCKETS + subBucket;
+	}
+
+	/**
+	 * @return the highest value that is recorded in the bucket at {@code index}
+	 */
+	private static long highestEquivalentValue(final int index){
+		if(index < SUB_BUCKETS)
+			return index;
+		final int shift = index / SUB_BUCKETS - 1;
+		final long subBucket = index % SUB_BUCKETS;
+		return ((SUB_BUCKETS + subBucket + 1) << shift) - 1;
+	}
+
+	public void record(long value){
+		if(value < 0)
+			value = 0;
+		else if(value > MAX_VALUE)
+			value = MAX_VALUE;
+		counts.incrementAndGet(index(value));
+		totalCount.incrementAndGet();
+		totalValue.addAndGet(value);
+		long max;
+		while(value > (max = maxValue.get()) && !maxValue.compareAndSet(max, value));
+	}
+
+	public long getCount(){
+		return totalCount.get();
+	}
+
+	public long getTotal(){
+		return totalValue.get();
+	}
+
+	public long getMax(){
+		return maxValue.get();
+	}
+
+	public double getMean(){
+		final long count = totalCount.get();
+		return count == 0 ? 0 : (double)totalValue.get() / count;
+	}
+
+	/**
+	 * @param percentile between 0 and 100
+	 * @return the value at or below which {@code percentile} percent of the recorded values fall
+	 */
+	public long getValueAtPercentile(final double percentile){
+		final long count = totalCount.get();
+		if(count == 0)
+			return 0;
+		final long target = Math.max(1, (long)Math.ceil(percentile / 100.0 * count));
+		long seen = 0;
+		for(int idx = 0; idx < BUCKET_COUNT; ++idx){
+			seen += counts.get(idx);
+			if(seen >= target)
+				return Math.min(highestEquivalentValue(idx), maxValue.get());
+		}
+		return maxValue.get();
+	}
+
+	/**
+	 * Adds all values recorded in {@code other} to this histogram
+	 */
+	public void add(final LatencyHistogram other){
+		for(int idx = 0; idx < BUCKET_COUNT; ++idx){
+			final long count = other.counts.get(idx);
+			if(count != 0)
+				counts.addAndGet(idx, count);
+		}
+		totalCount.addAndGet(other.totalCount.get());
+		totalValue.addAndGet(other.totalValue.get());
+		final long otherMax = other.maxValue.get();
+		long max;
+		while(otherMax > (max = maxValue.get()) && !maxValue.compareAndSet(max, otherMax));
+	}
+
+	public void reset(){
+		for(int idx = 0; idx < BUCKET_COUNT; ++idx)
+			counts.set(idx, 0);
+		totalCount.set(0);
+		totalValue.set(0);
+		maxValue.set(0);
+	}
+
+	/**
+	 * @return a one line summary such as {@code count=10 mean=3.2 p50=3 p90=5 p99=7 p99.9=7 max=7}
+	 */
+	public String summary(){
+		return String.format("count=%d mean=%.1f p50=%d p90=%d p99=%d p99.9=%d max=%d", getCount(), getMean(),
+				getValueAtPercentile(50), getValueAtPercentile(90), getValueAtPercentile(99), getValueAtPercentile(99.9), getMax());
+	}
+}
@@ -0,0 +1,146 @@
+package org.kakooge.mycp;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Binary journal of the lease events of a {@link PoolManager}, written when {@link Configuration#getJournalFile()} is
+ * set and replayed offline by {@link JournalReplayer} to try other configurations on the recorded traffic.
+ * <p>
+ * The journal is a ring of {@link Configuration#getJournalFiles()} files of {@link Configuration#getJournalSize()}
+ * bytes, {@code <journal file>.0}, {@code .1}, ..., all mapped in memory when the pool starts. Records are
+ * {@value #RECORD_SIZE} bytes wide: a writer claims the next slot with one atomic add and fills it with absolute puts,
+ * so recording takes no lock, does not allocate and never waits for the disk. Once the last file is full the writers
+ * go back to the first one and overwrite the oldest records.
+ * </p>
+ * <pre>
+ *  0 long  time, nanoseconds since the epoch
+ *  8 int   id of the thread
+ * 12 byte  event: {@link #ACQUIRE}, {@link #RETURN}, {@link #TIMEOUT}, {@link #CREATE} or {@link #DESTROY}
+ * 16 long  microseconds waited for the connection, also for {@link #RETURN} so that it describes the whole lease, or
+ *          taken to open it for {@link #CREATE}
+ * 24 long  microseconds the connection was held, or taken to close it for {@link #DESTROY}
+ * </pre>
+ * The event byte is written last, a slot with event 0 has never been written
+ * @author Michael Sekamanya
+ *
+ */
+class LeaseJournal{
+
+	final static int RECORD_SIZE = 32;
+
+	final static byte ACQUIRE = 1;
+	final static byte RETURN = 2;
+	final static byte TIMEOUT = 3;
+	final static byte CREATE = 4;
+	final static byte DESTROY = 5;
+
+	/**
+	 * A record read back from a journal
+	 */
+	static class Record implements Comparable<Record>{
+		final long time;
+		final int thread;
+		final byte event;
+		final long wait;
+		final long hold;
+
+		Record(final long time, final int thread, final byte event, final long wait, final long hold){
+			this.time = time;
+			this.thread = thread;
+			this.event = event;
+			this.wait = wait;
+			this.hold = hold;
+		}
+
+		@Override
+		public int compareTo(final Record other) {
+			return time < other.time ? -1 : time == other.time ? 0 : 1;
+		}
+	}
+
+	private final MappedByteBuffer[] segments;
+	private final long segmentSize;
+	private final AtomicLong cursor = new AtomicLong();
+	private final long startNanos = System.nanoTime();
+	private final long startEpochNanos = System.currentTimeMillis() * 1000000L;
+
+	/**
+	 * Creates or truncates the journal files and maps them
+	 * @param fileName the journal file, the files of the ring are named after it
+	 * @param size the size of each file, rounded down to whole records
+	 * @param files the number of files in the ring
+	 */
+	LeaseJournal(final String fileName, final long size, final int files) throws IOException{
+		segmentSize = Math.max(RECORD_SIZE, Math.min(Integer.MAX_VALUE, size) / RECORD_SIZE * RECORD_SIZE);
+		segments = new MappedByteBuffer[Math.max(1, files)];
+		for(int idx = 0; idx < segments.length; ++idx){
+			final RandomAccessFile file = new RandomAccessFile(segmentFile(fileName, idx), "rw");
+			try{
+				//- Records of an earlier run must not be read back with this one's
+				file.setLength(0);
+				file.setLength(segmentSize);
+				segments[idx] = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+			}finally{
+				file.close();
+			}
+		}
+	}
+
+	private static File segmentFile(final String fileName, final int idx){
+		return new File(fileName + "." + idx);
+	}
+
+	/**
+	 * Appends a record for the calling thread
+	 */
+	void record(final byte event, final long waitNanos, final long holdNanos){
+		final long position = cursor.getAndAdd(RECORD_SIZE);
+		final MappedByteBuffer segment = segments[(int)((position / segmentSize) % segments.length)];
+		final int offset = (int)(position % segmentSize);
+		segment.putLong(offset, startEpochNanos + System.nanoTime() - startNanos);
+		segment.putInt(offset + 8, (int)Thread.currentThread().getId());
+		segment.putLong(offset + 16, waitNanos / 1000);
+		segment.putLong(offset + 24, holdNanos / 1000);
+		segment.put(offset + 12, event);
+	}
+
+	/**
+	 * Flushes the files to disk
+	 */
+	void close(){
+		for(final MappedByteBuffer segment : segments)
+			segment.force();
+	}
+
+	/**
+	 * Reads all the records of a journal in time order
+	 * @param fileName the journal file given to the pool
+	 */
+	static List<Record> read(final String fileName) throws IOException{
+		final List<Record> records = new ArrayList<Record>();
+		for(int idx = 0; segmentFile(fileName, idx).exists(); ++idx){
+			final RandomAccessFile file = new RandomAccessFile(segmentFile(fileName, idx), "r");
+			try{
+				final MappedByteBuffer segment = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+				for(int offset = 0; offset + RECORD_SIZE <= segment.limit(); offset += RECORD_SIZE){
+					final byte event = segment.get(offset + 12);
+					if(event != 0)
+						records.add(new Record(segment.getLong(offset), segment.getInt(offset + 8), event,
+								segment.getLong(offset + 16), segment.getLong(offset + 24)));
+				}
+			}finally{
+				file.close();
+			}
+		}
+		Collections.sort(records);
+		return records;
+	}
+}
@@ -0,0 +1,327 @@
+package org.kakooge.mycp;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Logger;
+
+/**
+ * Open loop load generator. Requests are started on a schedule computed from an {@link ArrivalPattern}, independently of
+ * how long earlier requests take, so a stalled pool shows up as queueing and latency instead of as a drop in offered load.
+ * <p>
+ * The latency of a request is measured from its <b>intended</b> start time, i.e. the time the schedule says it should have
+ * started, not the time a thread got round to starting it. This avoids coordinated omission: if the executor or the pool
+ * stalls the requests queued behind the stall are charged for the time they waited.
+ * </p>
+ * <p>
+ * The time a request spends holding its resource is part of its latency but says nothing about the pool, so requests
+ * report the moment they obtained the resource through {@link Acquisition#acquired()}. The wait from the intended start
+ * to that moment is recorded in a histogram of its own
+ * </p>
+ * <p>
+ * The run is split into {@link Phase}s, each with its own arrival pattern and its own {@link LatencyHistogram}. A percentile
+ * report is logged for every phase once all of its requests have completed
+ * </p>
+ * @author Michael Sekamanya
+ *
+ */
+class LoadGenerator{
+
+	/**
+	 * The unit of work started for every arrival
+	 */
+	interface Request{
+		/**
+		 * @param sequence the number of the request within the whole run, starting at 1
+		 * @param acquisition to be told as soon as the resource under test (e.g. a connection) has been obtained
+		 */
+		void execute(long sequence, Acquisition acquisition) throws Exception;
+	}
+
+	/**
+	 * Marks the end of the wait of a {@link Request}
+	 */
+	interface Acquisition{
+		/**
+		 * Records the time from the intended start of the request until now as its wait, only the first call counts
+		 */
+		void acquired();
+	}
+
+	/**
+	 * Arrival rate in requests per second as a function of the time elapsed since the start of a phase
+	 */
+	static abstract class ArrivalPattern{
+
+		/**
+		 * @param elapsed milliseconds since the start of the phase
+		 * @return the arrival rate in requests per second, 0 or less pauses the arrivals
+		 */
+		abstract double rate(long elapsed);
+
+		/**
+		 * A constant rate
+		 */
+		static ArrivalPattern fixed(final double rate){
+			return new ArrivalPattern(){
+				@Override
+				double rate(long elapsed) {
+					return rate;
+				}
+			};
+		}
+
+		/**
+		 * A rate rising (or falling) linearly from {@code from} to {@code to} over {@code duration} milliseconds and
+		 * staying at {@code to} afterwards
+		 */
+		static ArrivalPattern ramp(final double from, final double to, final long duration){
+			return new ArrivalPattern(){
+				@Override
+				double rate(long elapsed) {
+					if(elapsed >= duration)
+						return to;
+					return from + (to - from) * elapsed / duration;
+				}
+			};
+		}
+
+		/**
+		 * A staircase starting at {@code initial} and going up by {@code increment} every {@code stepLength} milliseconds
+		 */
+		static ArrivalPattern step(final double initial, final double increment, final long stepLength){
+			return new ArrivalPattern(){
+				@Override
+				double rate(long elapsed) {
+					return initial + increment * (elapsed / stepLength);
+				}
+			};
+		}
+
+		/**
+		 * Replays a recorded curve, interpolating linearly between the points
+		 * @param offsets milliseconds since the start of the phase, ascending
+		 * @param rates the rate at each offset
+		 */
+		static ArrivalPattern replay(final long[] offsets, final double[] rates){
+			if(offsets.length == 0 || offsets.length != rates.length)
+				throw new IllegalArgumentException("offsets and rates must be non empty and of the same length");
+			return new ArrivalPattern(){
+				@Override
+				double rate(long elapsed) {
+					if(elapsed <= offsets[0])
+						return rates[0];
+					for(int idx = 1; idx < offsets.length; ++idx){
+						if(elapsed < offsets[idx]){
+							final double fraction = (double)(elapsed - offsets[idx - 1]) / (offsets[idx] - offsets[idx - 1]);
+							return rates[idx - 1] + (rates[idx] - rates[idx - 1]) * fraction;
+						}
+					}
+					return rates[rates.length - 1];
+				}
+			};
+		}
+
+		/**
+		 * Reads a curve for {@link #replay(long[], double[])} from a file with one {@code <seconds> <rate>} pair per line.
+		 * Empty lines and lines starting with {@code #} are ignored
+		 */
+		static ArrivalPattern replay(final String fileName) throws IOException{
+			final List<Long> offsets = new ArrayList<Long>();
+			final List<Double> rates = new ArrayList<Double>();
+			final BufferedReader reader = new BufferedReader(new FileReader(fileName));
+			try{
+				String line;
+				while((line = reader.readLine()) != null){
+					line = line.trim();
+					if(line.length() == 0 || line.startsWith("#"))
+						continue;
+					final String[] fields = line.split("[\\s,]+");
+					offsets.add(Math.round(Double.parseDouble(fields[0]) * 1000));
+					rates.add(Double.valueOf(fields[1]));
+				}
+			}finally{
+				reader.close();
+			}
+			final long[] offsetArray = new long[offsets.size()];
+			final double[] rateArray = new double[rates.size()];
+			for(int idx = 0; idx < offsetArray.length; ++idx){
+				offsetArray[idx] = offsets.get(idx);
+				rateArray[idx] = rates.get(idx);
+			}
+			return replay(offsetArray, rateArray);
+		}
+	}
+
+	/**
+	 * A named stretch of the run with its own arrival pattern, wait and latency histograms
+	 */
+	static class Phase{
+		final String name;
+		final long duration;
+		final ArrivalPattern pattern;
+
+		final LatencyHistogram latency = new LatencyHistogram();
+		final LatencyHistogram wait = new LatencyHistogram();
+		final AtomicLong errors = new AtomicLong();
+		final AtomicLong outstanding = new AtomicLong();
+		private long scheduled;
+		private volatile boolean generated;
+
+		/**
+		 * @param duration milliseconds
+		 */
+		Phase(final String name, final long duration, final ArrivalPattern pattern){
+			this.name = name;
+			this.duration = duration;
+			this.pattern = pattern;
+		}
+
+		private boolean isComplete(){
+			return generated && outstanding.get() == 0;
+		}
+	}
+
+	final private static Logger logger = Logger.getLogger(LoadGenerator.class.getName());
+
+	final private static double[] REPORT_PERCENTILES = {50, 75, 90, 95, 99, 99.9, 99.99, 100};
+
+	final private Executor executor;
+	final private Request request;
+	final private List<Phase> phases = new ArrayList<Phase>();
+
+	/**
+	 * Exponentially distributed inter-arrival times if set, evenly spaced otherwise
+	 */
+	final private boolean poisson;
+	final private Random random = new Random();
+	private long sequence = 0;
+
+	/**
+	 * @param executor runs the requests. It should neither block nor reject on submission, otherwise the generator is
+	 * slowed down by the system under test, nor queue requests behind busy threads (e.g. a cached thread pool), otherwise
+	 * the executor rather than the system under test is measured
+	 * @param request the work started for each arrival
+	 * @param poisson whether arrivals follow a Poisson process at the pattern's rate or are evenly spaced
+	 */
+	LoadGenerator(final Executor executor, final Request request, final boolean poisson){
+		this.executor = executor;
+		this.request = request;
+		this.poisson = poisson;
+	}
+
+	LoadGenerator addPhase(final String name, final long duration, final ArrivalPattern pattern){
+		phases.add(new Phase(name, duration, pattern));
+		return this;
+	}
+
+	private final class MeasuredRequest implements Runnable, Acquisition{
+		final Phase phase;
+		final long intendedStart;
+		final long requestSequence;
+		private boolean acquired;
+
+		MeasuredRequest(final Phase phase, final long intendedStart, final long requestSequence){
+			this.phase = phase;
+			this.intendedStart = intendedStart;
+			this.requestSequence = requestSequence;
+		}
+
+		@Override
+		public void acquired() {
+			if(acquired)
+				return;
+			acquired = true;
+			//- Microseconds from the time the request should have started
+			phase.wait.record((System.nanoTime() - intendedStart) / 1000);
+		}
+
+		@Override
+		public void run() {
+			try{
+				request.execute(requestSequence, this);
+			}catch(Exception e){
+				phase.errors.incrementAndGet();
+			}finally{
+				//- Microseconds from the time the request should have started
+				phase.latency.record((System.nanoTime() - intendedStart) / 1000);
+				phase.outstanding.decrementAndGet();
+			}
+		}
+	}
+
+	static void sleepUntil(final long deadline) throws InterruptedException{
+		long remaining;
+		while((remaining = deadline - System.nanoTime()) > 0){
+			LockSupport.parkNanos(remaining);
+			if(Thread.interrupted())
+				throw new InterruptedException();
+		}
+	}
+
+	private long interval(final double rate){
+		final double mean = 1e9 / rate;
+		return (long)(poisson ? -Math.log(1 - random.nextDouble()) * mean : mean);
+	}
+
+	private void generate(final Phase phase) throws InterruptedException{
+		final long start = System.nanoTime();
+		final long end = start + phase.duration * 1000000L;
+		long intended = start;
+		while(intended < end){
+			final double rate = phase.pattern.rate((intended - start) / 1000000L);
+			if(rate <= 0){
+				intended += 1000000L;
+				continue;
+			}
+			sleepUntil(intended);
+			phase.outstanding.incrementAndGet();
+			++phase.scheduled;
+			executor.execute(new MeasuredRequest(phase, intended, ++sequence));
+			intended += interval(rate);
+		}
+		phase.generated = true;
+	}
+
+	/**
+	 * Runs the phases one after the other in the calling thread and logs a report for each phase once its requests
+	 * have completed
+	 */
+	void run() throws InterruptedException{
+		for(final Phase phase : phases){
+			logger.info(String.format("Starting phase '%s' for %d ms", phase.name, phase.duration));
+			generate(phase);
+		}
+		for(final Phase phase : phases){
+			while(!phase.isComplete())
+				Thread.sleep(100);
+			logger.info(report(phase));
+		}
+	}
+
+	/**
+	 * Formats the percentile distributions of a phase, waits and latencies in milliseconds
+	 */
+	static String report(final Phase phase){
+		final LatencyHistogram latency = phase.latency;
+		final LatencyHistogram wait = phase.wait;
+		final StringBuilder builder = new StringBuilder();
+		builder.append(String.format("Phase '%s': %d requests scheduled over %d ms (%.1f/s), %d completed, %d errors%n",
+				phase.name, phase.scheduled, phase.duration, phase.scheduled * 1000.0 / phase.duration, latency.getCount(), phase.errors.get()));
+		builder.append(String.format("%12s %12s %12s%n", "Percentile", "Wait(ms)", "Latency(ms)"));
+		for(final double percentile : REPORT_PERCENTILES)
+			builder.append(String.format("%12s %12.3f %12.3f%n", percentile, wait.getValueAtPercentile(percentile) / 1000.0,
+					latency.getValueAtPercentile(percentile) / 1000.0));
+		builder.append(String.format("#[Wait mean = %.3f, max = %.3f, count = %d]%n", wait.getMean() / 1000.0,
+				wait.getMax() / 1000.0, wait.getCount()));
+		builder.append(String.format("#[Latency mean = %.3f, max = %.3f, count = %d]%n", latency.getMean() / 1000.0,
+				latency.getMax() / 1000.0, latency.getCount()));
+		return builder.toString();
+	}
+}
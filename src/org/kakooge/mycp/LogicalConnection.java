@@ -0,0 +1,416 @@
+package org.kakooge.mycp;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.SQLTimeoutException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+/**
+ * A lease that holds a physical connection only when it needs one, used unless {@link Configuration#getBinding()} is
+ * {@value Configuration#BINDING_EAGER}. The application gets a {@link Connection} proxy backed by a
+ * {@link MyCPConnection} taken from the pool on the first call that needs the database, e.g. {@code createStatement}
+ * or {@code prepareStatement}.
+ * <p>
+ * Session settings such as {@code setAutoCommit} or {@code setTransactionIsolation} made while unbound are recorded and
+ * replayed on the physical connection when binding. While unbound:
+ * </p>
+ * <ul>
+ * <li>{@code close}, {@code commit} and {@code rollback} do nothing on the database</li>
+ * <li>the recorded settings are read back from the record, {@code getAutoCommit} is {@code true} if never set</li>
+ * <li>{@code getWarnings} returns {@code null}</li>
+ * </ul>
+ * <p>
+ * With {@value Configuration#BINDING_LAZY} binding the physical connection is then held until the lease is closed.
+ * With {@value Configuration#BINDING_TRANSACTION} binding, like the transaction mode of pgbouncer, it goes back to the
+ * pool as soon as no statement is open, in auto commit mode, or at the end of the transaction otherwise. Many logical
+ * connections can then run over a few physical ones. The session settings are replayed on every bind and the previous
+ * values restored before the physical connection goes back. Anything that would leave state in the database session
+ * beyond a transaction is rejected with a {@link SQLFeatureNotSupportedException}:
+ * </p>
+ * <ul>
+ * <li>cursors held over commit</li>
+ * <li>SQL that sets session variables, prepares named statements, listens for notifications, creates temporary tables,
+ * switches database or takes session level locks, see {@link #SESSION_SQL}</li>
+ * </ul>
+ * <p>
+ * Calls returning objects that live on the physical connection outside of a statement, e.g. {@code getMetaData} or
+ * {@code createBlob}, pin the physical connection to the lease until it is closed.
+ * </p>
+ * <p>
+ * A lease that times out waiting for a physical connection fails on the call that needed it with a
+ * {@link SQLTimeoutException} rather than at {@link PoolManager#getConnection()}
+ * </p>
+ * @author Michael Sekamanya
+ *
+ */
+class LogicalConnection implements InvocationHandler{
+
+	/**
+	 * Setters whose effect is part of the session state, recorded and replayed on the physical connection
+	 */
+	final private static Set<String> SESSION_SETTERS = new HashSet<String>();
+
+	/**
+	 * The getter of each recorded setter, answered from the record while unbound and used to save the value to restore
+	 * in transaction binding
+	 */
+	final private static Map<String, String> SESSION_GETTERS = new HashMap<String, String>();
+
+	/**
+	 * Calls whose result stays tied to the physical connection, they pin it to the lease in transaction binding
+	 */
+	final private static Set<String> PINNING = new HashSet<String>();
+
+	/**
+	 * SQL keeping state in the database session, rejected in transaction binding. Matched at the start of the statement
+	 * after comments, except the lock functions which are matched anywhere. {@code LOAD} is only the PostgreSQL
+	 * {@code LOAD 'library'}, MySQL's {@code LOAD DATA} keeps no state
+	 */
+	final static Pattern SESSION_SQL = Pattern.compile(
+			"^(?:\\s|/\\*.*?\\*/|--[^\\n]*(?:\\n|$))*(?:" +
+			"SET\\s+(?!TRANSACTION\\b|LOCAL\\b)|RESET\\b|DISCARD\\b|LISTEN\\b|UNLISTEN\\b|PREPARE\\b|DEALLOCATE\\b|LOAD\\s+'|USE\\b|" +
+			"CREATE\\s+(?:GLOBAL\\s+|LOCAL\\s+)?TEMP(?:ORARY)?\\b|DECLARE\\b.*\\bWITH\\s+HOLD\\b)" +
+			"|\\b(?:PG_(?:TRY_)?ADVISORY_LOCK(?:_SHARED)?|GET_LOCK)\\s*\\(",
+			Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+
+	static{
+		SESSION_SETTERS.add("setAutoCommit");
+		SESSION_SETTERS.add("setReadOnly");
+		SESSION_SETTERS.add("setTransactionIsolation");
+		SESSION_SETTERS.add("setCatalog");
+		SESSION_SETTERS.add("setSchema");
+		SESSION_SETTERS.add("setHoldability");
+		SESSION_SETTERS.add("setTypeMap");
+		SESSION_SETTERS.add("setClientInfo");
+
+		SESSION_GETTERS.put("getAutoCommit", "setAutoCommit");
+		SESSION_GETTERS.put("isReadOnly", "setReadOnly");
+		SESSION_GETTERS.put("getTransactionIsolation", "setTransactionIsolation");
+		SESSION_GETTERS.put("getCatalog", "setCatalog");
+		SESSION_GETTERS.put("getSchema", "setSchema");
+		SESSION_GETTERS.put("getHoldability", "setHoldability");
+		SESSION_GETTERS.put("getTypeMap", "setTypeMap");
+
+		PINNING.add("getMetaData");
+		PINNING.add("createBlob");
+		PINNING.add("createClob");
+		PINNING.add("createNClob");
+		PINNING.add("createSQLXML");
+		PINNING.add("createArrayOf");
+		PINNING.add("createStruct");
+		PINNING.add("unwrap");
+	}
+
+	final private static Logger logger = Logger.getLogger(LogicalConnection.class.getName());
+
+	private final PoolManager poolManager;
+	private final Connection proxy;
+
+	/**
+	 * Transaction binding, see {@link Configuration#BINDING_TRANSACTION}
+	 */
+	private final boolean multiplexing;
+
+	/**
+	 * The recorded session settings keyed by setter, in the order they were made. {@code setClientInfo(name, value)} is
+	 * keyed by name as well
+	 */
+	private final Map<String, Object[]> settings = new LinkedHashMap<String, Object[]>();
+	private final Map<String, Method> setters = new HashMap<String, Method>();
+
+	/**
+	 * In transaction binding, the values the recorded settings had on the physical connection before they were applied
+	 */
+	private final Map<String, Object[]> saved = new LinkedHashMap<String, Object[]>();
+
+	private MyCPConnection bound;
+	private boolean pinned = false;
+	private boolean closed = false;
+
+	private LogicalConnection(final PoolManager poolManager, final boolean multiplexing){
+		this.poolManager = poolManager;
+		this.multiplexing = multiplexing;
+		this.proxy = (Connection)Proxy.newProxyInstance(LogicalConnection.class.getClassLoader(), new Class<?>[]{Connection.class}, this);
+	}
+
+	/**
+	 * @param multiplexing whether the physical connection goes back to the pool between transactions
+	 * @return an unbound lease on the pool of {@code poolManager}
+	 */
+	static Connection open(final PoolManager poolManager, final boolean multiplexing){
+		return new LogicalConnection(poolManager, multiplexing).proxy;
+	}
+
+	Connection getProxy(){
+		return proxy;
+	}
+
+	/************************************************************************************
+	 *    		BINDING
+	 ************************************************************************************/
+
+	/**
+	 * Takes a physical connection from the pool and replays the recorded settings on it. The physical connection
+	 * belongs to this lease rather than to the calling thread, so that two leases open on one thread never share it
+	 */
+	private MyCPConnection bind() throws SQLException{
+		final MyCPConnection connection;
+		try{
+			connection = poolManager.takeDetachedConnection();
+		}catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrupted while waiting for a connection", e);
+		}
+		if(connection.getUnderlyingConnection() == null){
+			if(poolManager.isShutdown())
+				throw new SQLException("The connection pool has been shut down");
+			throw new SQLTimeoutException("Timed out waiting for a connection");
+		}
+		try{
+			for(final Map.Entry<String, Object[]> setting : settings.entrySet())
+				apply(connection, setting.getKey(), setting.getValue());
+		}catch(SQLException e){
+			unbind(connection);
+			throw e;
+		}
+		connection.setLogical(this);
+		bound = connection;
+		return connection;
+	}
+
+	/**
+	 * Applies a session setting, first saving the value to restore in transaction binding
+	 */
+	private void apply(final MyCPConnection connection, final String key, final Object[] args) throws SQLException{
+		final Method setter = setters.get(key);
+		try{
+			if(multiplexing && !saved.containsKey(key))
+				saved.put(key, currentValue(connection, setter, args));
+			setter.invoke(connection, args);
+		}catch(InvocationTargetException e){
+			final Throwable cause = e.getCause();
+			throw cause instanceof SQLException ? (SQLException)cause : new SQLException(cause);
+		}catch(IllegalAccessException e){
+			throw new SQLException(e);
+		}
+	}
+
+	/**
+	 * @return the arguments for {@code setter} that restore the value the session has now
+	 */
+	private static Object[] currentValue(final MyCPConnection connection, final Method setter, final Object[] args) throws SQLException{
+		final String name = setter.getName();
+		if(name.equals("setClientInfo")){
+			if(args.length == 2)
+				return new Object[]{args[0], connection.getClientInfo((String)args[0])};
+			return new Object[]{connection.getClientInfo()};
+		}
+		for(final Map.Entry<String, String> getter : SESSION_GETTERS.entrySet()){
+			if(getter.getValue().equals(name)){
+				try{
+					return new Object[]{Connection.class.getMethod(getter.getKey()).invoke(connection)};
+				}catch(InvocationTargetException e){
+					final Throwable cause = e.getCause();
+					throw cause instanceof SQLException ? (SQLException)cause : new SQLException(cause);
+				}catch(Exception e){
+					throw new SQLException(e);
+				}
+			}
+		}
+		throw new SQLException("No getter for " + name);
+	}
+
+	/**
+	 * Gives the physical connection back to the pool, restoring the session settings first in transaction binding. Work
+	 * left uncommitted is rolled back before, as turning auto commit back on would commit it. A connection whose
+	 * settings could not be restored is discarded
+	 */
+	private void unbind(final MyCPConnection connection){
+		if(bound == connection)
+			bound = null;
+		connection.setLogical(null);
+		if(multiplexing && !saved.isEmpty()){
+			final List<Map.Entry<String, Object[]>> restores = new ArrayList<Map.Entry<String, Object[]>>(saved.entrySet());
+			saved.clear();
+			try{
+				if(!connection.getAutoCommit())
+					connection.rollback();
+				//- Undo in the reverse order the settings were applied
+				for(int idx = restores.size() - 1; idx >= 0; --idx)
+					setters.get(restores.get(idx).getKey()).invoke(connection, restores.get(idx).getValue());
+			}catch(Exception e){
+				logger.log(Level.WARNING, "Could not restore the session settings, discarding the connection", e);
+				connection.discard();
+				return;
+			}
+		}
+		try{
+			connection.close();
+		}catch(SQLException e){
+			logger.log(Level.FINE, "Could not return the connection", e);
+		}
+	}
+
+	private boolean isAutoCommit(){
+		final Object[] setting = settings.get("setAutoCommit");
+		return setting == null || Boolean.TRUE.equals(setting[0]);
+	}
+
+	/**
+	 * In transaction binding, gives the physical connection back once no statement is open and no transaction is under way
+	 * @param endOfTransaction whether the call that just completed ended a transaction
+	 */
+	private void releaseIfIdle(final boolean endOfTransaction){
+		final MyCPConnection connection = bound;
+		if(connection == null || pinned || connection.hasOpenStatements())
+			return;
+		if(isAutoCommit() || endOfTransaction)
+			unbind(connection);
+	}
+
+	/**
+	 * Called by the bound {@link MyCPConnection} when its last open statement is closed
+	 */
+	synchronized void statementsClosed(){
+		if(multiplexing && !closed)
+			releaseIfIdle(false);
+	}
+
+	/************************************************************************************
+	 *    		SESSION STATE CHECKS
+	 ************************************************************************************/
+
+	/**
+	 * @throws SQLFeatureNotSupportedException in transaction binding if {@code sql} keeps state in the database session
+	 */
+	void checkSql(final String sql) throws SQLException{
+		if(multiplexing && sql != null && SESSION_SQL.matcher(sql).find())
+			throw new SQLFeatureNotSupportedException(String.format("Session state is not supported with %s=%s: %s",
+					Configuration.MYCP_BINDING, Configuration.BINDING_TRANSACTION, sql));
+	}
+
+	private static void checkHoldability(final Object holdability) throws SQLException{
+		if(holdability instanceof Integer && ((Integer)holdability).intValue() == ResultSet.HOLD_CURSORS_OVER_COMMIT)
+			throw new SQLFeatureNotSupportedException(String.format("Cursors held over commit are not supported with %s=%s",
+					Configuration.MYCP_BINDING, Configuration.BINDING_TRANSACTION));
+	}
+
+	private void checkSupported(final String name, final Object[] args) throws SQLException{
+		if(args == null)
+			return;
+		if(name.equals("setHoldability"))
+			checkHoldability(args[0]);
+		else if(args.length == 3 && name.equals("createStatement"))
+			checkHoldability(args[2]);
+		else if(name.equals("prepareStatement") || name.equals("prepareCall") || name.equals("nativeSQL")){
+			checkSql((String)args[0]);
+			if(args.length == 4)
+				checkHoldability(args[3]);
+		}
+	}
+
+	/************************************************************************************
+	 *    		CALLS
+	 ************************************************************************************/
+
+	private void record(final Method method, final Object[] args){
+		final String key = key(method, args);
+		//- The latest setting goes last so that replaying gives the same end state
+		settings.remove(key);
+		settings.put(key, args);
+		setters.put(key, method);
+	}
+
+	private static String key(final Method method, final Object[] args){
+		final String name = method.getName();
+		return name.equals("setClientInfo") && args != null && args.length == 2 ? name + ":" + args[0] : name;
+	}
+
+	@Override
+	public synchronized Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable {
+		final String name = method.getName();
+		final int arity = method.getParameterTypes().length;
+
+		if(method.getDeclaringClass() == Object.class){
+			if(name.equals("equals"))
+				return Boolean.valueOf(proxy == args[0]);
+			if(name.equals("hashCode"))
+				return Integer.valueOf(System.identityHashCode(proxy));
+			return "LogicalConnection@" + Integer.toHexString(System.identityHashCode(proxy)) + (bound == null ? " (unbound)" : " bound to " + bound);
+		}
+		if(name.equals("isClosed") && arity == 0)
+			return Boolean.valueOf(closed);
+		if(name.equals("close") && arity == 0){
+			if(!closed){
+				closed = true;
+				if(bound != null){
+					//- Statements still open are closed with the lease
+					unbind(bound);
+				}else{
+					poolManager.unboundLeaseClosed();
+				}
+			}
+			return null;
+		}
+		if(closed)
+			throw new SQLException("The connection is closed");
+		if(multiplexing)
+			checkSupported(name, args);
+
+		if(SESSION_SETTERS.contains(name)){
+			if(bound == null){
+				record(method, args);
+				return null;
+			}
+			if(multiplexing){
+				//- Replayed on every bind from now on
+				record(method, args);
+				apply(bound, key(method, args), args);
+				releaseIfIdle(false);
+				return null;
+			}
+		}
+
+		if(bound == null){
+			final String setter = SESSION_GETTERS.get(name);
+			if(setter != null && arity == 0){
+				final Object[] setting = settings.get(setter);
+				if(setting != null)
+					return setting[0];
+				if(name.equals("getAutoCommit"))
+					return Boolean.TRUE;
+			}
+			if(arity == 0 && (name.equals("commit") || name.equals("rollback") || name.equals("clearWarnings")))
+				return null;
+			if(arity == 0 && name.equals("getWarnings"))
+				return null;
+			bind();
+		}
+		if(multiplexing && PINNING.contains(name))
+			pinned = true;
+
+		try{
+			return method.invoke(bound, args);
+		}catch(InvocationTargetException e){
+			throw e.getCause();
+		}finally{
+			if(multiplexing)
+				releaseIfIdle(arity == 0 && (name.equals("commit") || name.equals("rollback")));
+		}
+	}
+}
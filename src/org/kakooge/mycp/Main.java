@@ -13,9 +13,7 @@ import java.util.Properties;
 import java.util.Random;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.Executors;
 import java.util.logging.Logger;
 
 public class Main {
@@ -63,7 +61,7 @@ public class Main {
 		try{
 			poolManager.init();
 			
-			ConnectionManager connectionManager = new ConnectionManager(configuration, mycpProperties, poolManager);
+			ConnectionManager connectionManager = new ConnectionManager(poolManager.getPool());
 			connectionManager.run();
 		}finally{
 			poolManager.destroy();
@@ -72,8 +70,29 @@ public class Main {
 		//- 
 	}
 	
+	/**
+	 * Drives the pool with an open loop {@link LoadGenerator}: a short warm up, a ramp, a staircase and a steady phase.
+	 * The wait for a connection and the end to end latency are reported per phase from the intended start of each request.
+	 * Each request holds its connection for tens of seconds, so at 100/s thousands are in flight at once: the executor is
+	 * unbounded so that the pool, not a fixed number of threads, limits them
+	 */
 	private static void testMyCPHeavyLoad(final String url, final Properties properties) throws InterruptedException{
-		TestVariableLoad.testMyCPHeavyLoad(url, properties);
+		final ExecutorService executorService = Executors.newCachedThreadPool();
+		final TestTask testTask = new TestTask();
+		testTask.setProperties(properties);
+		testTask.setUrl(url);
+		
+		final long minute = 60 * 1000;
+		final LoadGenerator loadGenerator = new LoadGenerator(executorService, testTask, true)
+			.addPhase("warmup", minute, LoadGenerator.ArrivalPattern.fixed(5))
+			.addPhase("ramp", 5 * minute, LoadGenerator.ArrivalPattern.ramp(5, 50, 5 * minute))
+			.addPhase("step", 5 * minute, LoadGenerator.ArrivalPattern.step(50, 10, minute))
+			.addPhase("steady", 5 * minute, LoadGenerator.ArrivalPattern.fixed(50));
+		try{
+			loadGenerator.run();
+		}finally{
+			executorService.shutdown();
+		}
 	}
 	
 	private static void testMyCPMultiple(final String url, final Properties properties){
@@ -208,17 +227,14 @@ public class Main {
 	}
 }
 
-class TestTask implements Runnable{
+/**
+ * One request of the heavy load test: borrow a connection, run a query and hold on to the connection for a while
+ */
+class TestTask implements LoadGenerator.Request{
 	
-	//private int missCount;
-	private final long id;
 	private String url;
 	private Properties properties;
 	
-	public TestTask(long id){
-		this.id = id;
-	}
-
 	public void setProperties(final Properties properties){
 		this.properties = properties;
 	}
@@ -227,177 +243,26 @@ class TestTask implements Runnable{
 		this.url = url;
 	}
 
-	private void process(){
-		Connection connection = null;
+	@Override
+	public void execute(final long id, final LoadGenerator.Acquisition acquisition) throws SQLException, InterruptedException{
+		final Connection connection = DriverManager.getConnection(url, properties);
+		acquisition.acquired();
 		try {
-			//System.out.println(String.format("Thread %d attempting to obtain connection", id));
-			connection = DriverManager.getConnection(url, properties);
-			/*
-			if(connection==null){
-				System.out.println(String.format("Thread %d could not get connection", id));
-				return;
-			}else if(!connection.isValid(0)){
-				++missCount;
-				System.out.println(String.format("Thread %d could not get a valid connection - missCount = %d", id, missCount));
-				return;						
-			}
-			missCount=0;
-			*/
-			
-			// do some serious random work here
-			Statement statement = null;
-			ResultSet result = null;
-			try{
-				statement = connection.createStatement();
-				result = statement.executeQuery("select count(*) from log");
-				if(result!=null && result.next())
-					System.out.println(String.format("Thread %d @ %s - result %d", id, new Date(), result.getInt(1)));
-				final long sleepFor = pause(3000 + new Random(System.currentTimeMillis()).nextInt(30 * 1000));
-				Thread.sleep(sleepFor);
-			} catch (InterruptedException ignore) {
-				
-			}finally{
-				try{
-					result.close();
-				}catch(Exception e){}
-				
-				try{
-					statement.close();
-				}catch(Exception e){}
-			}
-		} catch (SQLException e) {
-			e.printStackTrace();
+			// do some serious random work here. The statement and its result set are closed along with the connection
+			final Statement statement = connection.createStatement();
+			final ResultSet result = statement.executeQuery("select count(*) from log");
+			if(result!=null && result.next())
+				System.out.println(String.format("Thread %d @ %s - result %d", id, new Date(), result.getInt(1)));
+			final long sleepFor = pause(3000 + new Random(System.currentTimeMillis()).nextInt(30 * 1000));
+			Thread.sleep(sleepFor);
 		}finally{
-			try{
-				connection.close();
-			}catch(Exception e){}
+			connection.close();
 		}
 	}
 	
 	private long pause(int y){
 		return new Random(System.currentTimeMillis()).nextInt(y * 
-				new Random(System.currentTimeMillis()).nextInt(5))
+				(1 + new Random(System.currentTimeMillis()).nextInt(5)))
 				+ new Random(System.currentTimeMillis()).nextInt(y);
 	}
-	
-	@Override
-	public void run() {
-		process();
-		try {
-			final long sleepLength = pause(1000);
-			//System.out.println(String.format("Thread %d sleeping for %d", id, sleepLength));
-			Thread.sleep(sleepLength);
-		} catch (InterruptedException ignore) {}
-	}
-}
-
-
-class Cordinate<T>{
-	T x;
-	T y;
-	
-	public Cordinate(T x, T y){
-		this.x = x;
-		this.y = y;
-	}
-}
-
-class TaskGenerator implements Runnable{
-	
-	/**
-	 * The task queue
-	 */
-	final ExecutorService executor;
-	
-	final long min;
-	final long max;
-	final String url;
-	final Properties properties;
-	
-	final static Logger logger = Logger.getLogger(TaskGenerator.class.getName());
-	
-	public TaskGenerator(final ExecutorService executor, final long min, final long max, final String url, final Properties properties){
-		this.executor = executor;
-		this.min = min;
-		this.max = max;
-		this.url = url;
-		this.properties = properties;
-	}
-	
-	private long taskCount = 1;
-	
-	@Override
-	public void run() {
-		final long noTasks = getDesiredTaskNo();
-		logger.info(String.format("Adding %d", noTasks));
-		for(int idx=0; idx<noTasks; ++idx){
-			final TestTask testTask = new TestTask(taskCount++);
-			testTask.setProperties(properties);
-			testTask.setUrl(url);
-			executor.execute(testTask);
-			/*try {
-				Thread.sleep(1000);
-			} catch (InterruptedException e) {
-				e.printStackTrace();
-			}*/
-		}
-		//taskCount += noTasks;
-	}
-	
-	/**
-	 * used to keep the previous cordinate as it will be used to generate the next cordinate
-	 */
-	private Cordinate<Double> previous = new Cordinate<Double>(new Double(0), new Double(0));
-	
-	/**
-	 * Get the desired number of tasks to generate; using {@code f(x) = min*(M-(M-1)*cos(*(1+R())))}
-	 * where {@code M} is the max factor that controls the maximum of the function and {@code R} is random
-	 * generator between 0 and 1. {@code min} is the minimum number of threads in the task queue
-	 * @param previous
-	 * @return
-	 */
-	private long getDesiredTaskNo(){
-		final double newX = previous.x + Math.random() * 0.1;
-		previous.x = newX;
-		final double angle = Math.PI * newX;
-		/*
-		final double min = 20;
-		*/
-		final double maxfactor = (double)max/(double)min/2;
-		
-		final double newY = min * (maxfactor - (maxfactor - 1) * Math.cos(angle * (1 + Math.random())));
-		previous.y = newY;
-		return (long)newY;
-	}
-}
-
-class TestVariableLoad{
-	
-	private final static Logger logger = Logger.getLogger(TestVariableLoad.class.getName());
-	
-	private static boolean addNewTask(final ThreadPoolExecutor executor){
-		final double completedTasks = (double)executor.getCompletedTaskCount();
-		final double totalTasks = (double)executor.getTaskCount();
-		final int activeTasks = executor.getActiveCount();
-		final double load = completedTasks/totalTasks;
-		logger.info(String.format("Status: active = %d, completed = %s, total = %s, load = %s", activeTasks, completedTasks, totalTasks, load));
-		return (load >= 0.95);
-	}
-	
-	public static void testMyCPHeavyLoad(final String url, final Properties properties) throws InterruptedException{
-		final int minPoolSize = 1000;
-		final int maxPoolSize = 20000;
-		final ThreadPoolExecutor executorService = new ThreadPoolExecutor(minPoolSize, maxPoolSize, Long.MAX_VALUE, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>());
-		final TaskGenerator taskGenerator = new TaskGenerator(executorService, minPoolSize, maxPoolSize, url, properties);
-		
-		final int maxIteration = 10;
-		int iterationCount = 0;
-		while(iterationCount++ < maxIteration){
-			taskGenerator.run();
-			while(!addNewTask(executorService))
-				Thread.sleep(5000);
-		}
-		
-		while(executorService.awaitTermination(Long.MAX_VALUE, TimeUnit.SECONDS));
-	}
 }
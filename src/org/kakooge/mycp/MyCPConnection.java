@@ -16,10 +16,12 @@ import java.sql.SQLXML;
 import java.sql.Savepoint;
 import java.sql.Statement;
 import java.sql.Struct;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Properties;
 import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 import java.util.logging.Logger;
 
 
@@ -29,10 +31,91 @@ import java.util.logging.Logger;
  *
  */
 public class MyCPConnection implements Connection{
-	final private Connection underlyingConnection;
+	/**
+	 * Only replaced by {@link #exchangeUnderlying(MyCPConnection)}, on the thread holding the lease
+	 */
+	private Connection underlyingConnection;
+	
+	/**
+	 * The auto commit mode last set through this connection, {@code null} until then. Some drivers refuse to report it
+	 * once the connection died, which is when {@link StatementHandler} needs it
+	 */
+	private Boolean autoCommit;
 	final private PoolManager poolManager;
 	private int connectionId;
 	
+	/**
+	 * When the underlying connection was opened, in {@link PoolManager} generations. A connection older than a fatal
+	 * error seen on the pool is suspect, see {@link PoolManager#connectionFailed(MyCPConnection, SQLException)}
+	 */
+	private volatile long generation;
+	
+	/**
+	 * Set when the underlying connection threw a fatal error, it is closed instead of going back to the pool
+	 */
+	private volatile boolean broken = false;
+	
+	/**
+	 * The session state of the underlying connection when it was opened, {@code null} for a connection created outside
+	 * the pool, whose session is not restored
+	 */
+	private SessionState session;
+	
+	/**
+	 * The {@link SessionState} parts the current lease left changed, restored by {@link #restoreSession()}. Only touched
+	 * by the thread holding the lease
+	 */
+	private int sessionChanges = 0;
+	
+	/**
+	 * The number of the current lease while the connection is held by a borrower, 0 while it is idle in the pool. The
+	 * wrapper is created once per underlying connection and reused for every lease, so this guards against a second
+	 * {@link #close()} putting the same wrapper into the pool twice, and against a reclaim meant for an earlier lease
+	 * ending the current one, see {@link #discard(int)}
+	 */
+	private volatile int leased = 0;
+	
+	/**
+	 * The number of the last lease, only touched by the thread taking the lease
+	 */
+	private int leases = 0;
+	
+	final private static AtomicIntegerFieldUpdater<MyCPConnection> LEASED = 
+			AtomicIntegerFieldUpdater.newUpdater(MyCPConnection.class, "leased");
+	
+	/**
+	 * The thread that took the current lease, written before {@link #leased} is set
+	 */
+	private Thread owner;
+	
+	/**
+	 * The {@link LogicalConnection} the current lease is bound to, {@code null} for a lease handed out directly
+	 */
+	private volatile LogicalConnection logical;
+	
+	/**
+	 * Number of times the owner took this connection again with re-entrant leases on, each one is undone by a
+	 * {@link #close()}. Only touched by the owner thread
+	 */
+	private int reentries = 0;
+	
+	/**
+	 * The hold time limit of the leases, created by the {@link PoolManager} on the first lease and reused afterwards
+	 */
+	private TimerWheel.Task holdTimeout;
+	
+	/**
+	 * {@link System#nanoTime()} when the current lease started and the nanoseconds its borrower waited, only kept for
+	 * the {@link LeaseJournal}
+	 */
+	private long leasedAt;
+	private long leaseWait;
+	
+	/**
+	 * Statements created through this connection that have not been closed yet. The list is reused across leases
+	 */
+	final private ArrayList<StatementHandler> openStatements = new ArrayList<StatementHandler>();
+	
 	final private boolean debug = System.getProperty("debug")!=null;
 	
 	final static private Logger logger = Logger.getLogger(MyCPConnection.class.getName());
@@ -47,6 +130,7 @@ public class MyCPConnection implements Connection{
 	public MyCPConnection(final PoolManager poolManager, final Connection underlyingConnection){
 		this.poolManager = poolManager;
 		this.underlyingConnection = underlyingConnection;
+		this.generation = poolManager != null ? poolManager.nextGeneration() : 0;
 	}
 	
 	private void validateUnderlyingConnection() throws SQLException{
@@ -54,6 +138,21 @@ public class MyCPConnection implements Connection{
 			throw new SQLException("Invalid underlying connection");
 	}
 	
+	/**
+	 * Hands a failure of the underlying connection to {@link PoolManager#connectionFailed(MyCPConnection, SQLException)},
+	 * which marks this connection broken and evicts its generation if the error is fatal
+	 * @return {@code e}, for the caller to throw
+	 */
+	private SQLException failed(final SQLException e){
+		if(poolManager != null)
+			poolManager.connectionFailed(this, e);
+		return e;
+	}
+	
+	PoolManager getPoolManager() {
+		return poolManager;
+	}
+	
 	public int getConnectionId() {
 		return connectionId;
 	}
@@ -65,167 +164,496 @@ public class MyCPConnection implements Connection{
 	public Connection getUnderlyingConnection() {
 		return underlyingConnection;
 	}
+	
+	/**
+	 * Marks this connection as handed out to a borrower. Called by {@link PoolManager#takeConnection()}
+	 */
+	void lease(final Thread owner){
+		this.owner = owner;
+		reentries = 0;
+		//- 0 means idle
+		if(++leases == 0)
+			++leases;
+		leased = leases;
+	}
+	
+	/**
+	 * @return the number of the current lease, 0 if the connection is not leased
+	 */
+	int getLease(){
+		return leased;
+	}
+	
+	/**
+	 * @return {@code true} if {@code thread} took the current lease on this connection
+	 */
+	boolean isLeasedBy(final Thread thread){
+		return leased != 0 && owner == thread;
+	}
+	
+	/**
+	 * @return the thread holding the current lease, {@code null} if the connection is not leased
+	 */
+	Thread getOwner(){
+		return leased != 0 ? owner : null;
+	}
+	
+	TimerWheel.Task getHoldTimeout(){
+		return holdTimeout;
+	}
+	
+	void setHoldTimeout(final TimerWheel.Task holdTimeout){
+		this.holdTimeout = holdTimeout;
+	}
+	
+	long getLeasedAt(){
+		return leasedAt;
+	}
+	
+	long getLeaseWait(){
+		return leaseWait;
+	}
+	
+	void setLeaseTimes(final long leasedAt, final long leaseWait){
+		this.leasedAt = leasedAt;
+		this.leaseWait = leaseWait;
+	}
+	
+	/**
+	 * Hands this connection again to its owner, the lease ends on the matching number of {@link #close()} calls
+	 */
+	void reenter(){
+		++reentries;
+	}
+	
+	/**
+	 * Swaps the underlying connections of this connection and of {@code spare}, an idle connection leased for the
+	 * purpose. Used to carry on a lease on a fresh connection after the underlying connection died, see
+	 * {@link PoolManager#replaceUnderlying(MyCPConnection, long)}. The auto commit mode is carried over, and so are the
+	 * read only flag, isolation level and catalog when the dead connection still reports them
+	 */
+	void exchangeUnderlying(final MyCPConnection spare){
+		final Connection dead = underlyingConnection;
+		final Connection fresh = spare.underlyingConnection;
+		try{
+			fresh.setAutoCommit(isAutoCommit());
+			fresh.setReadOnly(dead.isReadOnly());
+			fresh.setTransactionIsolation(dead.getTransactionIsolation());
+			final String catalog = dead.getCatalog();
+			if(catalog != null)
+				fresh.setCatalog(catalog);
+		}catch(SQLException ignore){}
+		underlyingConnection = fresh;
+		spare.underlyingConnection = dead;
+		spare.autoCommit = null;
+		final long freshGeneration = spare.generation;
+		spare.generation = generation;
+		generation = freshGeneration;
+		final boolean freshBroken = spare.broken;
+		spare.broken = broken;
+		broken = freshBroken;
+		final SessionState freshSession = spare.session;
+		spare.session = session;
+		session = freshSession;
+		//- The settings carried over may differ from what the fresh connection was opened with, the variables set by
+		//- the lease died with the old connection
+		if(session != null)
+			sessionChanges = SessionState.AUTO_COMMIT | SessionState.READ_ONLY | SessionState.ISOLATION | SessionState.CATALOG;
+	}
+	
+	void setSessionState(final SessionState session){
+		this.session = session;
+	}
+	
+	private void sessionChanged(final int part, final boolean changed){
+		sessionChanges = changed ? sessionChanges | part : sessionChanges & ~part;
+	}
+	
+	/**
+	 * Notes that the current lease runs or prepares {@code sql}, which may change the session variables set by the
+	 * session init SQL
+	 */
+	void trackSessionSql(final String sql){
+		if(session != null && (sessionChanges & SessionState.VARIABLES) == 0 && session.isChangedBy(sql))
+			sessionChanges |= SessionState.VARIABLES;
+	}
+	
+	/**
+	 * Restores the session state the lease changed, called by {@link JdbcConnectionFactory#reset(MyCPConnection)} when
+	 * the connection goes back into the pool
+	 */
+	void restoreSession() throws SQLException{
+		final int changes = sessionChanges;
+		if(changes == 0)
+			return;
+		sessionChanges = 0;
+		session.restore(underlyingConnection, changes);
+		if((changes & SessionState.AUTO_COMMIT) != 0)
+			autoCommit = Boolean.valueOf(session.autoCommit);
+	}
+	
+	long getGeneration(){
+		return generation;
+	}
+	
+	void setGeneration(final long generation){
+		this.generation = generation;
+	}
+	
+	boolean isBroken(){
+		return broken;
+	}
+	
+	void markBroken(){
+		broken = true;
+	}
+	
+	/**
+	 * Called when a {@link LogicalConnection} binds to this connection
+	 */
+	void setLogical(final LogicalConnection logical){
+		this.logical = logical;
+	}
+	
+	/**
+	 * @return the connection the application holds for the current lease, returned by {@code Statement.getConnection()}
+	 */
+	Connection getHandle(){
+		final LogicalConnection current = logical;
+		return current != null ? current.getProxy() : this;
+	}
+	
+	/**
+	 * Rejects SQL that the {@link LogicalConnection} of the current lease cannot run, called before a statement executes
+	 * @throws SQLException if the SQL changes session state a multiplexed connection cannot keep
+	 */
+	void checkSql(final String sql) throws SQLException{
+		final LogicalConnection current = logical;
+		if(current != null)
+			current.checkSql(sql);
+		trackSessionSql(sql);
+	}
+	
+	boolean hasOpenStatements(){
+		synchronized(openStatements){
+			return !openStatements.isEmpty();
+		}
+	}
+	
+	void register(final StatementHandler statement){
+		synchronized(openStatements){
+			openStatements.add(statement);
+		}
+	}
+	
+	void unregister(final StatementHandler statement){
+		boolean lastClosed = false;
+		synchronized(openStatements){
+			//- Statements are usually closed in the reverse order they were created in
+			for(int idx = openStatements.size() - 1; idx >= 0; --idx){
+				if(openStatements.get(idx) == statement){
+					openStatements.remove(idx);
+					lastClosed = openStatements.isEmpty();
+					break;
+				}
+			}
+		}
+		//- Outside the lock, the logical connection may give this connection back to the pool
+		final LogicalConnection current = logical;
+		if(lastClosed && current != null)
+			current.statementsClosed();
+	}
+	
+	/**
+	 * Closes the statements left open by the borrower. Called by {@link JdbcConnectionFactory#reset(MyCPConnection)}
+	 * when the connection goes back into the pool
+	 */
+	void closeStatements(){
+		synchronized(openStatements){
+			for(int idx = openStatements.size() - 1; idx >= 0; --idx)
+				openStatements.get(idx).closeStatement();
+			openStatements.clear();
+		}
+	}
 
 	@Override
 	public boolean isWrapperFor(Class<?> arg0) throws SQLException {
 		validateUnderlyingConnection();
-		return underlyingConnection.isWrapperFor(arg0);
+		try{
+			return underlyingConnection.isWrapperFor(arg0);
+		}catch(SQLException e){
+			throw failed(e);
+		}
 	}
 
 	@Override
 	public <T> T unwrap(Class<T> arg0) throws SQLException {
 		validateUnderlyingConnection();
-		return underlyingConnection.unwrap(arg0);
+		try{
+			return underlyingConnection.unwrap(arg0);
+		}catch(SQLException e){
+			throw failed(e);
+		}
 	}
 
 	@Override
 	public void clearWarnings() throws SQLException {
 		validateUnderlyingConnection();
-		underlyingConnection.clearWarnings();
+		try{
+			underlyingConnection.clearWarnings();
+		}catch(SQLException e){
+			throw failed(e);
+		}
 	}
 
 	@Override
 	public void close() throws SQLException {
-		try {
-			if(!poolManager.returnConnection(this)){
-				if(debug)
-					System.out.println("Unable to return connection .... destroying underlying connection");
-				try{
-					if(underlyingConnection!=null)
-						underlyingConnection.close();
-				}catch(SQLException ignore){}
-			}
-		} catch (InterruptedException e) {
-			Thread.currentThread().interrupt();
-			throw new SQLException(e);
+		if(underlyingConnection == null)
+			return;
+		final int lease = leased;
+		if(reentries > 0 && lease != 0){
+			--reentries;
+			return;
 		}
+		if(lease == 0 || !LEASED.compareAndSet(this, lease, 0))
+			return;
+		owner = null;
+		logical = null;
+		poolManager.returnLease(this);
+	}
+
+	/**
+	 * Ends the lease and closes the underlying connection instead of returning it to the pool, used when the
+	 * connection state could not be restored or the lease was held too long
+	 */
+	void discard(){
+		discard(leased);
+	}
+	
+	/**
+	 * Discards the connection, see {@link #discard()}, if {@code lease} is still the current lease
+	 * @param lease the number of the lease to end, see {@link #getLease()}
+	 * @return {@code false} if that lease had already ended
+	 */
+	boolean discard(final int lease){
+		if(underlyingConnection == null || lease == 0 || !LEASED.compareAndSet(this, lease, 0))
+			return false;
+		owner = null;
+		logical = null;
+		closeStatements();
+		poolManager.discardLease(this);
+		return true;
 	}
 
 	@Override
 	public void commit() throws SQLException {
 		validateUnderlyingConnection();
-		underlyingConnection.commit();
+		try{
+			underlyingConnection.commit();
+		}catch(SQLException e){
+			throw failed(e);
+		}
 	}
 
 	@Override
 	public Array createArrayOf(String arg0, Object[] arg1) throws SQLException {
 		validateUnderlyingConnection();
-		return underlyingConnection.createArrayOf(arg0, arg1);
+		try{
+			return underlyingConnection.createArrayOf(arg0, arg1);
+		}catch(SQLException e){
+			throw failed(e);
+		}
 	}
 
 	@Override
 	public Blob createBlob() throws SQLException {
 		validateUnderlyingConnection();
-		return underlyingConnection.createBlob();
+		try{
+			return underlyingConnection.createBlob();
+		}catch(SQLException e){
+			throw failed(e);
+		}
 	}
 
 	@Override
 	public Clob createClob() throws SQLException {
 		validateUnderlyingConnection();
-		return underlyingConnection.createClob();
+		try{
+			return underlyingConnection.createClob();
+		}catch(SQLException e){
+			throw failed(e);
+		}
 	}
 
 	@Override
 	public NClob createNClob() throws SQLException {
 		validateUnderlyingConnection();
-		return underlyingConnection.createNClob();
+		try{
+			return underlyingConnection.createNClob();
+		}catch(SQLException e){
+			throw failed(e);
+		}
 	}
 
 	@Override
 	public SQLXML createSQLXML() throws SQLException {
 		validateUnderlyingConnection();
-		return underlyingConnection.createSQLXML();
+		try{
+			return underlyingConnection.createSQLXML();
+		}catch(SQLException e){
+			throw failed(e);
+		}
 	}
 
 	@Override
 	public Statement createStatement() throws SQLException {
 		validateUnderlyingConnection();
-		return underlyingConnection.createStatement();
+		try{
+			return StatementHandler.wrap(this, underlyingConnection.createStatement());
+		}catch(SQLException e){
+			throw failed(e);
+		}
 	}
 
 	@Override
 	public Statement createStatement(int arg0, int arg1) throws SQLException {
 		validateUnderlyingConnection();
-		return underlyingConnection.createStatement(arg0, arg1);
+		try{
+			return StatementHandler.wrap(this, underlyingConnection.createStatement(arg0, arg1));
+		}catch(SQLException e){
+			throw failed(e);
+		}
 	}
 
 	@Override
 	public Statement createStatement(int arg0, int arg1, int arg2)
 			throws SQLException {
 		validateUnderlyingConnection();
-		return underlyingConnection.createStatement(arg0, arg0, arg2);
+		try{
+			return StatementHandler.wrap(this, underlyingConnection.createStatement(arg0, arg1, arg2));
+		}catch(SQLException e){
+			throw failed(e);
+		}
 	}
 
 	@Override
 	public Struct createStruct(String arg0, Object[] arg1) throws SQLException {
 		validateUnderlyingConnection();
-		return underlyingConnection.createStruct(arg0, arg1);
+		try{
+			return underlyingConnection.createStruct(arg0, arg1);
+		}catch(SQLException e){
+			throw failed(e);
+		}
 	}
 
 	@Override
 	public boolean getAutoCommit() throws SQLException {
 		validateUnderlyingConnection();
-		return underlyingConnection.getAutoCommit();
+		try{
+			return underlyingConnection.getAutoCommit();
+		}catch(SQLException e){
+			throw failed(e);
+		}
 	}
 
 	@Override
 	public String getCatalog() throws SQLException {
 		validateUnderlyingConnection();
-		return underlyingConnection.getCatalog();
+		try{
+			return underlyingConnection.getCatalog();
+		}catch(SQLException e){
+			throw failed(e);
+		}
 	}
 
 	@Override
 	public Properties getClientInfo() throws SQLException {
 		validateUnderlyingConnection();
-		return underlyingConnection.getClientInfo();
+		try{
+			return underlyingConnection.getClientInfo();
+		}catch(SQLException e){
+			throw failed(e);
+		}
 	}
 
 	@Override
 	public String getClientInfo(String arg0) throws SQLException {
 		validateUnderlyingConnection();
-		return underlyingConnection.getClientInfo(arg0);
+		try{
+			return underlyingConnection.getClientInfo(arg0);
+		}catch(SQLException e){
+			throw failed(e);
+		}
 	}
 
 	@Override
 	public int getHoldability() throws SQLException {
 		validateUnderlyingConnection();
-		return underlyingConnection.getHoldability();
+		try{
+			return underlyingConnection.getHoldability();
+		}catch(SQLException e){
+			throw failed(e);
+		}
 	}
 
 	@Override
 	public DatabaseMetaData getMetaData() throws SQLException {
 		validateUnderlyingConnection();
-		return underlyingConnection.getMetaData();
+		try{
+			return underlyingConnection.getMetaData();
+		}catch(SQLException e){
+			throw failed(e);
+		}
 	}
 
 	@Override
 	public int getTransactionIsolation() throws SQLException {
 		validateUnderlyingConnection();
-		return underlyingConnection.getTransactionIsolation();
+		try{
+			return underlyingConnection.getTransactionIsolation();
+		}catch(SQLException e){
+			throw failed(e);
+		}
 	}
 
 	@Override
 	public Map<String, Class<?>> getTypeMap() throws SQLException {
 		validateUnderlyingConnection();
-		return underlyingConnection.getTypeMap();
+		try{
+			return underlyingConnection.getTypeMap();
+		}catch(SQLException e){
+			throw failed(e);
+		}
 	}
 
 	@Override
 	public SQLWarning getWarnings() throws SQLException {
 		validateUnderlyingConnection();
-		return underlyingConnection.getWarnings();
+		try{
+			return underlyingConnection.getWarnings();
+		}catch(SQLException e){
+			throw failed(e);
+		}
 	}
 
 	@Override
 	public boolean isClosed() throws SQLException {
 		validateUnderlyingConnection();
-		return underlyingConnection.isClosed();
+		try{
+			return underlyingConnection.isClosed();
+		}catch(SQLException e){
+			throw failed(e);
+		}
 	}
 
 	@Override
 	public boolean isReadOnly() throws SQLException {
 		validateUnderlyingConnection();
-		return underlyingConnection.isReadOnly();
+		try{
+			return underlyingConnection.isReadOnly();
+		}catch(SQLException e){
+			throw failed(e);
+		}
 	}
 
 	@Override
@@ -240,98 +668,178 @@ public class MyCPConnection implements Connection{
 	@Override
 	public String nativeSQL(String arg0) throws SQLException {
 		validateUnderlyingConnection();
-		return underlyingConnection.nativeSQL(arg0);
+		try{
+			return underlyingConnection.nativeSQL(arg0);
+		}catch(SQLException e){
+			throw failed(e);
+		}
 	}
 
 	@Override
 	public CallableStatement prepareCall(String arg0) throws SQLException {
 		validateUnderlyingConnection();
-		return underlyingConnection.prepareCall(arg0);
+		try{
+			return StatementHandler.wrap(this, underlyingConnection.prepareCall(arg0), arg0);
+		}catch(SQLException e){
+			throw failed(e);
+		}
 	}
 
 	@Override
 	public CallableStatement prepareCall(String arg0, int arg1, int arg2)
 			throws SQLException {
 		validateUnderlyingConnection();
-		return underlyingConnection.prepareCall(arg0, arg1, arg2);
+		try{
+			return StatementHandler.wrap(this, underlyingConnection.prepareCall(arg0, arg1, arg2), arg0);
+		}catch(SQLException e){
+			throw failed(e);
+		}
 	}
 
 	@Override
 	public CallableStatement prepareCall(String arg0, int arg1, int arg2,
 			int arg3) throws SQLException {
 		validateUnderlyingConnection();
-		return underlyingConnection.prepareCall(arg0, arg1, arg2, arg3);
+		try{
+			return StatementHandler.wrap(this, underlyingConnection.prepareCall(arg0, arg1, arg2, arg3), arg0);
+		}catch(SQLException e){
+			throw failed(e);
+		}
 	}
 
 	@Override
 	public PreparedStatement prepareStatement(String sql) throws SQLException {
 		validateUnderlyingConnection();
-		return underlyingConnection.prepareStatement(sql);
+		try{
+			return StatementHandler.wrap(this, underlyingConnection.prepareStatement(sql), sql);
+		}catch(SQLException e){
+			throw failed(e);
+		}
 	}
 
 	@Override
 	public PreparedStatement prepareStatement(String sql, int autoGeneratedKeys)
 			throws SQLException {
 		validateUnderlyingConnection();
-		return underlyingConnection.prepareStatement(sql, autoGeneratedKeys);
+		try{
+			return StatementHandler.wrap(this, underlyingConnection.prepareStatement(sql, autoGeneratedKeys), sql);
+		}catch(SQLException e){
+			throw failed(e);
+		}
 	}
 
 	@Override
 	public PreparedStatement prepareStatement(String sql, int[] columnIndexes)
 			throws SQLException {
 		validateUnderlyingConnection();
-		return underlyingConnection.prepareStatement(sql, columnIndexes);
+		try{
+			return StatementHandler.wrap(this, underlyingConnection.prepareStatement(sql, columnIndexes), sql);
+		}catch(SQLException e){
+			throw failed(e);
+		}
 	}
 
 	@Override
 	public PreparedStatement prepareStatement(String sql, String[] columnNames)
 			throws SQLException {
 		validateUnderlyingConnection();
-		return underlyingConnection.prepareStatement(sql, columnNames);
+		try{
+			return StatementHandler.wrap(this, underlyingConnection.prepareStatement(sql, columnNames), sql);
+		}catch(SQLException e){
+			throw failed(e);
+		}
 	}
 
 	@Override
 	public PreparedStatement prepareStatement(String sql, int resultSetType, int resultSetConcurrency)
 			throws SQLException {
 		validateUnderlyingConnection();
-		return underlyingConnection.prepareStatement(sql, resultSetType, resultSetConcurrency);
+		try{
+			return StatementHandler.wrap(this, underlyingConnection.prepareStatement(sql, resultSetType, resultSetConcurrency), sql);
+		}catch(SQLException e){
+			throw failed(e);
+		}
 	}
 
 	@Override
 	public PreparedStatement prepareStatement(String sql, int resultSetType, int resultSetConcurrency,
 			int resultSetHoldability) throws SQLException {
 		validateUnderlyingConnection();
-		return underlyingConnection.prepareStatement(sql, resultSetType, resultSetConcurrency, resultSetHoldability);
+		try{
+			return StatementHandler.wrap(this, underlyingConnection.prepareStatement(sql, resultSetType, resultSetConcurrency, resultSetHoldability), sql);
+		}catch(SQLException e){
+			throw failed(e);
+		}
 	}
 
 	@Override
 	public void releaseSavepoint(Savepoint savepoint) throws SQLException {
 		validateUnderlyingConnection();
-		underlyingConnection.releaseSavepoint(savepoint);
+		try{
+			underlyingConnection.releaseSavepoint(savepoint);
+		}catch(SQLException e){
+			throw failed(e);
+		}
 	}
 
 	@Override
 	public void rollback() throws SQLException {
 		validateUnderlyingConnection();
-		underlyingConnection.rollback();
+		try{
+			underlyingConnection.rollback();
+		}catch(SQLException e){
+			throw failed(e);
+		}
 	}
 
 	@Override
 	public void rollback(Savepoint savepoint) throws SQLException {
 		validateUnderlyingConnection();
-		underlyingConnection.rollback(savepoint);
+		try{
+			underlyingConnection.rollback(savepoint);
+		}catch(SQLException e){
+			throw failed(e);
+		}
 	}
 
 	@Override
 	public void setAutoCommit(boolean autoCommit) throws SQLException {
 		validateUnderlyingConnection();
-		underlyingConnection.setAutoCommit(autoCommit);
+		try{
+			underlyingConnection.setAutoCommit(autoCommit);
+		}catch(SQLException e){
+			throw failed(e);
+		}
+		this.autoCommit = Boolean.valueOf(autoCommit);
+		if(session != null)
+			sessionChanged(SessionState.AUTO_COMMIT, autoCommit != session.autoCommit);
+	}
+	
+	/**
+	 * @return the auto commit mode last set through this connection. If none was, what the driver reports, or the
+	 * JDBC default of {@code true} when the driver cannot tell
+	 */
+	boolean isAutoCommit(){
+		final Boolean current = autoCommit;
+		if(current != null)
+			return current.booleanValue();
+		try{
+			return underlyingConnection.getAutoCommit();
+		}catch(SQLException e){
+			return true;
+		}
 	}
 
 	@Override
 	public void setCatalog(String catalog) throws SQLException {
 		validateUnderlyingConnection();
-		underlyingConnection.setCatalog(catalog);
+		try{
+			underlyingConnection.setCatalog(catalog);
+		}catch(SQLException e){
+			throw failed(e);
+		}
+		if(session != null)
+			sessionChanged(SessionState.CATALOG, !session.isCatalog(catalog));
 	}
 
 	@Override
@@ -352,141 +860,66 @@ public class MyCPConnection implements Connection{
 	@Override
 	public void setHoldability(int holdability) throws SQLException {
 		validateUnderlyingConnection();
-		underlyingConnection.setHoldability(holdability);
+		try{
+			underlyingConnection.setHoldability(holdability);
+		}catch(SQLException e){
+			throw failed(e);
+		}
 	}
 
 	@Override
 	public void setReadOnly(boolean readOnly) throws SQLException {
 		validateUnderlyingConnection();
-		underlyingConnection.setReadOnly(readOnly);
+		try{
+			underlyingConnection.setReadOnly(readOnly);
+		}catch(SQLException e){
+			throw failed(e);
+		}
+		if(session != null)
+			sessionChanged(SessionState.READ_ONLY, readOnly != session.readOnly);
 	}
 
 	@Override
 	public Savepoint setSavepoint() throws SQLException {
 		validateUnderlyingConnection();
-		return underlyingConnection.setSavepoint();
+		try{
+			return underlyingConnection.setSavepoint();
+		}catch(SQLException e){
+			throw failed(e);
+		}
 	}
 
 	@Override
 	public Savepoint setSavepoint(String name) throws SQLException {
 		validateUnderlyingConnection();
-		return underlyingConnection.setSavepoint(name);
+		try{
+			return underlyingConnection.setSavepoint(name);
+		}catch(SQLException e){
+			throw failed(e);
+		}
 	}
 
 	@Override
 	public void setTransactionIsolation(int level) throws SQLException {
 		validateUnderlyingConnection();
-		underlyingConnection.setTransactionIsolation(level);
+		try{
+			underlyingConnection.setTransactionIsolation(level);
+		}catch(SQLException e){
+			throw failed(e);
+		}
+		if(session != null)
+			sessionChanged(SessionState.ISOLATION, level != session.isolation);
 	}
 
 	@Override
 	public void setTypeMap(Map<String, Class<?>> map) throws SQLException {
 		validateUnderlyingConnection();
-		underlyingConnection.setTypeMap(map);
-	}
-	
-}
-
-class Configuration{
-
-	final public static String MYCP_MAX_CONNECTIONS = "mycp.max.connections";
-	final public static String MYCP_MIN_CONNECTIONS = "mycp.min.connections";
-	final public static String MYCP_KEEP_ALIVE_SQL = "mycp.keep.alive.sql";
-	final public static String MYCP_DRIVER = "mycp.driver";
-	final public static String MYCP_DRIVER_URL = "mycp.driver.url";
-	final public static String MYCP_MAX_WAIT = "mycp.max.wait";
-	
-	final private Properties properties;
-	
-	public Configuration(final Properties customProperties) throws MyCPException{
-		properties = initDefaultProperties();
-		initCustomProperties(customProperties);
-	}
-		
-	private void initCustomProperties(final Properties customProperties) throws MyCPException{
 		try{
-			int minConnections = 0, maxConnections = 0;
-			if(!StringUtil.Empty(customProperties.getProperty(MYCP_MAX_CONNECTIONS))){
-				maxConnections = new Integer(customProperties.getProperty(MYCP_MAX_CONNECTIONS));
-				this.properties.put(MYCP_MAX_CONNECTIONS, new Integer(maxConnections));
-			}
-			
-			if(!StringUtil.Empty(customProperties.getProperty(MYCP_MIN_CONNECTIONS))){
-				minConnections = new Integer(customProperties.getProperty(MYCP_MIN_CONNECTIONS));
-				this.properties.put(MYCP_MIN_CONNECTIONS, new Integer(minConnections));
-			}
-			
-			if(minConnections<0 || maxConnections<0 || minConnections > maxConnections)
-				throw new MyCPException("MyCP Config failure, minConnections is greater than maxConnections");
-			
-			if(!StringUtil.Empty(customProperties.getProperty(MYCP_MAX_WAIT)))
-				properties.put(MYCP_MAX_WAIT, Long.parseLong(customProperties.getProperty(MYCP_MAX_WAIT)));
-			
-		}catch(NumberFormatException e){
-			throw new MyCPException(String.format("MyCP Config failure, check that '%s', '%s', " +
-					"'%s' are valid numbers", MYCP_MAX_CONNECTIONS, MYCP_MIN_CONNECTIONS, MYCP_MAX_WAIT), e);
-		}
-		
-		final String keepAliveSQL = customProperties.getProperty(MYCP_KEEP_ALIVE_SQL);
-		if(!StringUtil.Empty(keepAliveSQL))
-			properties.put(MYCP_KEEP_ALIVE_SQL, keepAliveSQL);
-		
-		final String mycpDriver = customProperties.getProperty(MYCP_DRIVER);
-		if(StringUtil.Empty(mycpDriver))
-			throw new MyCPException(String.format("MyCP Config failure, specify database driver with '%s'", MYCP_MAX_CONNECTIONS, MYCP_DRIVER));
-		properties.put(MYCP_DRIVER, mycpDriver);
-		
-		final String url = customProperties.getProperty(MYCP_DRIVER_URL);
-		if(StringUtil.Empty(url))
-			throw new MyCPException(String.format("MyCP Config failure, specify database driver url with '%s'", MYCP_DRIVER_URL));
-		properties.put(MYCP_DRIVER_URL, url);
-	}
-	
-	private Properties initDefaultProperties(){
-		final Properties defaultProperties = new Properties();
-		defaultProperties.put(MYCP_DRIVER_URL, "");
-		defaultProperties.put(MYCP_KEEP_ALIVE_SQL, "");
-		defaultProperties.put(MYCP_MAX_CONNECTIONS, new Integer(Integer.MAX_VALUE));
-		defaultProperties.put(MYCP_MIN_CONNECTIONS, new Integer(10));
-		defaultProperties.put(MYCP_KEEP_ALIVE_SQL, "");
-		defaultProperties.put(MYCP_DRIVER, "");
-		defaultProperties.put(MYCP_DRIVER_URL, "");
-		defaultProperties.put(MYCP_MAX_WAIT, new Long(Long.MAX_VALUE));
-		
-		return defaultProperties;
-	}
-	
-	public long getMaxWaitForConnection() {
-		return (Long)properties.get(MYCP_MAX_WAIT);
-	}
-
-	public String getUrl() {
-		return properties.get(MYCP_DRIVER_URL).toString();
-	}
-
-	public String getDriver() {
-		return properties.get(MYCP_DRIVER).toString();
-	}
-
-	public int getMaxConnections() {
-		return (Integer)properties.get(MYCP_MAX_CONNECTIONS);
-	}
-
-	/**
-	 * 
-	 * @return
-	 */
-	public int getMinConnections() {
-		return (Integer)properties.get(MYCP_MIN_CONNECTIONS);
-	}
-
-	/**
-	 * Keep alive SQL specific to the connecting database such as {@code select 1} for a MySQL database
-	 * @return the SQL statement or and empty string if none was specified
-	 */
-	public String getKeepAliveSQL() {
-		return properties.get(MYCP_KEEP_ALIVE_SQL).toString();
+			underlyingConnection.setTypeMap(map);
+		}catch(SQLException e){
+			throw failed(e);
+		}
 	}
-		
+	
 }
 
@@ -0,0 +1,374 @@
+package org.kakooge.mycp;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.SQLTimeoutException;
+import java.util.Properties;
+
+import javax.sql.ConnectionPoolDataSource;
+import javax.sql.DataSource;
+import javax.sql.PooledConnection;
+
+/**
+ * {@link DataSource} entry point to the pool. It holds its own {@link PoolManager} so {@link #getConnection()} goes straight
+ * to the pool, without going through the {@link java.sql.DriverManager} driver lookup and {@link JdbcDriver#acceptsURL(String)}.
+ * <p>
+ * Configure it either from the properties file used with the {@code jdbc:kiboel:} url
+ * </p>
+ * <pre>
+ * {@code
+ * MyCPDataSource dataSource = new MyCPDataSource("kjdbc.properties");
+ * }
+ * </pre>
+ * <p>
+ * or bean style, which is what frameworks expecting a {@link DataSource} do
+ * </p>
+ * <pre>
+ * {@code
+ * MyCPDataSource dataSource = new MyCPDataSource();
+ * dataSource.setDriver("com.mysql.jdbc.Driver");
+ * dataSource.setUrl("jdbc:mysql://localhost:3306/nafasi");
+ * dataSource.setUser("nfsuser");
+ * dataSource.setMaxConnections(50);
+ * }
+ * </pre>
+ * <p>
+ * The pool is created on the first {@link #getConnection()}, the setters cannot be used after that. {@link #close()} shuts
+ * the pool down. {@link #getConnection(String, String)} borrows from a pool of the given user's own, see
+ * {@link CredentialPools}.
+ * </p>
+ * <p>
+ * As a {@link ConnectionPoolDataSource} it hands out {@link PooledConnection}s holding a lease on one of the pool's
+ * connections until {@link PooledConnection#close()}, for application servers that manage their own pool of pooled
+ * connections on top
+ * </p>
+ * @author Michael Sekamanya
+ *
+ */
+public class MyCPDataSource implements DataSource, ConnectionPoolDataSource{
+
+	/**
+	 * The {@code mycp.*} properties
+	 */
+	private final Properties mycpProperties = new Properties();
+
+	/**
+	 * The properties passed to the underlying driver, e.g. user and password
+	 */
+	private final Properties driverProperties = new Properties();
+
+	private volatile PoolManager poolManager;
+
+	/**
+	 * The pools of the configured and per call credentials, {@code null} when built on an existing pool
+	 */
+	private CredentialPools pools;
+	private PrintWriter logWriter;
+	private int loginTimeout = 0;
+
+	public MyCPDataSource(){
+	}
+
+	/**
+	 * @param propertiesFileName the pool properties file. If the file does not exist it is searched in the class path
+	 * @throws IOException if the file could not be read
+	 */
+	public MyCPDataSource(final String propertiesFileName) throws IOException{
+		setProperties(Configuration.load(propertiesFileName));
+	}
+
+	/**
+	 * @param mycpProperties the {@code mycp.*} properties
+	 * @param driverProperties the properties passed to the underlying driver
+	 */
+	public MyCPDataSource(final Properties mycpProperties, final Properties driverProperties){
+		setProperties(mycpProperties);
+		if(driverProperties != null)
+			setDriverProperties(driverProperties);
+	}
+
+	/**
+	 * Uses an already created pool, e.g. one shared with a {@link JdbcDriver}
+	 */
+	public MyCPDataSource(final PoolManager poolManager){
+		this.poolManager = poolManager;
+	}
+
+	/************************************************************************************
+	 *    		CONFIGURATION
+	 ************************************************************************************/
+
+	private synchronized void set(final Properties properties, final String key, final Object value){
+		if(poolManager != null)
+			throw new IllegalStateException("The pool has already been created");
+		if(value == null)
+			properties.remove(key);
+		else
+			properties.setProperty(key, value.toString());
+	}
+
+	/**
+	 * Adds all the {@code mycp.*} properties in {@code properties}
+	 */
+	public synchronized void setProperties(final Properties properties){
+		for(final String key : properties.stringPropertyNames())
+			set(mycpProperties, key, properties.getProperty(key));
+	}
+
+	public synchronized void setDriverProperties(final Properties properties){
+		for(final String key : properties.stringPropertyNames())
+			set(driverProperties, key, properties.getProperty(key));
+	}
+
+	/**
+	 * Reads the {@code mycp.*} properties from a file, see {@link #MyCPDataSource(String)}
+	 */
+	public void setConfigFile(final String propertiesFileName) throws IOException{
+		setProperties(Configuration.load(propertiesFileName));
+	}
+
+	public void setDriver(final String driver){
+		set(mycpProperties, Configuration.MYCP_DRIVER, driver);
+	}
+
+	public void setUrl(final String url){
+		set(mycpProperties, Configuration.MYCP_DRIVER_URL, url);
+	}
+
+	public void setUser(final String user){
+		set(driverProperties, "user", user);
+	}
+
+	public void setPassword(final String password){
+		set(driverProperties, "password", password);
+	}
+
+	public void setMaxConnections(final int maxConnections){
+		set(mycpProperties, Configuration.MYCP_MAX_CONNECTIONS, maxConnections);
+	}
+
+	public void setMinConnections(final int minConnections){
+		set(mycpProperties, Configuration.MYCP_MIN_CONNECTIONS, minConnections);
+	}
+
+	/**
+	 * @param maxWait seconds a borrower waits for a connection
+	 */
+	public void setMaxWait(final long maxWait){
+		set(mycpProperties, Configuration.MYCP_MAX_WAIT, maxWait);
+	}
+
+	public void setKeepAliveSQL(final String keepAliveSQL){
+		set(mycpProperties, Configuration.MYCP_KEEP_ALIVE_SQL, keepAliveSQL);
+	}
+
+	/**
+	 * @param binding {@value Configuration#BINDING_EAGER}, {@value Configuration#BINDING_LAZY} or
+	 * {@value Configuration#BINDING_TRANSACTION}, see {@link Configuration#getBinding()}
+	 */
+	public void setBinding(final String binding){
+		set(mycpProperties, Configuration.MYCP_BINDING, binding);
+	}
+
+	public void setPoolName(final String poolName){
+		set(mycpProperties, Configuration.MYCP_POOL_NAME, poolName);
+	}
+
+	/************************************************************************************
+	 *    		POOL
+	 ************************************************************************************/
+
+	/**
+	 * @return the pool behind this data source, created on the first call
+	 * @throws SQLException if the configuration is invalid or the driver cannot be loaded
+	 */
+	public PoolManager getPoolManager() throws SQLException{
+		PoolManager result = poolManager;
+		if(result != null)
+			return result;
+		synchronized(this){
+			if(poolManager != null)
+				return poolManager;
+			try{
+				pools = new CredentialPools(mycpProperties, driverProperties);
+			}catch(MyCPException e){
+				throw new SQLException(e.getMessage(), e);
+			}catch(ClassNotFoundException e){
+				throw new SQLException(String.format("Could not load the jdbc driver '%s'", mycpProperties.getProperty(Configuration.MYCP_DRIVER)), e);
+			}
+			result = pools.getDefault();
+			poolManager = result;
+			return result;
+		}
+	}
+
+	/**
+	 * Leases a connection from the pool. With lazy or transaction binding the physical connection is only taken when
+	 * needed, which is when the timeout is raised
+	 * @throws SQLTimeoutException if no connection became available within {@link Configuration#getMaxWaitForConnection()}
+	 * @throws SQLException if the pool is shut down
+	 */
+	@Override
+	public Connection getConnection() throws SQLException {
+		return getConnection(getPoolManager());
+	}
+
+	private Connection getConnection(final PoolManager pool) throws SQLException {
+		if(Configuration.BINDING_EAGER.equals(pool.getConfiguration().getBinding()))
+			return takeConnection(pool, false);
+		if(pool.isShutdown())
+			throw new SQLException("The connection pool has been shut down");
+		try{
+			return pool.getConnection();
+		}catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrupted while waiting for a connection", e);
+		}
+	}
+
+	/**
+	 * Leases a connection for {@link #getPooledConnection(String, String)}
+	 */
+	final private static CredentialPools.Lease<MyCPConnection> DETACHED = new CredentialPools.Lease<MyCPConnection>(){
+		@Override
+		public MyCPConnection take(final PoolManager pool) throws SQLException {
+			return takeConnection(pool, true);
+		}
+	};
+
+	/**
+	 * @param detached lease outside the tracking of the connection held by the calling thread, see
+	 * {@link PoolManager#takeDetachedConnection()}
+	 */
+	private static MyCPConnection takeConnection(final PoolManager pool, final boolean detached) throws SQLException{
+		final MyCPConnection connection;
+		try{
+			connection = detached ? pool.takeDetachedConnection() : pool.takeConnection();
+		}catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrupted while waiting for a connection", e);
+		}
+		if(connection.getUnderlyingConnection() == null){
+			if(pool.isShutdown())
+				throw new SQLException("The connection pool has been shut down");
+			throw new SQLTimeoutException("Timed out waiting for a connection");
+		}
+		return connection;
+	}
+
+	/**
+	 * Leases a connection from the pool of {@code username}, created on the first call with the other driver properties
+	 * of the data source. The pools of all the users share {@link Configuration#getCredentialBudget()} connections
+	 * @throws SQLFeatureNotSupportedException if the data source was built on an existing pool
+	 */
+	@Override
+	public Connection getConnection(String username, String password) throws SQLException {
+		return credentialPools().lease(credentials(username, password), new CredentialPools.Lease<Connection>(){
+			@Override
+			public Connection take(final PoolManager pool) throws SQLException {
+				return getConnection(pool);
+			}
+		});
+	}
+
+	/**
+	 * @throws SQLFeatureNotSupportedException if the data source was built on an existing pool
+	 */
+	private CredentialPools credentialPools() throws SQLException{
+		getPoolManager();
+		if(pools == null)
+			throw new SQLFeatureNotSupportedException("Per call credentials are not supported on a data source built on an existing pool");
+		return pools;
+	}
+
+	/**
+	 * @return the driver properties of the data source with {@code username} and {@code password}
+	 */
+	private Properties credentials(final String username, final String password){
+		final Properties properties = new Properties();
+		properties.putAll(driverProperties);
+		if(username != null)
+			properties.setProperty("user", username);
+		if(password != null)
+			properties.setProperty("password", password);
+		return properties;
+	}
+
+	/**
+	 * Leases a connection for a container. The {@link PooledConnection} is owned by the container rather than by the
+	 * calling thread, two of them taken on one thread never share their connection
+	 */
+	@Override
+	public PooledConnection getPooledConnection() throws SQLException {
+		return new MyCPPooledConnection(takeConnection(getPoolManager(), true));
+	}
+
+	/**
+	 * @see #getConnection(String, String)
+	 */
+	@Override
+	public PooledConnection getPooledConnection(String user, String password) throws SQLException {
+		return new MyCPPooledConnection(credentialPools().lease(credentials(user, password), DETACHED));
+	}
+
+	/**
+	 * Shuts the pool down, see {@link PoolManager#destroy()}
+	 */
+	public void close(){
+		final PoolManager pool = poolManager;
+		if(pool == null)
+			return;
+		final CredentialPools group;
+		synchronized(this){
+			group = pools;
+		}
+		if(group != null)
+			group.destroy();
+		else
+			pool.destroy();
+	}
+
+	/************************************************************************************
+	 *    		CommonDataSource / Wrapper
+	 ************************************************************************************/
+
+	@Override
+	public PrintWriter getLogWriter() throws SQLException {
+		return logWriter;
+	}
+
+	@Override
+	public void setLogWriter(PrintWriter out) throws SQLException {
+		logWriter = out;
+	}
+
+	/**
+	 * The login timeout is used as the maximum time a borrower waits for a connection when set before the pool is created
+	 */
+	@Override
+	public void setLoginTimeout(int seconds) throws SQLException {
+		loginTimeout = seconds;
+		if(seconds > 0 && poolManager == null)
+			setMaxWait(seconds);
+	}
+
+	@Override
+	public int getLoginTimeout() throws SQLException {
+		return loginTimeout;
+	}
+
+	@Override
+	public boolean isWrapperFor(Class<?> iface) throws SQLException {
+		return iface.isInstance(this);
+	}
+
+	@Override
+	public <T> T unwrap(Class<T> iface) throws SQLException {
+		if(iface.isInstance(this))
+			return iface.cast(this);
+		throw new SQLException(String.format("%s does not wrap %s", getClass().getName(), iface.getName()));
+	}
+}
@@ -0,0 +1,128 @@
+package org.kakooge.mycp;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.sql.ConnectionEvent;
+import javax.sql.ConnectionEventListener;
+import javax.sql.PooledConnection;
+import javax.sql.StatementEventListener;
+
+/**
+ * A {@link PooledConnection} holding the lease on a {@link MyCPConnection} until {@link #close()}. The connections
+ * handed out by {@link #getConnection()} are handles: closing one notifies the listeners instead of returning the lease,
+ * so the application server managing the pooled connections can hand it out again
+ * @author Michael Sekamanya
+ *
+ */
+class MyCPPooledConnection implements PooledConnection{
+
+	private final MyCPConnection connection;
+	private final List<ConnectionEventListener> listeners = new CopyOnWriteArrayList<ConnectionEventListener>();
+	private Handle handle;
+	private boolean closed = false;
+
+	MyCPPooledConnection(final MyCPConnection connection){
+		this.connection = connection;
+	}
+
+	/**
+	 * The logical connection handed out by {@link MyCPPooledConnection#getConnection()}
+	 */
+	private class Handle implements InvocationHandler{
+		final Connection proxy = (Connection)Proxy.newProxyInstance(MyCPPooledConnection.class.getClassLoader(),
+				new Class<?>[]{Connection.class}, this);
+		volatile boolean handleClosed = false;
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			final String name = method.getName();
+			if(name.equals("close")){
+				if(!handleClosed){
+					handleClosed = true;
+					fireConnectionClosed();
+				}
+				return null;
+			}
+			if(name.equals("isClosed"))
+				return Boolean.valueOf(handleClosed || connection.isClosed());
+			if(handleClosed)
+				throw new SQLException("The connection is closed");
+			try{
+				return method.invoke(connection, args);
+			}catch(InvocationTargetException e){
+				final Throwable cause = e.getCause();
+				if(cause instanceof SQLException && connection.getPoolManager().isFatal((SQLException)cause)){
+					connection.getPoolManager().connectionFailed(connection, (SQLException)cause);
+					fireConnectionErrorOccurred((SQLException)cause);
+				}
+				throw cause;
+			}
+		}
+	}
+
+	/**
+	 * Returns a new handle on the leased connection, closing the previous handle if any
+	 */
+	@Override
+	public synchronized Connection getConnection() throws SQLException {
+		if(closed)
+			throw new SQLException("The pooled connection is closed");
+		if(handle != null)
+			handle.handleClosed = true;
+		handle = new Handle();
+		return handle.proxy;
+	}
+
+	/**
+	 * Returns the lease to the pool
+	 */
+	@Override
+	public synchronized void close() throws SQLException {
+		if(closed)
+			return;
+		closed = true;
+		if(handle != null)
+			handle.handleClosed = true;
+		connection.close();
+	}
+
+	private void fireConnectionClosed(){
+		final ConnectionEvent event = new ConnectionEvent(this);
+		for(final ConnectionEventListener listener : listeners)
+			listener.connectionClosed(event);
+	}
+
+	private void fireConnectionErrorOccurred(final SQLException e){
+		final ConnectionEvent event = new ConnectionEvent(this, e);
+		for(final ConnectionEventListener listener : listeners)
+			listener.connectionErrorOccurred(event);
+	}
+
+	@Override
+	public void addConnectionEventListener(ConnectionEventListener listener) {
+		listeners.add(listener);
+	}
+
+	@Override
+	public void removeConnectionEventListener(ConnectionEventListener listener) {
+		listeners.remove(listener);
+	}
+
+	/**
+	 * Statement events are not supported, statements are not pooled
+	 */
+	@Override
+	public void addStatementEventListener(StatementEventListener listener) {
+	}
+
+	@Override
+	public void removeStatementEventListener(StatementEventListener listener) {
+	}
+}
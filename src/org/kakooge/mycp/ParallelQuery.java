@@ -0,0 +1,220 @@
+package org.kakooge.mycp;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs the partitions of a query, see {@link Partitioning}, side by side on several connections of a pool and merges
+ * their rows in partition order.
+ * <p>
+ * Up to {@code parallelism} workers are started on the {@link Executor}. A worker leases one connection and runs the
+ * partitions left one after the other until there are none, so that the partitions are spread over the workers as
+ * they finish, whatever their sizes. Before leasing, a worker takes a permit of the pool's {@link Semaphore} sized by
+ * {@link Configuration#getParallelConnections()}: the parallel queries of the pool never hold more connections
+ * together, the others stay available to the rest of the application. A worker leases within
+ * {@link Configuration#getMaxWaitForConnection()} like any borrower.
+ * </p>
+ * <p>
+ * The first failure stops the query: the statements running on the other workers are cancelled, no further partition
+ * is started and the failure is thrown to the caller once every connection is back in the pool
+ * </p>
+ * @param <T> the items the rows are mapped to
+ * @author Michael Sekamanya
+ *
+ */
+class ParallelQuery<T>{
+
+	final private static Logger logger = Logger.getLogger(ParallelQuery.class.getName());
+
+	private final PoolManager poolManager;
+	private final Semaphore permits;
+	private final String sql;
+	private final Partitioning partitioning;
+	private final RowMapper<T> mapper;
+	private final Object[] parameters;
+
+	private final AtomicInteger nextPartition = new AtomicInteger();
+	private final List<List<T>> results;
+	private final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+
+	/**
+	 * The statement each worker is running, for cancelling them on failure
+	 */
+	private AtomicReferenceArray<PreparedStatement> running;
+
+	/**
+	 * @param permits bounds the connections of all the parallel queries of the pool
+	 */
+	ParallelQuery(final PoolManager poolManager, final Semaphore permits, final String sql, final Partitioning partitioning,
+			final RowMapper<T> mapper, final Object[] parameters){
+		this.poolManager = poolManager;
+		this.permits = permits;
+		this.sql = sql;
+		this.partitioning = partitioning;
+		this.mapper = mapper;
+		this.parameters = parameters != null ? parameters.clone() : new Object[0];
+		results = new ArrayList<List<T>>(partitioning.size());
+		for(int idx = 0; idx < partitioning.size(); ++idx)
+			results.add(null);
+	}
+
+	/**
+	 * Runs the query and waits for all its partitions
+	 * @return the rows of all the partitions, partition after partition
+	 */
+	List<T> run(final Executor executor, final int parallelism) throws SQLException, InterruptedException{
+		if(parallelism < 1)
+			throw new IllegalArgumentException("The parallelism must be positive, got " + parallelism);
+		final int workers = Math.min(parallelism, partitioning.size());
+		running = new AtomicReferenceArray<PreparedStatement>(workers);
+		final CountDownLatch finished = new CountDownLatch(workers);
+		for(int worker = 0; worker < workers; ++worker){
+			try{
+				executor.execute(new Worker(worker, finished));
+			}catch(RejectedExecutionException e){
+				fail(e);
+				//- The workers not started will not count down
+				for(int idx = worker; idx < workers; ++idx)
+					finished.countDown();
+				break;
+			}
+		}
+		try{
+			finished.await();
+		}catch(InterruptedException e){
+			fail(e);
+			throw e;
+		}
+
+		final Throwable e = failure.get();
+		if(e instanceof SQLException)
+			throw (SQLException)e;
+		if(e instanceof RuntimeException)
+			throw (RuntimeException)e;
+		if(e instanceof Error)
+			throw (Error)e;
+		if(e != null)
+			throw new SQLException("The parallel query failed", e);
+
+		int rows = 0;
+		for(final List<T> partition : results)
+			rows += partition.size();
+		final List<T> merged = new ArrayList<T>(rows);
+		for(final List<T> partition : results)
+			merged.addAll(partition);
+		return merged;
+	}
+
+	private boolean hasWork(){
+		return failure.get() == null && nextPartition.get() < partitioning.size();
+	}
+
+	/**
+	 * Records the first failure and cancels the statements of the other workers
+	 */
+	private void fail(final Throwable e){
+		if(!failure.compareAndSet(null, e))
+			return;
+		for(int idx = 0; idx < running.length(); ++idx){
+			final PreparedStatement statement = running.get(idx);
+			if(statement == null)
+				continue;
+			try{
+				statement.cancel();
+			}catch(SQLException ignore){
+				logger.log(Level.FINE, "Could not cancel a partition", ignore);
+			}
+		}
+	}
+
+	private final class Worker implements Runnable{
+		private final int worker;
+		private final CountDownLatch finished;
+
+		Worker(final int worker, final CountDownLatch finished){
+			this.worker = worker;
+			this.finished = finished;
+		}
+
+		@Override
+		public void run() {
+			try{
+				if(!hasWork())
+					return;
+				permits.acquire();
+				try{
+					//- The other workers may have done everything while this one waited
+					if(hasWork())
+						runPartitions();
+				}finally{
+					permits.release();
+				}
+			}catch(Throwable e){
+				fail(e);
+			}finally{
+				finished.countDown();
+			}
+		}
+
+		private void runPartitions() throws SQLException, InterruptedException{
+			final MyCPConnection connection = poolManager.takeDetachedConnection();
+			if(connection.getUnderlyingConnection() == null)
+				throw new SQLTimeoutException("Timed out waiting for a connection");
+			try{
+				while(failure.get() == null){
+					final int partition = nextPartition.getAndIncrement();
+					if(partition >= partitioning.size())
+						break;
+					results.set(partition, query(connection, partition));
+				}
+			}catch(SQLException e){
+				//- A fetch failing because the connection died leaves it broken
+				poolManager.connectionFailed(connection, e);
+				throw e;
+			}finally{
+				connection.close();
+			}
+		}
+
+		private List<T> query(final MyCPConnection connection, final int partition) throws SQLException{
+			final PreparedStatement statement = connection.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY,
+					ResultSet.CONCUR_READ_ONLY);
+			try{
+				int idx = 0;
+				for(final Object parameter : parameters)
+					statement.setObject(++idx, parameter);
+				for(final Object parameter : partitioning.parameters(partition))
+					statement.setObject(++idx, parameter);
+				running.set(worker, statement);
+				//- A failure between the check of the loop and now would not have seen the statement
+				if(failure.get() != null)
+					return new ArrayList<T>(0);
+				final ResultSet resultSet = statement.executeQuery();
+				try{
+					final List<T> rows = new ArrayList<T>();
+					while(resultSet.next())
+						rows.add(mapper.map(resultSet));
+					return rows;
+				}finally{
+					resultSet.close();
+				}
+			}finally{
+				running.set(worker, null);
+				statement.close();
+			}
+		}
+	}
+}
@@ -0,0 +1,81 @@
+package org.kakooge.mycp;
+
+/**
+ * Splits a query into partitions run side by side by a {@link ParallelQuery}. Each partition adds two parameters to
+ * the query, set after its own, which the SQL uses to select the rows of the partition:
+ * <ul>
+ * <li>{@link #keyRanges(long, long, int)}: the lower bound, inclusive, and the upper bound, exclusive, of the keys of
+ * the partition, e.g. {@code select ... where id >= ? and id < ?}</li>
+ * <li>{@link #modulo(int)}: the number of partitions and the remainder of the partition, e.g.
+ * {@code select ... where mod(id, ?) = ?}</li>
+ * </ul>
+ * Key ranges let the database read each partition off an index, modulo spreads skewed keys evenly but every partition
+ * scans all the rows
+ * @author Michael Sekamanya
+ *
+ */
+public abstract class Partitioning{
+
+	Partitioning(){
+	}
+
+	/**
+	 * @return the number of partitions
+	 */
+	public abstract int size();
+
+	/**
+	 * @return the two parameters selecting the rows of {@code partition}
+	 */
+	abstract Object[] parameters(int partition);
+
+	/**
+	 * Splits the keys from {@code from}, inclusive, to {@code to}, exclusive, into ranges of equal width, fewer if
+	 * there are fewer keys than {@code partitions}
+	 */
+	public static Partitioning keyRanges(final long from, final long to, final int partitions){
+		if(to <= from || to - from < 0)
+			throw new IllegalArgumentException(String.format("Invalid key range [%d, %d)", from, to));
+		if(partitions < 1)
+			throw new IllegalArgumentException("The number of partitions must be positive, got " + partitions);
+		final long keys = to - from;
+		final int size = (int)Math.min(partitions, keys);
+		return new Partitioning() {
+			@Override
+			public int size() {
+				return size;
+			}
+
+			@Override
+			Object[] parameters(final int partition) {
+				return new Object[]{Long.valueOf(bound(partition)), Long.valueOf(bound(partition + 1))};
+			}
+
+			private long bound(final int partition){
+				//- The remainder of keys / size goes one key at a time to the first partitions
+				final long width = keys / size;
+				final long remainder = keys % size;
+				return from + width * partition + Math.min(partition, remainder);
+			}
+		};
+	}
+
+	/**
+	 * Splits the rows by the remainder of their key divided by {@code partitions}
+	 */
+	public static Partitioning modulo(final int partitions){
+		if(partitions < 1)
+			throw new IllegalArgumentException("The number of partitions must be positive, got " + partitions);
+		return new Partitioning() {
+			@Override
+			public int size() {
+				return partitions;
+			}
+
+			@Override
+			Object[] parameters(final int partition) {
+				return new Object[]{Integer.valueOf(partitions), Integer.valueOf(partition)};
+			}
+		};
+	}
+}
@@ -0,0 +1,1085 @@
+package org.kakooge.mycp;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Generic resource pool engine. Resources are created, validated, reset and destroyed through a {@link ResourceFactory}
+ * and sized by the {@link SizingPolicy} from a {@link ConnectionManager} maintenance thread. The JDBC pool
+ * ({@link PoolManager}) is one adapter on top of it; anything expensive to create such as JMS sessions or TCP client
+ * channels can be pooled the same way:
+ * <pre>
+ * {@code
+ * Pool<Session> pool = new Pool<Session>(new Configuration(properties, false), sessionFactory);
+ * pool.init();
+ * Session session = pool.acquire();
+ * try{
+ *     ...
+ * }finally{
+ *     pool.release(session);
+ * }
+ * }
+ * </pre>
+ * <p>
+ * {@link #acquire()} and {@link #release(Object)} do not allocate once the pool is warm
+ * </p>
+ * <p>
+ * In embedded mode ({@link Configuration#isEmbedded()}) there is no maintenance thread: the borrowing and releasing
+ * threads take turns running small slices of the maintenance cycle, see {@link #setMaintenanceExecutor(Executor)}
+ * to move them off those threads
+ * </p>
+ * @param <T> the pooled resource
+ * @author Michael Sekamanya
+ *
+ */
+public class Pool<T>{
+
+	/**
+	 * Largest pool for which the queue slots are preallocated. An {@link ArrayBlockingQueue} does not allocate
+	 * on {@code offer}/{@code poll} whereas a {@link LinkedBlockingQueue} allocates a node on every return, so it
+	 * is only used when the configured maximum is too large to preallocate
+	 */
+	final static private int MAX_PREALLOCATED_CAPACITY = 1<<16;
+
+	/**
+	 * Minimum time between two slices of embedded maintenance
+	 */
+	final static private long SLICE_INTERVAL = TimeUnit.MILLISECONDS.toNanos(100);
+
+	/**
+	 * The phases of a maintenance cycle run in slices
+	 */
+	final static private int PHASE_IDLE = 0;
+	final static private int PHASE_GROW = 1;
+	final static private int PHASE_SHRINK = 2;
+	final static private int PHASE_VALIDATE = 3;
+
+	final private static Logger logger = Logger.getLogger(Pool.class.getName());
+
+	private final String name;
+	private final Configuration configuration;
+	private final ResourceFactory<T> factory;
+	private final SizingPolicy sizingPolicy;
+	private final PoolMetrics metrics = new PoolMetrics();
+
+	/**
+	 * Destroys the resources the pool lets go of, off the thread letting go of them
+	 */
+	private final ResourceCloser<T> closer;
+
+	/**
+	 * Paces the creation of resources, {@code null} without {@link Configuration#getCreateRate()}
+	 */
+	private final TokenBucket createLimiter;
+
+	/**
+	 * The idle resources
+	 */
+	private final BlockingQueue<T> idleQueue;
+
+	/**
+	 * Cached from the {@link Configuration} so that the borrow path does not go through the synchronized
+	 * {@link java.util.Properties} lookup and unboxing on every call
+	 */
+	private final long maxWait;
+	private final int maxResources;
+
+	/**
+	 * The number of resources managed by the pool, idle or leased
+	 */
+	private final AtomicInteger resourceCount = new AtomicInteger();
+
+	/**
+	 * Number of resources currently held by borrowers, {@link #destroy()} waits for it to drop to 0
+	 */
+	private final AtomicInteger leasedCount = new AtomicInteger();
+
+	/**
+	 * Set once {@link #destroy()} starts, no resource is handed out or taken back after that
+	 */
+	private volatile boolean shutdown = false;
+	private final AtomicBoolean destroyed = new AtomicBoolean(false);
+
+	/**
+	 * Notified when a resource is released during shutdown
+	 */
+	private final Object leaseMonitor = new Object();
+
+	/**
+	 * Borrowers blocked in {@link #acquire(long, TimeUnit)}. {@link #destroy()} interrupts them so that they do not wait
+	 * out their timeout on a pool that will never hand anything out again
+	 */
+	private final Set<Waiter> waiters = Collections.newSetFromMap(new ConcurrentHashMap<Waiter, Boolean>());
+
+	/**
+	 * A borrower blocked in {@link #acquire(long, TimeUnit)}. Tells an interrupt from {@link #destroy()} apart from one
+	 * meant for the borrower, and keeps {@link #destroy()} from interrupting the thread once it has stopped waiting
+	 */
+	private static final class Waiter{
+		final private Thread thread = Thread.currentThread();
+		private boolean waiting = true;
+		private boolean woken = false;
+
+		synchronized void wake(){
+			if(!waiting)
+				return;
+			woken = true;
+			thread.interrupt();
+		}
+
+		/**
+		 * Called by the waiting thread once it stopped waiting
+		 * @return whether {@link #wake()} interrupted the thread
+		 */
+		synchronized boolean done(){
+			waiting = false;
+			return woken;
+		}
+	}
+
+	/**
+	 * Run at the end of every maintenance cycle
+	 */
+	private final List<Runnable> maintenanceTasks = new CopyOnWriteArrayList<Runnable>();
+
+	/**
+	 * The statistics kept across restarts, {@code null} unless {@link Configuration#getSnapshotFile()} is set
+	 */
+	private final PoolSnapshot snapshot;
+	private final File snapshotFile;
+	private long lastSnapshotSave = System.currentTimeMillis();
+
+	/**
+	 * The peak number of leased resources since the last maintenance cycle. Updated without synchronization by
+	 * {@link #acquire()} so a concurrent update can occasionally be lost, which is good enough for sizing
+	 */
+	private volatile int peakLeased = 0;
+	private long lastCreateCount = 0;
+	private long lastCreateTotal = 0;
+
+	/**
+	 * Held while a maintenance cycle or a slice of one runs
+	 */
+	private final ReentrantLock maintenanceLock = new ReentrantLock();
+
+	/**
+	 * See {@link Configuration#isEmbedded()}
+	 */
+	private final boolean embedded;
+	private volatile Executor maintenanceExecutor;
+	private final AtomicBoolean sliceScheduled = new AtomicBoolean(false);
+	private volatile boolean growFirst = false;
+	private volatile long nextSlice = System.nanoTime();
+
+	/**
+	 * Progress of the cycle run in slices, only touched holding {@link #maintenanceLock}
+	 */
+	private long nextCycle = System.nanoTime();
+	private int slicePhase = PHASE_IDLE;
+	private int sliceRemaining = 0;
+
+	/**
+	 * The registry running the maintenance cycles, {@code null} if the pool has its own {@link ConnectionManager}
+	 */
+	private volatile PoolRegistry registry;
+
+	private volatile ConnectionManager connectionManagerThread;
+	private Thread shutdownHook;
+	private final boolean debug = System.getProperty("debug")!=null;
+
+	public Pool(final Configuration configuration, final ResourceFactory<T> factory){
+		this.name = configuration.getPoolName();
+		this.configuration = configuration;
+		this.factory = factory;
+		this.sizingPolicy = new SizingPolicy(configuration);
+		maxResources = configuration.getMaxConnections();
+		idleQueue = maxResources <= MAX_PREALLOCATED_CAPACITY ? new ArrayBlockingQueue<T>(maxResources) :
+			new LinkedBlockingQueue<T>(maxResources);
+		maxWait = configuration.getMaxWaitForConnection();
+		embedded = configuration.isEmbedded();
+		closer = new ResourceCloser<T>(name, factory, metrics, configuration.getCloseQueueSize(),
+				configuration.getCloseThreads(), configuration.getCloseTimeout());
+		createLimiter = configuration.getCreateRate() > 0 ?
+				new TokenBucket(configuration.getCreateRate(), configuration.getCreateBurst()) : null;
+
+		final String snapshotFileName = configuration.getSnapshotFile();
+		if(StringUtil.Empty(snapshotFileName)){
+			snapshotFile = null;
+			snapshot = null;
+		}else{
+			snapshotFile = new File(snapshotFileName);
+			snapshot = loadSnapshot(snapshotFile);
+		}
+	}
+
+	private static PoolSnapshot loadSnapshot(final File file){
+		try{
+			final PoolSnapshot snapshot = PoolSnapshot.load(file);
+			if(snapshot != null)
+				return snapshot;
+		}catch(IOException e){
+			logger.log(Level.WARNING, String.format("Could not read the pool snapshot '%s', starting without it", file), e);
+		}
+		return new PoolSnapshot();
+	}
+
+	/**
+	 * Starts the maintenance thread, which brings the pool up to its minimum size, and registers a shutdown hook
+	 * calling {@link #destroy()}. In embedded mode no thread is started, the pool grows to its minimum size through the
+	 * slices run by its first borrowers. With {@link Configuration#isSharedMaintenance()} or a registry set by
+	 * {@link #setRegistry(PoolRegistry)} the pool is registered with the {@link PoolRegistry} instead
+	 */
+	public void init(){
+		if(debug)
+			logger.info("initializing pool " + name);
+		if(snapshot != null){
+			final int presize = sizeFloor();
+			if(presize > sizingPolicy.getMinConnections())
+				logger.info(String.format("Pool %s pre-sized to %d resources from '%s'", name, presize, snapshotFile));
+		}
+
+		if(!embedded && registry == null && configuration.isSharedMaintenance())
+			registry = PoolRegistry.getShared();
+		if(!embedded && registry == null)
+			connectionManagerThread = new ConnectionManager(this);
+		shutdownHook = new Thread(){
+			@Override
+			public void run() {
+				Pool.this.destroy();
+			}
+		};
+		Runtime.getRuntime().addShutdownHook(shutdownHook);
+
+		if(connectionManagerThread != null)
+			connectionManagerThread.start();
+		else if(!embedded)
+			registry.register(this);
+	}
+
+	/**
+	 * Has the pool maintained by {@code registry}, e.g. one shared by the pools of a tenant, rather than by its own
+	 * {@link ConnectionManager}. Must be called before {@link #init()}
+	 */
+	public void setRegistry(final PoolRegistry registry){
+		this.registry = registry;
+	}
+
+	/************************************************************************************
+	 *    		BORROW / RETURN
+	 ************************************************************************************/
+
+	/**
+	 * Takes an idle resource, waiting up to {@link Configuration#getMaxWaitForConnection()} seconds for one
+	 * @return the resource or {@code null} if none became available in time or the pool is shut down
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public T acquire() throws InterruptedException{
+		return acquire(maxWait, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Takes an idle resource, waiting up to {@code timeout} for one
+	 * @return the resource or {@code null} if none became available in time or the pool is shut down
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public T acquire(final long timeout, final TimeUnit unit) throws InterruptedException{
+		if(shutdown)
+			return null;
+		T resource = idleQueue.poll();
+		if(embedded){
+			maintainInline(resource == null);
+			if(resource == null)
+				resource = idleQueue.poll();
+		}
+		if(resource == null){
+			final long start = System.nanoTime();
+			final Waiter waiter = new Waiter();
+			waiters.add(waiter);
+			try{
+				//- Registered first, so either destroy() sees the waiter or the waiter sees the shutdown
+				if(!shutdown)
+					resource = idleQueue.poll(timeout, unit);
+			}catch(InterruptedException e){
+				if(!waiter.done())
+					throw e;
+			}finally{
+				waiters.remove(waiter);
+				//- Woken by destroy() just as the poll returned, the interrupt was meant for this call only
+				if(waiter.done())
+					Thread.interrupted();
+			}
+			metrics.waitTime.record((System.nanoTime() - start) / 1000);
+			if(resource == null){
+				if(!shutdown)
+					metrics.timedOut.incrementAndGet();
+				return null;
+			}
+		}
+		if(shutdown){
+			//- Taken while destroy() was running, possibly after it drained the idle resources
+			destroyResource(resource);
+			return null;
+		}
+		final int leased = leasedCount.incrementAndGet();
+		if(leased > peakLeased)
+			peakLeased = leased;
+		metrics.acquired.incrementAndGet();
+		return resource;
+	}
+
+	/**
+	 * Gives back a resource obtained from {@link #acquire()}. The resource is reset and put back into the pool, or
+	 * destroyed if it cannot be reset, the pool is full or the pool is shut down
+	 * @return {@code true} if the resource went back into the pool
+	 */
+	public boolean release(final T resource){
+		leasedCount.decrementAndGet();
+		if(shutdown){
+			synchronized(leaseMonitor){
+				leaseMonitor.notifyAll();
+			}
+			destroyResource(resource);
+			return false;
+		}
+		try{
+			factory.reset(resource);
+		}catch(Exception e){
+			if(debug)
+				logger.log(Level.INFO, "Could not reset resource, destroying it", e);
+			destroyResource(resource);
+			return false;
+		}
+		if(idleQueue.offer(resource)){
+			if(embedded)
+				maintainInline(false);
+			return true;
+		}
+		destroyResource(resource);
+		return false;
+	}
+
+	/**
+	 * Gives back a resource obtained from {@link #acquire()} that must not be reused, e.g. because its state could
+	 * not be restored. The resource is destroyed
+	 */
+	public void invalidate(final T resource){
+		leasedCount.decrementAndGet();
+		if(shutdown){
+			synchronized(leaseMonitor){
+				leaseMonitor.notifyAll();
+			}
+		}
+		destroyResource(resource);
+	}
+
+	/**
+	 * Adds a resource created outside the pool. It is counted as managed by the pool from then on
+	 * @return {@code false} if the pool is full or shut down, the resource is then left to the caller
+	 */
+	public boolean add(final T resource){
+		if(shutdown || resourceCount.incrementAndGet() > maxResources){
+			resourceCount.decrementAndGet();
+			return false;
+		}
+		if(idleQueue.offer(resource))
+			return true;
+		resourceCount.decrementAndGet();
+		return false;
+	}
+
+	/**
+	 * Takes an idle resource off the pool without waiting and without leasing it
+	 * @return an idle resource or {@code null} if the pool is empty
+	 */
+	T pollIdle(){
+		return idleQueue.poll();
+	}
+
+	/**
+	 * Selects the idle resources {@link #evictIdle(Eviction)} destroys
+	 */
+	interface Eviction<T>{
+		boolean evict(T resource);
+	}
+
+	/**
+	 * Destroys, in one pass over the idle resources, those {@code eviction} selects, e.g. all the connections opened
+	 * before a failover. The others go back to the pool
+	 * @return the number of resources destroyed
+	 */
+	int evictIdle(final Eviction<? super T> eviction){
+		int evicted = 0;
+		for(int remaining = idleQueue.size(); remaining > 0; --remaining){
+			final T resource = idleQueue.poll();
+			if(resource == null)
+				break;
+			if(eviction.evict(resource)){
+				destroyResource(resource);
+				++evicted;
+			}else if(!idleQueue.offer(resource)){
+				destroyResource(resource);
+			}
+		}
+		return evicted;
+	}
+
+	/************************************************************************************
+	 *    		POOL MANAGEMENT ROUTINES
+	 ************************************************************************************/
+
+	/**
+	 * Creates a resource through the factory and counts it. The count is reserved before creating so that concurrent
+	 * creators cannot go past the maximum. With {@link Configuration#getCreateRate()} set the creation first waits for
+	 * its turn in the {@link TokenBucket}
+	 * @return the new resource or {@code null} if the pool is at its maximum size
+	 */
+	T createResource() throws Exception{
+		if(resourceCount.incrementAndGet() > maxResources){
+			resourceCount.decrementAndGet();
+			return null;
+		}
+		if(createLimiter != null)
+			throttle();
+		final long start = System.nanoTime();
+		boolean created = false;
+		try{
+			final T resource = factory.create();
+			if(resource == null)
+				throw new MyCPException("Resource factory returned null");
+			created = true;
+			return resource;
+		}finally{
+			if(created){
+				metrics.created.incrementAndGet();
+				metrics.createTime.record((System.nanoTime() - start) / 1000);
+			}else{
+				resourceCount.decrementAndGet();
+				metrics.createFailed.incrementAndGet();
+			}
+		}
+	}
+
+	private void throttle() throws InterruptedException{
+		final long wait;
+		try{
+			wait = createLimiter.acquire();
+		}catch(InterruptedException e){
+			resourceCount.decrementAndGet();
+			throw e;
+		}
+		if(wait > 0){
+			metrics.createThrottled.incrementAndGet();
+			metrics.throttleTime.record(wait / 1000);
+		}
+	}
+
+	/**
+	 * Stops counting a resource managed by the pool and hands it to the {@link ResourceCloser}
+	 */
+	void destroyResource(final T resource){
+		resourceCount.decrementAndGet();
+		metrics.destroyed.incrementAndGet();
+		closer.submit(resource);
+	}
+
+	/**
+	 * @return the number of resources to create this cycle, as decided by
+	 * {@link SizingPolicy#connectionsToCreate(int, int)} and at least up to the minimum size and the size expected for
+	 * the time of day (see {@link #sizeFloor()})
+	 */
+	private int growTarget(){
+		return Math.max(sizingPolicy.connectionsToCreate(idleQueue.size(), resourceCount.get()),
+				Math.max(sizingPolicy.getMinConnections(), sizeFloor()) - resourceCount.get());
+	}
+
+	/**
+	 * Creates one resource into the pool
+	 * @return {@code false} if the pool is at its maximum size
+	 */
+	private boolean growOne() throws Exception{
+		final T resource = createResource();
+		if(resource == null)
+			return false;
+		if(!idleQueue.offer(resource)){
+			destroyResource(resource);
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Destroys one idle resource, not going below the size expected for the time of day
+	 * @return {@code false} if the pool is at its floor or has no idle resource
+	 */
+	private boolean shrinkOne(){
+		if(resourceCount.get() <= Math.max(sizingPolicy.getMinConnections(), sizeFloor()))
+			return false;
+		final T resource = idleQueue.poll();
+		if(resource == null)
+			return false;
+		destroyResource(resource);
+		return true;
+	}
+
+	/**
+	 * Validates one idle resource, destroying it if it fails. Resources are taken off the pool one at a time so
+	 * borrowers are not starved meanwhile
+	 * @return {@code false} if the resource was invalid, {@code null} if the pool has no idle resource
+	 */
+	private Boolean validateOne(){
+		final T resource = idleQueue.poll();
+		if(resource == null)
+			return null;
+		if(!factory.validate(resource)){
+			metrics.validationFailed.incrementAndGet();
+			destroyResource(resource);
+			return Boolean.FALSE;
+		}
+		if(!idleQueue.offer(resource))
+			destroyResource(resource);
+		return Boolean.TRUE;
+	}
+
+	/**
+	 * Grows the pool by {@link #growTarget()}. Stops early if the {@link ConnectionManager} is paused or terminated
+	 * @return the number of resources created
+	 * @throws Exception if the factory failed to create a resource
+	 */
+	int grow() throws Exception{
+		final int incrementValue = growTarget();
+		if(incrementValue > 0 && debug)
+			logger.info("incrementing by: " + incrementValue);
+
+		int count = 0;
+		while(count < incrementValue && !isHalted() && growOne())
+			++count;
+		return count;
+	}
+
+	/**
+	 * Shrinks the pool as decided by {@link SizingPolicy#connectionsToDestroy(int, int)}, not below the size expected for
+	 * the time of day
+	 * @return the number of resources destroyed
+	 */
+	int shrink(){
+		final int decrementValue = sizingPolicy.connectionsToDestroy(idleQueue.size(), resourceCount.get());
+		if(decrementValue > 0 && debug)
+			logger.info(String.format("Resource count: %d, decrementing by: %d", resourceCount.get(), decrementValue));
+
+		int count = 0;
+		while(count < decrementValue && !isHalted() && shrinkOne())
+			++count;
+		return count;
+	}
+
+	/**
+	 * Runs {@link ResourceFactory#validate(Object)} over the resources that are idle when called, destroying those that
+	 * fail
+	 * @return the number of resources destroyed
+	 */
+	int validateIdle(){
+		int invalid = 0;
+		for(int idx = idleQueue.size(); idx > 0 && !isHalted(); --idx){
+			final Boolean valid = validateOne();
+			if(valid == null)
+				break;
+			if(!valid.booleanValue())
+				++invalid;
+		}
+		return invalid;
+	}
+
+	/**
+	 * @return {@code true} if the maintenance under way should stop, because the pool is shutting down or the
+	 * {@link ConnectionManager} was paused
+	 */
+	private boolean isHalted(){
+		final ConnectionManager manager = connectionManagerThread;
+		return shutdown || (manager != null && (manager.isPaused() || manager.isTerminated()));
+	}
+
+	/**
+	 * One maintenance cycle: grow, shrink, validate the idle resources and run the maintenance tasks. Does nothing if a
+	 * cycle or a slice of one (see {@link Configuration#isEmbedded()}) is already under way. Called by the
+	 * {@link ConnectionManager} or the {@link PoolRegistry}, and can be called by an application scheduling the
+	 * maintenance itself
+	 */
+	public void maintain(){
+		if(!maintenanceLock.tryLock())
+			return;
+		try{
+			try{
+				grow();
+			}catch(Exception e){
+				logger.log(Level.WARNING, String.format("Pool %s could not create a resource", name), e);
+			}
+			shrink();
+			validateIdle();
+			endCycle();
+		}finally{
+			maintenanceLock.unlock();
+		}
+	}
+
+	/**
+	 * The shrink and validate phases of {@link #maintain()}, without growing the pool. Lets a pool that has no
+	 * maintenance of its own, e.g. an embedded one nobody borrows from any more, close its idle resources. Does nothing
+	 * if maintenance is already under way
+	 */
+	void reap(){
+		if(!maintenanceLock.tryLock())
+			return;
+		try{
+			shrink();
+			validateIdle();
+		}finally{
+			maintenanceLock.unlock();
+		}
+	}
+
+	/**
+	 * Has a maintenance cycle run as soon as possible rather than at the next interval, e.g. to refill the pool after
+	 * resources were evicted. In embedded mode the next borrower finding the pool empty grows it
+	 */
+	void requestMaintenance(){
+		final ConnectionManager manager = connectionManagerThread;
+		final PoolRegistry maintainer = registry;
+		if(manager != null)
+			manager.checkPool();
+		else if(maintainer != null && !embedded)
+			maintainer.maintainNow(this);
+	}
+
+	private void endCycle(){
+		if(snapshot != null)
+			updateSnapshot();
+		for(final Runnable task : maintenanceTasks){
+			try{
+				task.run();
+			}catch(RuntimeException e){
+				logger.log(Level.WARNING, "Maintenance task failed", e);
+			}
+		}
+		if(debug)
+			logger.info(String.format("Pool %s: %d resources, %d idle, %d leased", name, resourceCount.get(), idleQueue.size(), leasedCount.get()));
+	}
+
+	/************************************************************************************
+	 *    		EMBEDDED MAINTENANCE
+	 ************************************************************************************/
+
+	/**
+	 * Called on every {@link #acquire(long, TimeUnit)} and {@link #release(Object)} in embedded mode. At most once per
+	 * {@link #SLICE_INTERVAL} one caller runs a slice of the maintenance cycle, or hands it to the
+	 * {@link #setMaintenanceExecutor(Executor) maintenance executor}. A caller finding a slice under way goes on
+	 * without waiting
+	 * @param empty whether the caller found no idle resource, in which case a resource is created without waiting for
+	 * the next slice
+	 */
+	private void maintainInline(final boolean empty){
+		final long now = System.nanoTime();
+		if(!empty && now - nextSlice < 0)
+			return;
+		if(empty && resourceCount.get() >= maxResources)
+			return;
+		final Executor executor = maintenanceExecutor;
+		if(executor != null){
+			if(!sliceScheduled.compareAndSet(false, true))
+				return;
+			nextSlice = now + SLICE_INTERVAL;
+			growFirst = empty;
+			try{
+				executor.execute(sliceTask);
+			}catch(RejectedExecutionException e){
+				sliceScheduled.set(false);
+			}
+			return;
+		}
+		if(!maintenanceLock.tryLock())
+			return;
+		try{
+			nextSlice = now + SLICE_INTERVAL;
+			slice(empty);
+		}finally{
+			maintenanceLock.unlock();
+		}
+	}
+
+	/**
+	 * Runs {@link #slice(boolean)} on the maintenance executor
+	 */
+	private final Runnable sliceTask = new Runnable() {
+		@Override
+		public void run() {
+			maintenanceLock.lock();
+			try{
+				slice(growFirst);
+			}finally{
+				maintenanceLock.unlock();
+				sliceScheduled.set(false);
+			}
+		}
+	};
+
+	/**
+	 * Does one step of the maintenance cycle: create one resource, destroy one or validate one. The cycle starts every
+	 * {@link ConnectionManager#CYCLE_INTERVAL} and goes through the grow, shrink and validate phases one step per slice.
+	 * Called holding {@link #maintenanceLock}
+	 */
+	private void slice(final boolean empty){
+		if(shutdown)
+			return;
+		try{
+			if(empty){
+				growOne();
+				return;
+			}
+			if(slicePhase == PHASE_IDLE){
+				final long now = System.nanoTime();
+				if(now - nextCycle < 0)
+					return;
+				nextCycle = now + TimeUnit.MILLISECONDS.toNanos(ConnectionManager.CYCLE_INTERVAL);
+				startPhase(PHASE_GROW);
+			}
+			final boolean more;
+			switch(slicePhase){
+			case PHASE_GROW:
+				more = sliceRemaining-- > 0 && growOne();
+				break;
+			case PHASE_SHRINK:
+				more = sliceRemaining-- > 0 && shrinkOne();
+				break;
+			default:
+				more = sliceRemaining-- > 0 && validateOne() != null;
+				break;
+			}
+			if(!more)
+				startPhase(slicePhase + 1);
+		}catch(Exception e){
+			logger.log(Level.WARNING, String.format("Pool %s could not create a resource", name), e);
+			startPhase(slicePhase + 1);
+		}
+	}
+
+	private void startPhase(final int phase){
+		switch(phase){
+		case PHASE_GROW:
+			sliceRemaining = growTarget();
+			break;
+		case PHASE_SHRINK:
+			sliceRemaining = sizingPolicy.connectionsToDestroy(idleQueue.size(), resourceCount.get());
+			break;
+		case PHASE_VALIDATE:
+			sliceRemaining = idleQueue.size();
+			break;
+		default:
+			endCycle();
+			slicePhase = PHASE_IDLE;
+			return;
+		}
+		slicePhase = phase;
+	}
+
+	/**
+	 * Runs the embedded maintenance slices on {@code executor} instead of the threads borrowing and releasing
+	 * resources, so that creating and validating resources stays off their path. The executor is supplied by the
+	 * application, e.g. one shared by all its pools
+	 */
+	public void setMaintenanceExecutor(final Executor executor){
+		this.maintenanceExecutor = executor;
+	}
+
+	/************************************************************************************
+	 *    		WARM START
+	 ************************************************************************************/
+
+	private static int hourOfDay(){
+		return Calendar.getInstance().get(Calendar.HOUR_OF_DAY);
+	}
+
+	/**
+	 * @return the size the pool should have for the current hour according to the {@link PoolSnapshot}: the expected
+	 * peak demand plus the idle headroom the {@link SizingPolicy} aims for (see {@link PoolSnapshot#TARGET_UTILIZATION}).
+	 * 0 without snapshot. A busier next hour counts from the time it takes to get ready for it: one maintenance cycle, as
+	 * the pool grows once per cycle, plus the expected time to open the missing resources one after the other
+	 */
+	private int sizeFloor(){
+		if(snapshot == null)
+			return 0;
+		final Calendar now = Calendar.getInstance();
+		final int hour = now.get(Calendar.HOUR_OF_DAY);
+		double demand = snapshot.expectedDemand(hour);
+		final double nextDemand = snapshot.expectedDemand((hour + 1) % PoolSnapshot.HOURS);
+		if(nextDemand > demand){
+			final long untilNextHour = TimeUnit.HOURS.toMillis(1) - TimeUnit.MINUTES.toMillis(now.get(Calendar.MINUTE))
+					- TimeUnit.SECONDS.toMillis(now.get(Calendar.SECOND)) - now.get(Calendar.MILLISECOND);
+			final double missing = Math.max(0, sizeFor(nextDemand) - resourceCount.get());
+			final double connectMillis = Math.max(0, snapshot.getConnectLatency()) / 1000;
+			if(untilNextHour <= ConnectionManager.CYCLE_INTERVAL + missing * connectMillis)
+				demand = nextDemand;
+		}
+		if(demand <= 0)
+			return 0;
+		return sizeFor(demand);
+	}
+
+	private int sizeFor(final double demand){
+		return (int)Math.min(maxResources, Math.ceil(demand / PoolSnapshot.TARGET_UTILIZATION));
+	}
+
+	private void updateSnapshot(){
+		final int peak = peakLeased;
+		peakLeased = leasedCount.get();
+		snapshot.observe(hourOfDay(), Math.max(peak, peakLeased), resourceCount.get());
+
+		final long createCount = metrics.createTime.getCount(), createTotal = metrics.createTime.getTotal();
+		if(createCount > lastCreateCount)
+			snapshot.observeConnectLatency((double)(createTotal - lastCreateTotal) / (createCount - lastCreateCount));
+		lastCreateCount = createCount;
+		lastCreateTotal = createTotal;
+
+		if(System.currentTimeMillis() - lastSnapshotSave >= configuration.getSnapshotInterval() * 1000)
+			saveSnapshot();
+	}
+
+	private void saveSnapshot(){
+		lastSnapshotSave = System.currentTimeMillis();
+		try{
+			synchronized(snapshot){
+				snapshot.save(snapshotFile);
+			}
+		}catch(IOException e){
+			logger.log(Level.WARNING, String.format("Could not save the pool snapshot '%s'", snapshotFile), e);
+		}
+	}
+
+	/**
+	 * Adds a task run at the end of every maintenance cycle, e.g. exporting statistics
+	 */
+	public void addMaintenanceTask(final Runnable task){
+		maintenanceTasks.add(task);
+	}
+
+	/************************************************************************************
+	 *    		SHUTDOWN
+	 ************************************************************************************/
+
+	/**
+	 * Shuts the pool down in bounded time. This is called by the shutdown hook registered at {@link #init()} and can be
+	 * called explicitly; only the first call does anything
+	 * <ol>
+	 * <li>Stop handing out resources, wake the borrowers waiting for one and stop the {@link ConnectionManager}</li>
+	 * <li>Wait up to {@link Configuration#getShutdownTimeout()} for the leased resources to be released. Resources
+	 * released after that are destroyed by {@link #release(Object)}</li>
+	 * <li>Destroy all idle resources, and those still waiting in the {@link ResourceCloser}, in parallel on
+	 * {@link Configuration#getShutdownCloseThreads()} threads, allowing {@link Configuration#getShutdownCloseTimeout()}
+	 * per resource. Destroys still running after that are abandoned</li>
+	 * </ol>
+	 */
+	public void destroy(){
+		if(!destroyed.compareAndSet(false, true))
+			return;
+		if(debug)
+			logger.info("de-initializing pool " + name);
+		shutdown = true;
+		for(final Waiter waiter : waiters)
+			waiter.wake();
+
+		final long shutdownTimeout = configuration.getShutdownTimeout();
+		final long deadline = System.currentTimeMillis() + shutdownTimeout;
+		if(registry != null)
+			registry.unregister(this);
+		if(connectionManagerThread != null){
+			connectionManagerThread.terminate();
+			try {
+				connectionManagerThread.join(shutdownTimeout);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		if(snapshot != null)
+			saveSnapshot();
+
+		awaitLeases(deadline);
+
+		//- A slice under way may hold an idle resource, e.g. while validating it. Later slices see the shutdown
+		boolean locked = false;
+		try{
+			locked = maintenanceLock.tryLock(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+		}catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+		}
+		final List<T> resources = new ArrayList<T>(idleQueue.size() + closer.getQueueSize());
+		try{
+			final int idle = idleQueue.drainTo(resources);
+			resourceCount.addAndGet(-idle);
+			metrics.destroyed.addAndGet(idle);
+		}finally{
+			if(locked)
+				maintenanceLock.unlock();
+		}
+		closer.stop(resources);
+		destroyAll(resources);
+
+		if(shutdownHook != null && Thread.currentThread() != shutdownHook){
+			try{
+				Runtime.getRuntime().removeShutdownHook(shutdownHook);
+			}catch(IllegalStateException alreadyShuttingDown){}
+		}
+	}
+
+	private void awaitLeases(final long deadline){
+		synchronized(leaseMonitor){
+			long remaining;
+			while(leasedCount.get() > 0 && (remaining = deadline - System.currentTimeMillis()) > 0){
+				try {
+					leaseMonitor.wait(remaining);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					break;
+				}
+			}
+		}
+		final int outstanding = leasedCount.get();
+		if(outstanding > 0)
+			logger.warning(String.format("%d resources of pool %s still leased at shutdown, they will be destroyed when released",
+					outstanding, name));
+	}
+
+	/**
+	 * Destroys the resources in parallel. The whole phase is bounded by the per resource timeout times the number of
+	 * rounds needed to go through the resources with the available threads
+	 */
+	private void destroyAll(final List<T> resources){
+		if(resources.isEmpty())
+			return;
+		logger.info(String.format("Killing %d resources", resources.size()));
+
+		final int threads = Math.max(1, Math.min(resources.size(), configuration.getShutdownCloseThreads()));
+		final long closeTimeout = configuration.getShutdownCloseTimeout();
+		final long rounds = (resources.size() + threads - 1) / threads;
+		final long deadline = System.currentTimeMillis() + closeTimeout * rounds;
+
+		final ExecutorService executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				final Thread thread = new Thread(runnable, "mycp-shutdown-" + name);
+				//- A close stuck on the network must not keep the JVM alive
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		try{
+			final List<Future<Void>> futures = new ArrayList<Future<Void>>(resources.size());
+			for(final T resource : resources){
+				futures.add(executor.submit(new Callable<Void>() {
+					@Override
+					public Void call() throws Exception {
+						closer.close(resource);
+						return null;
+					}
+				}));
+			}
+
+			final long closeFailed = metrics.closeFailed.get();
+			int timedOut = 0;
+			for(final Future<Void> future : futures){
+				try{
+					future.get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+				}catch(TimeoutException e){
+					future.cancel(true);
+					++timedOut;
+				}catch(ExecutionException e){
+					//- Close failures are counted by the closer
+				}catch(InterruptedException e){
+					Thread.currentThread().interrupt();
+					break;
+				}
+			}
+			final long failed = metrics.closeFailed.get() - closeFailed;
+			if(failed > 0 || timedOut > 0)
+				logger.warning(String.format("Shutdown: %d resources failed to close, %d closes timed out", failed, timedOut));
+		}finally{
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * @return {@code true} once {@link #destroy()} has been called
+	 */
+	public boolean isShutdown(){
+		return shutdown;
+	}
+
+	/************************************************************************************
+	 *    		STATE
+	 ************************************************************************************/
+
+	public String getName(){
+		return name;
+	}
+
+	Configuration getConfiguration(){
+		return configuration;
+	}
+
+	ResourceFactory<T> getFactory(){
+		return factory;
+	}
+
+	public PoolMetrics getMetrics(){
+		return metrics;
+	}
+
+	/**
+	 * @return the number of idle resources
+	 */
+	public int getIdleCount(){
+		return idleQueue.size();
+	}
+
+	/**
+	 * @return the number of resources currently held by borrowers
+	 */
+	public int getLeasedCount(){
+		return leasedCount.get();
+	}
+
+	/**
+	 * @return the number of resources managed by the pool, idle or leased
+	 */
+	public int getResourceCount(){
+		return resourceCount.get();
+	}
+
+	int drainTo(final Collection<? super T> drained, final int count){
+		return idleQueue.drainTo(drained, count);
+	}
+}
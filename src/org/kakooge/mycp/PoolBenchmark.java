@@ -0,0 +1,146 @@
+package org.kakooge.mycp;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Properties;
+
+import com.sun.management.ThreadMXBean;
+
+/**
+ * Measures the steady state borrow/return cycle of a {@link PoolManager} and of a bare {@link Pool} of plain objects.
+ * The pools are filled with stubs so no database is needed and the {@link ConnectionManager} thread is not started.
+ * <p>
+ * Reports the time and the number of bytes allocated by the benchmark thread per cycle, the latter should
+ * be 0 once the JIT has warmed up. Run with {@code java org.kakooge.mycp.PoolBenchmark [cycles]}
+ * </p>
+ * @author Michael Sekamanya
+ *
+ */
+public class PoolBenchmark {
+
+	final static private int POOL_SIZE = 16;
+
+	/**
+	 * @return a {@link Connection} that does nothing, every method returns the default value of its return type
+	 */
+	static Connection stubConnection(){
+		return (Connection)Proxy.newProxyInstance(PoolBenchmark.class.getClassLoader(), new Class<?>[]{Connection.class},
+				new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+				final Class<?> returnType = method.getReturnType();
+				if(method.getName().equals("isValid"))
+					return Boolean.TRUE;
+				if(returnType == boolean.class)
+					return Boolean.FALSE;
+				if(returnType == int.class)
+					return Integer.valueOf(0);
+				if(returnType == long.class)
+					return Long.valueOf(0);
+				return null;
+			}
+		});
+	}
+
+	static PoolManager stubPool(final int size) throws MyCPException, InterruptedException{
+		final Properties mycpProperties = new Properties();
+		mycpProperties.put(Configuration.MYCP_DRIVER, "stub");
+		mycpProperties.put(Configuration.MYCP_DRIVER_URL, "jdbc:stub:");
+		mycpProperties.put(Configuration.MYCP_MAX_CONNECTIONS, Integer.toString(size));
+		mycpProperties.put(Configuration.MYCP_MIN_CONNECTIONS, Integer.toString(size));
+		mycpProperties.put(Configuration.MYCP_MAX_WAIT, "1");
+
+		final PoolManager poolManager = new PoolManager(new Configuration(mycpProperties), new Properties());
+		for(int idx = 0; idx < size; ++idx)
+			poolManager.returnConnection(new MyCPConnection(poolManager, stubConnection()));
+		return poolManager;
+	}
+
+	/**
+	 * A {@link ResourceFactory} of plain objects, the cheapest possible resource
+	 */
+	static Pool<Object> stubObjectPool(final int size) throws MyCPException{
+		final Properties poolProperties = new Properties();
+		poolProperties.put(Configuration.MYCP_MAX_CONNECTIONS, Integer.toString(size));
+		poolProperties.put(Configuration.MYCP_MIN_CONNECTIONS, Integer.toString(size));
+		poolProperties.put(Configuration.MYCP_MAX_WAIT, "1");
+
+		final Pool<Object> pool = new Pool<Object>(new Configuration(poolProperties, false), new ResourceFactory<Object>() {
+			@Override
+			public Object create() {
+				return new Object();
+			}
+
+			@Override
+			public boolean validate(Object resource) {
+				return true;
+			}
+
+			@Override
+			public void reset(Object resource) {
+			}
+
+			@Override
+			public void destroy(Object resource) {
+			}
+		});
+		for(int idx = 0; idx < size; ++idx)
+			pool.add(new Object());
+		return pool;
+	}
+
+	private static abstract class Benchmark{
+		final String name;
+
+		Benchmark(final String name){
+			this.name = name;
+		}
+
+		abstract void cycle(long cycles) throws Exception;
+	}
+
+	private static void measure(final Benchmark benchmark, final long cycles) throws Exception{
+		final ThreadMXBean threadBean = (ThreadMXBean)ManagementFactory.getThreadMXBean();
+		final long threadId = Thread.currentThread().getId();
+
+		//- Let the JIT compile and inline the borrow/return path before measuring
+		for(int warmup = 0; warmup < 5; ++warmup)
+			benchmark.cycle(cycles / 10);
+
+		final long allocatedBefore = threadBean.getThreadAllocatedBytes(threadId);
+		final long start = System.nanoTime();
+		benchmark.cycle(cycles);
+		final long elapsed = System.nanoTime() - start;
+		final long allocated = threadBean.getThreadAllocatedBytes(threadId) - allocatedBefore;
+
+		System.out.println(String.format("%s cycles: %d, ns/cycle: %.1f, bytes allocated: %d, bytes/cycle: %.4f",
+				benchmark.name, cycles, (double)elapsed / cycles, allocated, (double)allocated / cycles));
+	}
+
+	public static void main(String[] args) throws Exception{
+		final long cycles = args.length > 0 ? Long.parseLong(args[0]) : 10000000L;
+		final PoolManager poolManager = stubPool(POOL_SIZE);
+		final Pool<Object> objectPool = stubObjectPool(POOL_SIZE);
+
+		measure(new Benchmark("jdbc") {
+			@Override
+			void cycle(long cycles) throws InterruptedException, SQLException {
+				for(long idx = 0; idx < cycles; ++idx){
+					final Connection connection = poolManager.takeConnection();
+					connection.close();
+				}
+			}
+		}, cycles);
+		measure(new Benchmark("generic") {
+			@Override
+			void cycle(long cycles) throws InterruptedException {
+				for(long idx = 0; idx < cycles; ++idx)
+					objectPool.release(objectPool.acquire());
+			}
+		}, cycles);
+	}
+}
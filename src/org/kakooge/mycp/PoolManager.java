@@ -1,143 +1,690 @@
 package org.kakooge.mycp;
 
+import java.io.IOException;
 import java.sql.Connection;
-import java.util.ArrayList;
+import java.sql.SQLException;
 import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Properties;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
+/**
+ * The JDBC connection pool: a {@link Pool} of {@link MyCPConnection}s created by a {@link JdbcConnectionFactory}.
+ * Connections are leased with {@link #takeConnection()} and come back through {@link MyCPConnection#close()}
+ * @author Michael Sekamanya
+ *
+ */
 public class PoolManager{
 	private final Configuration configuration;
 	/**
 	 * The main underlying pool structure
 	 */
-	private final BlockingQueue<MyCPConnection> poolQueue;
-	private final Properties driverProperties;
-	private ConnectionManager connectionManagerThread;
-	private final boolean debug = System.getProperty("debug")!=null;
+	private final Pool<MyCPConnection> pool;
+	
+	/**
+	 * Handed out when no connection could be taken within {@link Configuration#getMaxWaitForConnection()}. It has no
+	 * underlying connection so it is never returned to the pool; sharing one instance keeps the timeout path allocation free
+	 */
+	private final MyCPConnection timeoutConnection;
+	
+	/**
+	 * Per statement latency statistics, {@code null} unless {@link Configuration#isQueryStats()}
+	 */
+	private final QueryStatistics queryStatistics;
+	
+	/**
+	 * See {@link Configuration#isReentrantLeases()}
+	 */
+	private final boolean reentrantLeases;
+	
+	/**
+	 * The connection leased by the current thread, used to spot a thread asking for a second connection while it
+	 * holds one. Such nested acquires deadlock the pool under load: every thread holds one connection and waits for
+	 * another. The entry is cleared when the owner closes the connection, so a destroyed pool does not stay reachable
+	 * from the threads that used it. It is only trusted if {@link MyCPConnection#isLeasedBy(Thread)}, as a connection
+	 * closed by another thread leaves it stale until the owner leases again
+	 */
+	private final ThreadLocal<MyCPConnection> heldConnection = new ThreadLocal<MyCPConnection>();
+	
+	/**
+	 * Number of nested acquires seen, whether or not re-entrant leases are on
+	 */
+	private final AtomicLong nestedAcquires = new AtomicLong();
+	
+	/**
+	 * Whether {@link #getConnection()} hands out unbound {@link LogicalConnection}s, lazy or transaction binding
+	 */
+	private final boolean lazyBinding;
+	
+	/**
+	 * Whether the {@link LogicalConnection}s give their physical connection back between transactions
+	 */
+	private final boolean multiplexing;
+	
+	/**
+	 * Number of lazy leases closed without ever taking a physical connection
+	 */
+	private final AtomicLong unboundLeases = new AtomicLong();
+	
+	/**
+	 * Expires the query budgets and the lease hold times, shared with the other pools of the same tick and taken at
+	 * {@link #init()}. {@code null} before, or if neither {@link Configuration#getQueryTimeout()} nor
+	 * {@link Configuration#getMaxHoldTime()} is set
+	 */
+	private volatile TimerWheel timer;
+	
+	/**
+	 * See {@link Configuration#getQueryTimeout()} and {@link Configuration#getMaxHoldTime()}
+	 */
+	private final long queryTimeout;
+	private final long maxHoldTime;
+	
+	/**
+	 * Number of statements cancelled for running past {@link #queryTimeout}
+	 */
+	private final AtomicLong cancelledQueries = new AtomicLong();
+	
+	/**
+	 * Number of leases reclaimed for being held past {@link #maxHoldTime}
+	 */
+	private final AtomicLong reclaimedLeases = new AtomicLong();
+	
+	/**
+	 * See {@link Configuration#isRetryReads()}
+	 */
+	private final boolean retryReads;
+	
+	/**
+	 * Number of statements run again on a fresh connection after their connection died
+	 */
+	private final AtomicLong retriedStatements = new AtomicLong();
+	
+	private final JdbcConnectionFactory factory;
+	
+	/**
+	 * Records the lease events, {@code null} unless {@link Configuration#getJournalFile()} is set
+	 */
+	private final LeaseJournal journal;
+	
+	/**
+	 * Sorts the errors thrown through the connections into fatal and transient ones
+	 */
+	private final SqlErrorClassifier errorClassifier;
+	
+	/**
+	 * Numbers the physical connections in the order they are opened, see {@link MyCPConnection#getGeneration()}
+	 */
+	private final AtomicLong generations = new AtomicLong();
+	
+	/**
+	 * Connections of a generation below this one were open when a fatal error was seen and are suspect
+	 */
+	private final AtomicLong suspectBelow = new AtomicLong();
+	
+	/**
+	 * Number of fatal errors seen, and of those that made the connections opened before them suspect
+	 */
+	private final AtomicLong fatalErrors = new AtomicLong();
+	private final AtomicLong evictedGenerations = new AtomicLong();
+	
+	private final Pool.Eviction<MyCPConnection> suspectEviction = new Pool.Eviction<MyCPConnection>() {
+		@Override
+		public boolean evict(final MyCPConnection connection) {
+			return isSuspect(connection);
+		}
+	};
+	
+	/**
+	 * The hold time limit of a lease, one per physical connection and scheduled again on every lease
+	 */
+	private final class HoldTimeout extends TimerWheel.Task{
+		private final MyCPConnection connection;
+		private volatile long leasedAt;
+		/**
+		 * The lease the timeout was scheduled for, see {@link MyCPConnection#getLease()}
+		 */
+		private volatile int lease;
+		
+		HoldTimeout(final MyCPConnection connection){
+			this.connection = connection;
+		}
+		
+		@Override
+		void expire() {
+			holdTimeExpired(this);
+		}
+	}
+	
+	/**
+	 * Bounds the connections held by the parallel queries and bulk loads, see {@link Configuration#getParallelConnections()}
+	 */
+	private final Semaphore parallelLeases;
 	
 	final static private Logger logger = Logger.getLogger(PoolManager.class.getName());
 	
 	public PoolManager(final Configuration configuration, final Properties driverProperties){
+		this(configuration, driverProperties, null);
+	}
+	
+	/**
+	 * @param group the pools sharing a connection budget with this one, {@code null} if none
+	 */
+	PoolManager(final Configuration configuration, final Properties driverProperties, final CredentialPools group){
 		
 		this.configuration = configuration;
-		this.driverProperties = driverProperties;
-		poolQueue = new LinkedBlockingQueue<MyCPConnection>(configuration.getMaxConnections());
+		factory = new JdbcConnectionFactory(this, configuration, driverProperties, group);
+		pool = new Pool<MyCPConnection>(configuration, factory);
+		errorClassifier = new SqlErrorClassifier(configuration);
+		journal = openJournal(configuration);
+		timeoutConnection = new MyCPConnection(this, null);
+		final int parallelConnections = configuration.getParallelConnections();
+		parallelLeases = new Semaphore(parallelConnections > 0 ? parallelConnections : Math.max(1, configuration.getMaxConnections() / 2), true);
+		queryStatistics = configuration.isQueryStats() ? new QueryStatistics(configuration) : null;
+		reentrantLeases = configuration.isReentrantLeases();
+		lazyBinding = !Configuration.BINDING_EAGER.equals(configuration.getBinding());
+		multiplexing = Configuration.BINDING_TRANSACTION.equals(configuration.getBinding());
+		queryTimeout = configuration.getQueryTimeout();
+		maxHoldTime = configuration.getMaxHoldTime();
+		retryReads = configuration.isRetryReads();
+		if(queryStatistics != null){
+			pool.addMaintenanceTask(new Runnable() {
+				@Override
+				public void run() {
+					queryStatistics.exportIfDue();
+				}
+			});
+		}
+	}
+	
+	private static LeaseJournal openJournal(final Configuration configuration){
+		final String journalFile = configuration.getJournalFile();
+		if(StringUtil.Empty(journalFile))
+			return null;
+		try{
+			return new LeaseJournal(journalFile, configuration.getJournalSize(), configuration.getJournalFiles());
+		}catch(IOException e){
+			logger.log(Level.WARNING, String.format("Could not open the lease journal '%s', running without it", journalFile), e);
+			return null;
+		}
 	}
 	
 	public void init(){
-		connectionManagerThread = new ConnectionManager(configuration, driverProperties, this);
-		/*
-		for(int i=0; i<configuration.getMinConnections(); ++i){
-			String url = configuration.getUrl();
-			Connection connection;
-			try {
-				connection = DriverManager.getConnection(url);
-				MyCPConnection mycpConnection = new MyCPConnection(this, connection);
-				mycpConnection.getConnectionId();
-				poolQueue.put(mycpConnection);
-			} catch (Exception e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
+		if((queryTimeout > 0 || maxHoldTime > 0) && timer == null)
+			timer = TimerWheel.acquire(configuration.getTimerTick());
+		pool.init();
+	}
+	
+	/**
+	 * Shuts the pool down in bounded time, see {@link Pool#destroy()}. Connections returned after the shutdown timeout
+	 * are closed by {@link MyCPConnection#close()}
+	 */
+	public void destroy(){
+		final boolean destroyed = pool.isShutdown();
+		if(queryStatistics != null && !destroyed)
+			queryStatistics.export();
+		pool.destroy();
+		//- The hold timeouts still scheduled are dropped when they expire
+		if(timer != null && !destroyed)
+			TimerWheel.release(timer);
+		if(journal != null)
+			journal.close();
+	}
+	
+	/**
+	 * @return {@code true} once {@link #destroy()} has been called
+	 */
+	public boolean isShutdown(){
+		return pool.isShutdown();
+	}
+	
+	/**
+	 * Hands out a lease to the application: a {@link LogicalConnection} that takes its physical connection when needed
+	 * with lazy or transaction binding, otherwise {@link #takeConnection()}
+	 */
+	public Connection getConnection() throws InterruptedException{
+		if(lazyBinding)
+			return LogicalConnection.open(this, multiplexing);
+		return takeConnection();
+	}
+	
+	void unboundLeaseClosed(){
+		unboundLeases.incrementAndGet();
+	}
+	
+	/**
+	 * @return the number of lazy leases closed without ever taking a physical connection
+	 */
+	public long getUnboundLeaseCount(){
+		return unboundLeases.get();
+	}
+	
+	/**
+	 * Leases a connection. If the calling thread already holds a connection, it gets that same connection back when
+	 * {@link Configuration#isReentrantLeases()} is on and the lease only ends with the matching number of
+	 * {@link MyCPConnection#close()} calls. With re-entrant leases off the nested acquire is reported and a second
+	 * connection is taken
+	 * @return the leased connection, or a connection without underlying connection if none became available in time
+	 */
+	public MyCPConnection takeConnection() throws InterruptedException{
+		final Thread thread = Thread.currentThread();
+		final MyCPConnection held = heldConnection.get();
+		final boolean nested = held != null && held.isLeasedBy(thread);
+		if(nested){
+			nestedAcquires.incrementAndGet();
+			if(reentrantLeases){
+				held.reenter();
+				return held;
 			}
+			reportNestedAcquire(thread);
+		}
+		final MyCPConnection connection = lease(thread);
+		if(!nested && connection != timeoutConnection)
+			heldConnection.set(connection);
+		return connection;
+	}
+	
+	/**
+	 * Leases a connection outside the tracking of the connection held by the calling thread: the lease is neither
+	 * handed a connection the thread holds, nor counted as nested, nor remembered for the thread. Used by the
+	 * {@link LogicalConnection}s and the pooled connections of {@link MyCPDataSource}, which a thread may hold several
+	 * of, and by the {@link RowPublisher}, {@link ParallelQuery} and {@link BulkLoader}, whose leases run on executor
+	 * threads that serve unrelated tasks in turn, and may outlive the task that took them
+	 * @return the leased connection, or a connection without underlying connection if none became available in time
+	 */
+	MyCPConnection takeDetachedConnection() throws InterruptedException{
+		return lease(Thread.currentThread());
+	}
+	
+	private MyCPConnection lease(final Thread thread) throws InterruptedException{
+		final long start = journal != null ? System.nanoTime() : 0;
+		final MyCPConnection connection = acquireSound();
+		if(connection == null){
+			if(journal != null)
+				journal.record(LeaseJournal.TIMEOUT, System.nanoTime() - start, 0);
+			return timeoutConnection;
+		}
+		if(journal != null){
+			final long now = System.nanoTime();
+			connection.setLeaseTimes(now, now - start);
+			journal.record(LeaseJournal.ACQUIRE, now - start, 0);
 		}
-		*/
-		
-		if(debug)
-			logger.info("initializing poolmanager");
 		
-		Runtime.getRuntime().addShutdownHook(new Thread(){
+		connection.lease(thread);
+		if(maxHoldTime > 0)
+			startHoldTime(connection);
+		return connection;
+	}
+	
+	/**
+	 * Takes a connection from the pool, validating those left suspect by a fatal error on the way
+	 */
+	private MyCPConnection acquireSound() throws InterruptedException{
+		for(;;){
+			final MyCPConnection connection = pool.acquire();
+			if(connection == null || !isSuspect(connection) || revalidate(connection))
+				return connection;
+			pool.invalidate(connection);
+		}
+	}
+	
+	private boolean isSuspect(final MyCPConnection connection){
+		return connection.getGeneration() < suspectBelow.get();
+	}
+	
+	/**
+	 * Validates a suspect connection, which is no longer suspect if it passes
+	 */
+	private boolean revalidate(final MyCPConnection connection){
+		if(!factory.validate(connection)){
+			pool.getMetrics().validationFailed.incrementAndGet();
+			return false;
+		}
+		connection.setGeneration(nextGeneration());
+		return true;
+	}
+	
+	/**
+	 * @return the journal of the lease events, {@code null} if not recording
+	 */
+	LeaseJournal getJournal(){
+		return journal;
+	}
+	
+	/**
+	 * Records the end of a lease with the wait of its borrower, so that each {@link LeaseJournal#RETURN} describes a whole
+	 * lease even when it is ended by another thread than the one that took it
+	 */
+	private void journalReturn(final MyCPConnection connection){
+		journal.record(LeaseJournal.RETURN, connection.getLeaseWait(), System.nanoTime() - connection.getLeasedAt());
+	}
+	
+	long nextGeneration(){
+		return generations.incrementAndGet();
+	}
+	
+	/**
+	 * Called when a call on {@code connection} threw {@code e}. A fatal error (see {@link SqlErrorClassifier}) marks the
+	 * connection broken and, unless an earlier fatal error already covered it, makes every connection opened before it
+	 * suspect: the idle ones are closed at once and a refill is asked for, the leased ones are validated when they come
+	 * back. After a failover the pool recovers in one step rather than through one failed request per dead connection
+	 */
+	void connectionFailed(final MyCPConnection connection, final SQLException e){
+		//- Already broken, the error was reported by the call that broke it
+		if(connection.isBroken() || !errorClassifier.isFatal(e))
+			return;
+		connection.markBroken();
+		fatalErrors.incrementAndGet();
+		final long covered = suspectBelow.get();
+		if(connection.getGeneration() < covered || !suspectBelow.compareAndSet(covered, generations.get() + 1))
+			return;
+		evictedGenerations.incrementAndGet();
+		final int evicted = pool.evictIdle(suspectEviction);
+		logger.warning(String.format("Pool %s: connection lost (SQLState %s, error %d), closed the %d idle connections opened before it",
+				configuration.getPoolName(), e.getSQLState(), e.getErrorCode(), evicted));
+		pool.requestMaintenance();
+	}
+	
+	boolean isFatal(final SQLException e){
+		return errorClassifier.isFatal(e);
+	}
+	
+	/**
+	 * @return the number of errors after which a connection was closed, see {@link SqlErrorClassifier}
+	 */
+	public long getFatalErrorCount(){
+		return fatalErrors.get();
+	}
+	
+	/**
+	 * @return the number of times the connections opened before a fatal error were evicted together
+	 */
+	public long getEvictedGenerationCount(){
+		return evictedGenerations.get();
+	}
+	
+	private void startHoldTime(final MyCPConnection connection){
+		final TimerWheel timer = this.timer;
+		//- Leases taken before init() are not timed
+		if(timer == null)
+			return;
+		HoldTimeout holdTimeout = (HoldTimeout)connection.getHoldTimeout();
+		if(holdTimeout == null){
+			holdTimeout = new HoldTimeout(connection);
+			connection.setHoldTimeout(holdTimeout);
+		}
+		holdTimeout.leasedAt = System.nanoTime();
+		holdTimeout.lease = connection.getLease();
+		timer.schedule(holdTimeout, maxHoldTime);
+	}
+	
+	private void stopHoldTime(final MyCPConnection connection){
+		final TimerWheel.Task holdTimeout = connection.getHoldTimeout();
+		if(holdTimeout != null && holdTimeout.isScheduled())
+			timer.cancel(holdTimeout);
+	}
+	
+	/**
+	 * Hands a connection held past {@link Configuration#getMaxHoldTime()} to {@link #reclaim} off the wheel thread
+	 */
+	private void holdTimeExpired(final HoldTimeout holdTimeout){
+		final MyCPConnection connection = holdTimeout.connection;
+		final int lease = holdTimeout.lease;
+		final Thread owner = connection.getOwner();
+		if(owner == null || connection.getLease() != lease)
+			return;
+		//- The timeout may have been unlinked by the wheel just as the connection was returned and leased again
+		final long held = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - holdTimeout.leasedAt);
+		if(held < maxHoldTime){
+			timer.schedule(holdTimeout, maxHoldTime - held);
+			return;
+		}
+		runTimeout(new Runnable() {
 			@Override
 			public void run() {
-				PoolManager.this.destroy();
+				reclaim(connection, lease, owner, held);
 			}
 		});
-		
-		connectionManagerThread.start();
 	}
 	
-	public void destroy(){
-		if(debug)
-			logger.info("de-initializing poolManager");
-		connectionManagerThread.terminate();
-		try {
-			connectionManagerThread.join();
-		} catch (InterruptedException e) {
-			e.printStackTrace();
-		}
-		
-		/**
-		 * Keep trying to destroy the connections. Drain until pool is completely drained
-		 */
-		while(poolQueue.size()>0){
-			final Collection<MyCPConnection> collection = new ArrayList<MyCPConnection>(poolQueue.size());
-			logger.info(String.format("Killing %d connections", collection.size()));
-			
-			for(final MyCPConnection mycpConnection : collection){
-				if(mycpConnection==null)
-					continue;
-				try{
-					final Connection connection = mycpConnection.getUnderlyingConnection();
-					if(connection!=null)
-						connection.close();
-				}catch(Exception e){
-				}
-			}
-		}
+	/**
+	 * Reclaims a connection held too long: the statements are closed and the underlying connection is closed so that
+	 * the pool can replace it, whatever the borrower is doing with it. Nothing is done if {@code lease} ended since the
+	 * timeout expired, the connection may be with another borrower by now. The warning carries the stack of the
+	 * borrower at the time of the reclaim, which usually points at the leak
+	 */
+	private void reclaim(final MyCPConnection connection, final int lease, final Thread owner, final long held){
+		final Throwable borrower = new Throwable(String.format("connection held by thread '%s'", owner.getName()));
+		borrower.setStackTrace(owner.getStackTrace());
+		if(!connection.discard(lease))
+			return;
+		reclaimedLeases.incrementAndGet();
+		logger.log(Level.WARNING, String.format("Reclaiming a connection held for %d ms, more than %s=%d", held,
+				Configuration.MYCP_MAX_HOLD_TIME, maxHoldTime), borrower);
 	}
 	
-	public MyCPConnection takeConnection() throws InterruptedException{
-		/*
-		if(debug)
-			System.out.println(String.format("Thread %d taking connection", Thread.currentThread().getId()));
-
-		if(debug)
-			System.out.println(String.format("Thread %d Before pool size = %d", Thread.currentThread().getId(), poolQueue.size()));
-		*/
-		MyCPConnection connection = poolQueue.poll(configuration.getMaxWaitForConnection(), TimeUnit.SECONDS);
-		
-		/*
-		 * This causes the pool, if sleeping, to wake up and check that the pool number are OK
-		 */
-		/*
-		if(poolQueue.size()==0)
-			connectionManagerThread.checkPool();
-		*/
-		
-		if(connection == null)
-			connection = new MyCPConnection(this, null);
-		
-		/*
-		if(debug)
-			System.out.println(String.format("Thread %d After pool size = %d", Thread.currentThread().getId(), poolQueue.size()));
-		*/
-		return connection;
+	/**
+	 * Runs work due on the timer off the wheel thread, see {@link TimerWheel#execute(Runnable)}. The work is dropped
+	 * once the pool is destroyed
+	 */
+	void runTimeout(final Runnable task){
+		if(!pool.isShutdown())
+			timer.execute(task);
+	}
+	
+	/**
+	 * @return the timer expiring the query budgets, {@code null} if {@link Configuration#getQueryTimeout()} is not set
+	 */
+	TimerWheel getQueryTimer(){
+		return queryTimeout > 0 ? timer : null;
+	}
+	
+	long getQueryTimeout(){
+		return queryTimeout;
+	}
+	
+	void queryCancelled(){
+		cancelledQueries.incrementAndGet();
+	}
+	
+	/**
+	 * @return the number of statements cancelled for running longer than {@link Configuration#getQueryTimeout()}
+	 */
+	public long getCancelledQueryCount(){
+		return cancelledQueries.get();
+	}
+	
+	/**
+	 * @return the number of leases reclaimed for being held longer than {@link Configuration#getMaxHoldTime()}
+	 */
+	public long getReclaimedLeaseCount(){
+		return reclaimedLeases.get();
+	}
+	
+	/**
+	 * Logs the first nested acquire with the stack of the offending call, later ones at {@link Level#FINE} only. The
+	 * total is available from {@link #getNestedAcquireCount()}
+	 */
+	private void reportNestedAcquire(final Thread thread){
+		if(nestedAcquires.get() == 1)
+			logger.log(Level.WARNING, String.format("Thread '%s' asked for a connection while holding one, this can deadlock the pool under load. " +
+					"Set %s=true to hand the thread the connection it holds", thread.getName(), Configuration.MYCP_REENTRANT_LEASES), new Throwable("nested acquire"));
+		else if(logger.isLoggable(Level.FINE))
+			logger.log(Level.FINE, String.format("Nested acquire by thread '%s'", thread.getName()), new Throwable("nested acquire"));
 	}
 
 	/**
-	 * Returns the supplied {@link MyCPConnection} to the pool. All this does is to execute {@link BlockingQueue#offer(Object)}
-	 * and returns the result of that operation
+	 * Gives the lease on {@code connection} the underlying connection of an idle connection, and evicts the dead
+	 * underlying connection it had. The lease, the {@link LogicalConnection} bound to it and the statement being retried
+	 * carry on as they are
+	 * @param timeout milliseconds to wait for an idle connection
+	 * @return {@code false} if no connection became available in time
+	 */
+	boolean replaceUnderlying(final MyCPConnection connection, final long timeout) throws InterruptedException{
+		final MyCPConnection spare = pool.acquire(timeout, TimeUnit.MILLISECONDS);
+		if(spare == null)
+			return false;
+		if(isSuspect(spare) && !revalidate(spare)){
+			pool.invalidate(spare);
+			return false;
+		}
+		connection.exchangeUnderlying(spare);
+		pool.invalidate(spare);
+		return true;
+	}
+	
+	boolean isRetryReads(){
+		return retryReads;
+	}
+	
+	void statementRetried(){
+		retriedStatements.incrementAndGet();
+	}
+	
+	/**
+	 * @return the number of statements run again on a fresh connection, see {@link Configuration#isRetryReads()}
+	 */
+	public long getRetriedStatementCount(){
+		return retriedStatements.get();
+	}
+	
+	/**
+	 * Streams the rows of a query without holding them in memory. A connection is leased when the subscriber first asks
+	 * for rows and given back when the stream completes, fails or is cancelled, see {@link RowPublisher}
+	 * @param executor runs the query and reads the rows
+	 * @param parameters the values of the {@code ?} parameters of {@code sql}, set with {@code setObject}
+	 * @return a publisher running the query anew for every subscriber
+	 */
+	public <T> Flow.Publisher<T> stream(final Executor executor, final String sql, final RowMapper<T> mapper, final Object... parameters){
+		return new RowPublisher<T>(this, executor, sql, mapper, parameters);
+	}
+	
+	/**
+	 * Runs the partitions of a query side by side, each on a connection of the pool, and merges their rows, see
+	 * {@link ParallelQuery}. The parallel queries of the pool hold at most {@link Configuration#getParallelConnections()}
+	 * connections together
+	 * @param executor runs the partitions, at least {@code parallelism} of its threads should be free
+	 * @param parallelism the most connections this query holds at once
+	 * @param sql takes the {@code parameters} first, then the two parameters of the partition
+	 * @param parameters the values of the leading {@code ?} parameters of {@code sql}, set with {@code setObject}
+	 * @return the rows of all the partitions, in partition order
+	 * @throws SQLException the first failure of a partition, the others have been cancelled
+	 */
+	public <T> List<T> parallelQuery(final Executor executor, final int parallelism, final String sql,
+			final Partitioning partitioning, final RowMapper<T> mapper, final Object... parameters) throws SQLException, InterruptedException{
+		return new ParallelQuery<T>(this, parallelLeases, sql, partitioning, mapper, parameters).run(executor, parallelism);
+	}
+	
+	/**
+	 * Inserts, or updates, the rows of {@code source} in batches run on several connections of the pool at once, see
+	 * {@link BulkLoader}. The loads hold at most {@link Configuration#getParallelConnections()} connections together with
+	 * the parallel queries
+	 * @param executor runs the batches, at least {@code parallelism} of its threads should be free
+	 * @param parallelism the most connections this load holds at once
+	 * @param sql the statement run for every row
+	 * @param source the rows, read on the calling thread
+	 * @param binder sets the parameters of {@code sql} from a row
+	 * @throws SQLException the first failure that retrying did not overcome, the rows committed before it stay loaded
+	 */
+	public <T> BulkLoadReport bulkLoad(final Executor executor, final int parallelism, final String sql, final Iterator<T> source,
+			final RowBinder<T> binder) throws SQLException, InterruptedException{
+		return new BulkLoader<T>(this, parallelLeases, sql, binder).run(executor, parallelism, source);
+	}
+	
+	/**
+	 * Adds the supplied {@link MyCPConnection}, created outside the pool, to the pool
 	 * @param mycpConnection
-	 * @return
+	 * @return {@code false} if the pool is full or shut down
 	 * @throws InterruptedException
 	 */
 	public boolean returnConnection(final MyCPConnection mycpConnection) throws InterruptedException{
-		boolean result = poolQueue.offer(mycpConnection);
-		/*
-		if(debug)
-			logger.info("Returning the connection: " + poolQueue.size());
-		*/
-		return result;
+		if(mycpConnection == timeoutConnection)
+			return true;
+		return pool.add(mycpConnection);
+	}
+	
+	/**
+	 * Called by {@link MyCPConnection#close()} at the end of a lease. The connection is reset and put back into the pool,
+	 * or closed if that is not possible
+	 * @return {@code false} if the connection was closed
+	 */
+	boolean returnLease(final MyCPConnection mycpConnection){
+		forgetHeld(mycpConnection);
+		if(maxHoldTime > 0)
+			stopHoldTime(mycpConnection);
+		if(journal != null)
+			journalReturn(mycpConnection);
+		if(mycpConnection.isBroken() || (isSuspect(mycpConnection) && !revalidate(mycpConnection))){
+			pool.invalidate(mycpConnection);
+			return false;
+		}
+		return pool.release(mycpConnection);
+	}
+	
+	/**
+	 * Called by {@link MyCPConnection#discard()}, the underlying connection is closed instead of going back to the pool
+	 */
+	void discardLease(final MyCPConnection mycpConnection){
+		forgetHeld(mycpConnection);
+		if(maxHoldTime > 0)
+			stopHoldTime(mycpConnection);
+		if(journal != null)
+			journalReturn(mycpConnection);
+		pool.invalidate(mycpConnection);
+	}
+	
+	/**
+	 * Clears {@link #heldConnection} when the lease ending is the one it records for the calling thread. Set to
+	 * {@code null} rather than removed, the entry is reused by the thread's next lease instead of being allocated again
+	 */
+	private void forgetHeld(final MyCPConnection mycpConnection){
+		if(heldConnection.get() == mycpConnection)
+			heldConnection.set(null);
+	}
+	
+	/**
+	 * @return the number of times a thread asked for a connection while it held one
+	 */
+	public long getNestedAcquireCount(){
+		return nestedAcquires.get();
+	}
+	
+	/**
+	 * @return the number of connections currently held by borrowers
+	 */
+	public int getLeasedCount(){
+		return pool.getLeasedCount();
+	}
+	
+	QueryStatistics getQueryStatistics(){
+		return queryStatistics;
+	}
+	
+	Configuration getConfiguration(){
+		return configuration;
+	}
+	
+	/**
+	 * @return the generic pool behind this connection pool
+	 */
+	public Pool<MyCPConnection> getPool(){
+		return pool;
+	}
+	
+	public PoolMetrics getMetrics(){
+		return pool.getMetrics();
 	}
 	
 	public int getPoolSize(){
-		return poolQueue.size();
+		return pool.getIdleCount();
 	}
 	
 	public int drainTo(Collection<MyCPConnection> drainedConnections, int connectionCount){
-		return poolQueue.drainTo(drainedConnections, connectionCount);
+		return pool.drainTo(drainedConnections, connectionCount);
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,119 @@
+package org.kakooge.mycp;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters kept by a {@link Pool}. Times are in microseconds
+ * @author Michael Sekamanya
+ *
+ */
+public class PoolMetrics{
+	final AtomicLong acquired = new AtomicLong();
+	final AtomicLong timedOut = new AtomicLong();
+	final AtomicLong created = new AtomicLong();
+	final AtomicLong createFailed = new AtomicLong();
+	final AtomicLong destroyed = new AtomicLong();
+	final AtomicLong validationFailed = new AtomicLong();
+	final AtomicLong closeFailed = new AtomicLong();
+	final AtomicLong closeTimedOut = new AtomicLong();
+	final AtomicLong closedInline = new AtomicLong();
+	final AtomicLong createThrottled = new AtomicLong();
+
+	/**
+	 * Time spent waiting by the borrowers that found the pool empty. Borrowers served immediately are only counted
+	 * in {@link #getAcquired()} to keep the fast path cheap
+	 */
+	final LatencyHistogram waitTime = new LatencyHistogram();
+
+	/**
+	 * Time taken by {@link ResourceFactory#create()}
+	 */
+	final LatencyHistogram createTime = new LatencyHistogram();
+
+	/**
+	 * Time taken by {@link ResourceFactory#destroy(Object)}, including the destroys that failed
+	 */
+	final LatencyHistogram closeTime = new LatencyHistogram();
+
+	/**
+	 * Time the creations held back by {@link Configuration#getCreateRate()} waited
+	 */
+	final LatencyHistogram throttleTime = new LatencyHistogram();
+
+	public long getAcquired(){
+		return acquired.get();
+	}
+
+	public long getTimedOut(){
+		return timedOut.get();
+	}
+
+	public long getCreated(){
+		return created.get();
+	}
+
+	public long getCreateFailed(){
+		return createFailed.get();
+	}
+
+	public long getDestroyed(){
+		return destroyed.get();
+	}
+
+	public long getValidationFailed(){
+		return validationFailed.get();
+	}
+
+	/**
+	 * @return the number of destroys that threw
+	 */
+	public long getCloseFailed(){
+		return closeFailed.get();
+	}
+
+	/**
+	 * @return the number of destroys given up on after the close timeout, see {@link ResourceCloser}
+	 */
+	public long getCloseTimedOut(){
+		return closeTimedOut.get();
+	}
+
+	/**
+	 * @return the number of resources destroyed on the thread letting go of them because the close queue was full
+	 */
+	public long getClosedInline(){
+		return closedInline.get();
+	}
+
+	/**
+	 * @return the number of creations that waited for the creation rate limit
+	 */
+	public long getCreateThrottled(){
+		return createThrottled.get();
+	}
+
+	public LatencyHistogram getWaitTime(){
+		return waitTime;
+	}
+
+	public LatencyHistogram getCreateTime(){
+		return createTime;
+	}
+
+	public LatencyHistogram getCloseTime(){
+		return closeTime;
+	}
+
+	public LatencyHistogram getThrottleTime(){
+		return throttleTime;
+	}
+
+	@Override
+	public String toString(){
+		return String.format("acquired=%d timedOut=%d created=%d createFailed=%d destroyed=%d validationFailed=%d " +
+				"closeFailed=%d closeTimedOut=%d closedInline=%d createThrottled=%d wait[%s] create[%s] close[%s] throttle[%s]",
+				getAcquired(), getTimedOut(), getCreated(), getCreateFailed(), getDestroyed(), getValidationFailed(),
+				getCloseFailed(), getCloseTimedOut(), getClosedInline(), getCreateThrottled(), waitTime.summary(),
+				createTime.summary(), closeTime.summary(), throttleTime.summary());
+	}
+}
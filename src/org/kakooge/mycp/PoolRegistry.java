@@ -0,0 +1,138 @@
+package org.kakooge.mycp;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs the maintenance cycles ({@link Pool#maintain()}) of many pools on a few shared threads, instead of one
+ * {@link ConnectionManager} thread per pool. Used by the pools with {@link Configuration#isSharedMaintenance()} set,
+ * which register at {@link Pool#init()} and leave at {@link Pool#destroy()}.
+ * <p>
+ * Every pool has its own deadline, {@link ConnectionManager#CYCLE_INTERVAL} after the end of its previous cycle so a
+ * slow cycle never overlaps the next one. Deadlines are rounded up to {@link #COALESCE_INTERVAL} so that the pools due
+ * around the same time are maintained on one wake up: with hundreds of pools the threads wake up at most once per
+ * interval rather than once per pool
+ * </p>
+ * @author Michael Sekamanya
+ *
+ */
+public class PoolRegistry{
+
+	/**
+	 * Granularity of the maintenance deadlines
+	 */
+	final static long COALESCE_INTERVAL = 1000;
+
+	final private static Logger logger = Logger.getLogger(PoolRegistry.class.getName());
+
+	private static PoolRegistry shared;
+
+	private final ScheduledThreadPoolExecutor scheduler;
+	private final ConcurrentMap<Pool<?>, Registration> registrations = new ConcurrentHashMap<Pool<?>, Registration>();
+	private final long start = System.nanoTime();
+
+	private class Registration implements Runnable{
+		private final Pool<?> pool;
+		private volatile boolean cancelled = false;
+
+		Registration(final Pool<?> pool){
+			this.pool = pool;
+		}
+
+		@Override
+		public void run() {
+			if(cancelled || pool.isShutdown())
+				return;
+			try{
+				pool.maintain();
+			}catch(RuntimeException e){
+				logger.log(Level.WARNING, String.format("Maintenance of pool %s failed", pool.getName()), e);
+			}
+			if(!cancelled)
+				schedule(this, ConnectionManager.CYCLE_INTERVAL);
+		}
+	}
+
+	/**
+	 * @param threads the number of threads running the maintenance cycles
+	 */
+	public PoolRegistry(final int threads){
+		final AtomicInteger count = new AtomicInteger();
+		scheduler = new ScheduledThreadPoolExecutor(Math.max(1, threads), new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				final Thread thread = new Thread(runnable, "mycp-registry-" + count.incrementAndGet());
+				//- Shared by the pools of the JVM, each pool's shutdown hook destroys it
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * @return the registry shared by the pools of this class loader, with one thread per two processors and at most
+	 * four
+	 */
+	public static synchronized PoolRegistry getShared(){
+		if(shared == null)
+			shared = new PoolRegistry(Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2)));
+		return shared;
+	}
+
+	/**
+	 * Schedules {@code registration} at the first {@link #COALESCE_INTERVAL} boundary at least {@code delay}
+	 * milliseconds away
+	 */
+	private void schedule(final Registration registration, final long delay){
+		final long now = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+		final long deadline = (now + delay + COALESCE_INTERVAL - 1) / COALESCE_INTERVAL * COALESCE_INTERVAL;
+		scheduler.schedule(registration, deadline - now, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Maintains {@code pool} from now on, starting with a cycle on the next wake up
+	 */
+	public void register(final Pool<?> pool){
+		final Registration registration = new Registration(pool);
+		if(registrations.putIfAbsent(pool, registration) == null)
+			schedule(registration, 0);
+	}
+
+	/**
+	 * Runs a maintenance cycle of {@code pool} now, outside of its schedule
+	 */
+	void maintainNow(final Pool<?> pool){
+		final Registration registration = registrations.get(pool);
+		if(registration == null)
+			return;
+		scheduler.execute(new Runnable() {
+			@Override
+			public void run() {
+				if(!registration.cancelled && !pool.isShutdown())
+					pool.maintain();
+			}
+		});
+	}
+
+	/**
+	 * Stops maintaining {@code pool}. A cycle under way is not interrupted
+	 */
+	public void unregister(final Pool<?> pool){
+		final Registration registration = registrations.remove(pool);
+		if(registration != null)
+			registration.cancelled = true;
+	}
+
+	/**
+	 * @return the number of pools maintained
+	 */
+	public int getPoolCount(){
+		return registrations.size();
+	}
+}
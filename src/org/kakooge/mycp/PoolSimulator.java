@@ -0,0 +1,316 @@
+package org.kakooge.mycp;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.PriorityQueue;
+import java.util.Properties;
+import java.util.Random;
+
+/**
+ * Discrete event simulation of a pool managed by the {@link SizingPolicy} used by the {@link ConnectionManager}.
+ * Borrowers arrive following a {@link LoadGenerator.ArrivalPattern}, hold their connection for a time drawn from a
+ * {@link Distribution} and give up after the configured maximum wait. The management cycle is modelled as in
+ * {@link ConnectionManager#run()}: connections are created one after the other, each taking a connect latency drawn
+ * from a distribution, idle connections are then closed and the manager sleeps until the next cycle.
+ * <p>
+ * Time is virtual so hours of traffic run in seconds. The simulation reports the borrow wait percentiles, the number of
+ * borrows that timed out, the connection churn and the peak number of database sessions
+ * </p>
+ * <pre>
+ * java org.kakooge.mycp.PoolSimulator &lt;mycp properties&gt; [hours] [arrivals per second|curve file] [mean hold ms] [mean connect ms]
+ * </pre>
+ * @author Michael Sekamanya
+ *
+ */
+public class PoolSimulator {
+
+	/**
+	 * A random variable, in milliseconds for the simulator
+	 */
+	static abstract class Distribution{
+		abstract double sample(Random random);
+
+		static Distribution constant(final double value){
+			return new Distribution(){
+				@Override
+				double sample(Random random) {
+					return value;
+				}
+			};
+		}
+
+		static Distribution exponential(final double mean){
+			return new Distribution(){
+				@Override
+				double sample(Random random) {
+					return -Math.log(1 - random.nextDouble()) * mean;
+				}
+			};
+		}
+
+		/**
+		 * A log-normal distribution with the given mean, {@code sigma} controls the length of the tail
+		 */
+		static Distribution logNormal(final double mean, final double sigma){
+			final double mu = Math.log(mean) - sigma * sigma / 2;
+			return new Distribution(){
+				@Override
+				double sample(Random random) {
+					return Math.exp(mu + sigma * random.nextGaussian());
+				}
+			};
+		}
+	}
+
+	final private static int ARRIVAL = 0;
+	final private static int RELEASE = 1;
+	final private static int TIMEOUT = 2;
+	final private static int CONNECTED = 3;
+	final private static int CYCLE = 4;
+
+	private static class Waiter{
+		final long arrival;
+		boolean done;
+
+		Waiter(final long arrival){
+			this.arrival = arrival;
+		}
+	}
+
+	private static class Event implements Comparable<Event>{
+		final long time;
+		final long sequence;
+		final int type;
+		final Waiter waiter;
+
+		Event(final long time, final long sequence, final int type, final Waiter waiter){
+			this.time = time;
+			this.sequence = sequence;
+			this.type = type;
+			this.waiter = waiter;
+		}
+
+		@Override
+		public int compareTo(Event o) {
+			if(time != o.time)
+				return time < o.time ? -1 : 1;
+			return sequence < o.sequence ? -1 : (sequence == o.sequence ? 0 : 1);
+		}
+	}
+
+	final private SizingPolicy sizingPolicy;
+	final private LoadGenerator.ArrivalPattern arrivals;
+	final private Distribution holdTime;
+	final private Distribution connectTime;
+
+	/**
+	 * Virtual times are in microseconds
+	 */
+	final private long maxWait;
+	final private long cycleInterval;
+	final private Random random;
+
+	final private PriorityQueue<Event> events = new PriorityQueue<Event>();
+	final private ArrayDeque<Waiter> waiters = new ArrayDeque<Waiter>();
+	private long now = 0;
+	private long sequence = 0;
+
+	//- The pool as the ConnectionManager sees it
+	private int idle = 0;
+	private int connectionCount = 0;
+	private int pendingCreates = 0;
+
+	//- Results
+	final private LatencyHistogram waitTime = new LatencyHistogram();
+	private long borrows = 0;
+	private long timeouts = 0;
+	private long creates = 0;
+	private long destroys = 0;
+	private int peakSessions = 0;
+
+	/**
+	 * @param sizingPolicy the policy under test
+	 * @param arrivals borrow arrivals per second
+	 * @param holdTime how long a borrower holds its connection in milliseconds
+	 * @param connectTime how long establishing a physical connection takes in milliseconds
+	 * @param maxWait how long a borrower waits for a connection before giving up in milliseconds
+	 * @param cycleInterval the time between two management cycles in milliseconds
+	 * @param seed the random seed, runs with the same seed are identical
+	 */
+	PoolSimulator(final SizingPolicy sizingPolicy, final LoadGenerator.ArrivalPattern arrivals, final Distribution holdTime,
+			final Distribution connectTime, final long maxWait, final long cycleInterval, final long seed){
+		this.sizingPolicy = sizingPolicy;
+		this.arrivals = arrivals;
+		this.holdTime = holdTime;
+		this.connectTime = connectTime;
+		this.maxWait = maxWait * 1000;
+		this.cycleInterval = cycleInterval * 1000;
+		this.random = new Random(seed);
+	}
+
+	private void schedule(final long time, final int type, final Waiter waiter){
+		events.add(new Event(time, sequence++, type, waiter));
+	}
+
+	private long sampleMicros(final Distribution distribution){
+		return Math.max(0, (long)(distribution.sample(random) * 1000));
+	}
+
+	/**
+	 * Runs the simulation for {@code duration} milliseconds of virtual time
+	 */
+	void run(final long duration){
+		final long end = duration * 1000;
+		schedule(0, CYCLE, null);
+		schedule(0, ARRIVAL, null);
+
+		Event event;
+		while((event = events.poll()) != null && event.time <= end){
+			now = event.time;
+			switch(event.type){
+			case ARRIVAL:
+				arrival();
+				break;
+			case RELEASE:
+				release();
+				break;
+			case TIMEOUT:
+				timeout(event.waiter);
+				break;
+			case CONNECTED:
+				connected();
+				break;
+			case CYCLE:
+				cycle();
+				break;
+			}
+		}
+	}
+
+	private void arrival(){
+		final double rate = arrivals.rate(now / 1000);
+		if(rate <= 0){
+			schedule(now + 1000000, ARRIVAL, null);
+			return;
+		}
+		schedule(now + (long)(-Math.log(1 - random.nextDouble()) * 1e6 / rate), ARRIVAL, null);
+
+		++borrows;
+		if(idle > 0){
+			--idle;
+			waitTime.record(0);
+			schedule(now + sampleMicros(holdTime), RELEASE, null);
+			return;
+		}
+		final Waiter waiter = new Waiter(now);
+		waiters.add(waiter);
+		schedule(now + maxWait, TIMEOUT, waiter);
+	}
+
+	/**
+	 * A connection became available, either returned by a borrower or newly created
+	 */
+	private void release(){
+		Waiter waiter;
+		while((waiter = waiters.poll()) != null){
+			if(waiter.done)
+				continue;
+			waiter.done = true;
+			waitTime.record(now - waiter.arrival);
+			schedule(now + sampleMicros(holdTime), RELEASE, null);
+			return;
+		}
+		++idle;
+	}
+
+	private void timeout(final Waiter waiter){
+		if(waiter.done)
+			return;
+		waiter.done = true;
+		++timeouts;
+		waitTime.record(maxWait);
+	}
+
+	private void cycle(){
+		pendingCreates = sizingPolicy.connectionsToCreate(idle, connectionCount);
+		if(pendingCreates > 0 && connectionCount < sizingPolicy.getMaxConnections())
+			schedule(now + sampleMicros(connectTime), CONNECTED, null);
+		else
+			endCycle();
+	}
+
+	private void connected(){
+		++connectionCount;
+		++creates;
+		peakSessions = Math.max(peakSessions, connectionCount);
+		release();
+		if(--pendingCreates > 0 && connectionCount < sizingPolicy.getMaxConnections())
+			schedule(now + sampleMicros(connectTime), CONNECTED, null);
+		else
+			endCycle();
+	}
+
+	/**
+	 * Shrinks the pool and sleeps until the next cycle
+	 */
+	private void endCycle(){
+		final int decrementValue = sizingPolicy.connectionsToDestroy(idle, connectionCount);
+		for(int idx = 0; idx < decrementValue && connectionCount > sizingPolicy.getMinConnections() && idle > 0; ++idx){
+			--idle;
+			--connectionCount;
+			++destroys;
+		}
+		schedule(now + cycleInterval, CYCLE, null);
+	}
+
+	String report(final long wallTime){
+		final double hours = now / 3.6e9;
+		final StringBuilder builder = new StringBuilder();
+		builder.append(String.format("Simulated %.2f hours in %d ms%n", hours, wallTime));
+		builder.append(String.format("borrows: %d, timed out: %d (%.3f%%)%n", borrows, timeouts, borrows == 0 ? 0 : 100.0 * timeouts / borrows));
+		builder.append(String.format("wait (ms): p50=%.3f p90=%.3f p99=%.3f p99.9=%.3f max=%.3f%n", waitTime.getValueAtPercentile(50) / 1000.0,
+				waitTime.getValueAtPercentile(90) / 1000.0, waitTime.getValueAtPercentile(99) / 1000.0,
+				waitTime.getValueAtPercentile(99.9) / 1000.0, waitTime.getMax() / 1000.0));
+		builder.append(String.format("connections created: %d, closed: %d, churn: %.1f/hour%n", creates, destroys,
+				hours == 0 ? 0 : (creates + destroys) / hours));
+		builder.append(String.format("peak sessions: %d, final sessions: %d (%d idle)%n", peakSessions, connectionCount, idle));
+		return builder.toString();
+	}
+
+	private static Properties load(final String fileName) throws IOException{
+		final Properties properties = new Properties();
+		final InputStream in = new FileInputStream(fileName);
+		try{
+			properties.load(in);
+		}finally{
+			in.close();
+		}
+		return properties;
+	}
+
+	public static void main(String[] args) throws Exception{
+		if(args.length < 1){
+			System.err.println("usage: PoolSimulator <mycp properties> [hours] [arrivals per second|curve file] [mean hold ms] [mean connect ms]");
+			return;
+		}
+		final Configuration configuration = new Configuration(load(args[0]));
+		final double hours = args.length > 1 ? Double.parseDouble(args[1]) : 8;
+		final LoadGenerator.ArrivalPattern arrivals = args.length > 2 && new File(args[2]).exists() ?
+				LoadGenerator.ArrivalPattern.replay(args[2]) :
+				LoadGenerator.ArrivalPattern.fixed(args.length > 2 ? Double.parseDouble(args[2]) : 50);
+		final double hold = args.length > 3 ? Double.parseDouble(args[3]) : 200;
+		final double connect = args.length > 4 ? Double.parseDouble(args[4]) : 50;
+
+		//- The pool waits mycp.max.wait seconds for a connection
+		final long maxWait = Math.min(configuration.getMaxWaitForConnection(), Long.MAX_VALUE / 1000000) * 1000;
+		final PoolSimulator simulator = new PoolSimulator(new SizingPolicy(configuration), arrivals,
+				Distribution.logNormal(hold, 1), Distribution.logNormal(connect, 0.5), maxWait, ConnectionManager.CYCLE_INTERVAL, 1);
+
+		final long start = System.currentTimeMillis();
+		simulator.run((long)(hours * 3600 * 1000));
+		System.out.print(simulator.report(System.currentTimeMillis() - start));
+	}
+}
@@ -0,0 +1,187 @@
+package org.kakooge.mycp;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * What a {@link Pool} learned about its load, kept across restarts so that a new JVM does not start from the minimum
+ * size every time:
+ * <ol>
+ * <li>the steady state size, a moving average of the number of managed resources</li>
+ * <li>the demand profile, for every hour of the day a moving average over the days of the peak number of leased
+ * resources in that hour</li>
+ * <li>a moving average of the time taken to create a resource, which tells the pool how early to grow ahead of a
+ * busier hour</li>
+ * </ol>
+ * The snapshot is a small binary file written with {@link DataOutputStream}, to a temporary file first then renamed
+ * so that a crash while saving leaves the previous snapshot intact. Not thread safe, only used from the maintenance
+ * thread and from {@link Pool#destroy()}
+ * @author Michael Sekamanya
+ *
+ */
+class PoolSnapshot{
+
+	final private static int MAGIC = 0x4d594350;
+	final private static int VERSION = 1;
+	final static int HOURS = 24;
+
+	/**
+	 * Weight of a new observation in the moving averages. The steady state size is updated every maintenance cycle,
+	 * the hourly profile once a day
+	 */
+	final private static double STEADY_STATE_WEIGHT = 0.05;
+	final private static double PROFILE_WEIGHT = 0.3;
+	final private static double CONNECT_LATENCY_WEIGHT = 0.2;
+
+	/**
+	 * Share of the pool expected to be leased at peak, the rest is the idle headroom the {@link SizingPolicy} aims for
+	 */
+	final static double TARGET_UTILIZATION = 0.85;
+
+	private double steadyStateSize = -1;
+	private double connectLatency = -1;
+
+	/**
+	 * Peak leased resources per hour of the day, -1 for an hour never observed
+	 */
+	private final double[] demandProfile = new double[HOURS];
+
+	/**
+	 * The hour being observed and the peak seen so far in it, folded into {@link #demandProfile} when the hour ends
+	 */
+	private int currentHour = -1;
+	private int currentHourPeak = 0;
+
+	PoolSnapshot(){
+		Arrays.fill(demandProfile, -1);
+	}
+
+	private static double average(final double average, final double value, final double weight){
+		return average < 0 ? value : weight * value + (1 - weight) * average;
+	}
+
+	/**
+	 * Records one maintenance cycle
+	 * @param hour the hour of the day, 0 to 23
+	 * @param peakLeased the peak number of leased resources since the previous cycle
+	 * @param resourceCount the number of resources managed by the pool
+	 */
+	void observe(final int hour, final int peakLeased, final int resourceCount){
+		if(hour != currentHour){
+			foldCurrentHour(false);
+			currentHour = hour;
+			currentHourPeak = 0;
+		}
+		currentHourPeak = Math.max(currentHourPeak, peakLeased);
+		steadyStateSize = average(steadyStateSize, resourceCount, STEADY_STATE_WEIGHT);
+	}
+
+	/**
+	 * @param latency the mean time taken by the resources created since the previous cycle
+	 */
+	void observeConnectLatency(final double latency){
+		connectLatency = average(connectLatency, latency, CONNECT_LATENCY_WEIGHT);
+	}
+
+	/**
+	 * Folds the peak of the hour under observation into the profile. A partial hour, e.g. at shutdown, only raises the
+	 * profile: a restart in the middle of a busy hour must not teach the pool that the hour is quiet
+	 */
+	private void foldCurrentHour(final boolean partial){
+		if(currentHour < 0)
+			return;
+		final double previous = demandProfile[currentHour];
+		if(partial && previous >= currentHourPeak)
+			return;
+		demandProfile[currentHour] = average(previous, currentHourPeak, PROFILE_WEIGHT);
+	}
+
+	/**
+	 * @return the expected peak number of leased resources in {@code hour}, or the share of the steady state size
+	 * expected to be leased if the hour was never observed, or -1 if nothing is known. The steady state size already
+	 * includes the idle headroom, which the caller adds to the demand
+	 */
+	double expectedDemand(final int hour){
+		final double demand = demandProfile[hour];
+		if(hour == currentHour)
+			return Math.max(demand, currentHourPeak);
+		if(demand >= 0)
+			return demand;
+		return steadyStateSize < 0 ? -1 : steadyStateSize * TARGET_UTILIZATION;
+	}
+
+	/**
+	 * @return the moving average of the resource creation time in microseconds, -1 if unknown
+	 */
+	double getConnectLatency(){
+		return connectLatency;
+	}
+
+	/************************************************************************************
+	 *    		FILE FORMAT
+	 ************************************************************************************/
+
+	/**
+	 * Reads a snapshot saved by {@link #save(File)}
+	 * @return the snapshot or {@code null} if the file does not exist
+	 * @throws IOException if the file could not be read or is not a snapshot
+	 */
+	static PoolSnapshot load(final File file) throws IOException{
+		if(!file.exists())
+			return null;
+		final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try{
+			if(in.readInt() != MAGIC || in.readInt() != VERSION)
+				throw new IOException(String.format("'%s' is not a pool snapshot", file));
+			in.readLong();
+			final PoolSnapshot snapshot = new PoolSnapshot();
+			snapshot.steadyStateSize = in.readDouble();
+			snapshot.connectLatency = in.readDouble();
+			final int hours = in.readInt();
+			if(hours != HOURS)
+				throw new IOException(String.format("'%s' is not a pool snapshot", file));
+			for(int hour = 0; hour < HOURS; ++hour)
+				snapshot.demandProfile[hour] = in.readDouble();
+			return snapshot;
+		}finally{
+			in.close();
+		}
+	}
+
+	/**
+	 * Saves the snapshot, including the peak of the hour under observation
+	 */
+	void save(final File file) throws IOException{
+		final double currentHourProfile = currentHour < 0 ? -1 : demandProfile[currentHour];
+		foldCurrentHour(true);
+		final File temporary = new File(file.getPath() + ".tmp");
+		final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporary)));
+		try{
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(System.currentTimeMillis());
+			out.writeDouble(steadyStateSize);
+			out.writeDouble(connectLatency);
+			out.writeInt(HOURS);
+			for(int hour = 0; hour < HOURS; ++hour)
+				out.writeDouble(demandProfile[hour]);
+		}finally{
+			out.close();
+			//- The hour is still under observation, it is folded for good when it ends
+			if(currentHour >= 0)
+				demandProfile[currentHour] = currentHourProfile;
+		}
+		if(!temporary.renameTo(file)){
+			//- Some platforms do not rename over an existing file
+			if(!file.delete() || !temporary.renameTo(file))
+				throw new IOException(String.format("Could not replace '%s'", file));
+		}
+	}
+}
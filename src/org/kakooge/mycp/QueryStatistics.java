@@ -0,0 +1,286 @@
+package org.kakooge.mycp;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+/**
+ * Per statement latency aggregation. Every statement executed through a {@link MyCPConnection} is reduced to a
+ * fingerprint (see {@link #fingerprint(String)}) and timed. For each fingerprint a call count, an error count and
+ * a {@link LatencyHistogram} of the execution time in microseconds are kept.
+ * <ol>
+ * <li>The number of fingerprints is bounded by {@link Configuration#getQueryStatsMaxEntries()}. When the bound is
+ * exceeded the least executed fingerprints are evicted</li>
+ * <li>Statements slower than {@link Configuration#getSlowQueryThreshold()} are written to the
+ * {@code org.kakooge.mycp.slowquery} logger</li>
+ * <li>The top fingerprints by total execution time are written to the log every
+ * {@link Configuration#getQueryStatsInterval()} seconds by the {@link ConnectionManager}</li>
+ * </ol>
+ * @author Michael Sekamanya
+ *
+ */
+class QueryStatistics{
+
+	/**
+	 * Counters for one statement fingerprint
+	 */
+	static class QueryStat{
+		final String fingerprint;
+		/**
+		 * The order in which the fingerprints were first seen
+		 */
+		final long sequence;
+		final AtomicLong errors = new AtomicLong();
+		final LatencyHistogram latency = new LatencyHistogram();
+
+		QueryStat(final String fingerprint, final long sequence){
+			this.fingerprint = fingerprint;
+			this.sequence = sequence;
+		}
+	}
+
+	final private static Pattern IN_LIST = Pattern.compile("\\(\\?(?:\\s*,\\s*\\?)+\\)");
+
+	final private static Logger logger = Logger.getLogger(QueryStatistics.class.getName());
+	final private static Logger slowQueryLogger = Logger.getLogger("org.kakooge.mycp.slowquery");
+
+	final private ConcurrentHashMap<String, QueryStat> statistics = new ConcurrentHashMap<String, QueryStat>();
+	final private AtomicLong sequences = new AtomicLong();
+	/**
+	 * The sequence of the first fingerprint seen since the last eviction
+	 */
+	private long evictedAt = 0;
+	final private int maxEntries;
+	final private int topCount;
+	final private long slowThreshold;
+	final private long interval;
+	private volatile long nextExport;
+
+	QueryStatistics(final Configuration configuration){
+		maxEntries = configuration.getQueryStatsMaxEntries();
+		topCount = configuration.getQueryStatsTop();
+		slowThreshold = configuration.getSlowQueryThreshold() * 1000;
+		interval = configuration.getQueryStatsInterval() * 1000;
+		nextExport = System.currentTimeMillis() + interval;
+	}
+
+	/**
+	 * Normalizes a SQL statement so that statements differing only in their literal values are counted together.
+	 * String and numeric literals are replaced by {@code ?}, comments are dropped, whitespace is collapsed, the text is
+	 * lower cased and {@code IN (?, ?, ?)} lists are collapsed to {@code IN (?+)}
+	 * @param sql the statement as sent to the driver
+	 * @return the fingerprint of the statement
+	 */
+	static String fingerprint(final String sql){
+		final int length = sql.length();
+		final StringBuilder builder = new StringBuilder(length);
+		boolean space = false;
+		int idx = 0;
+		while(idx < length){
+			final char c = sql.charAt(idx);
+			if(Character.isWhitespace(c)){
+				space = true;
+				++idx;
+				continue;
+			}
+			if(c == '-' && idx + 1 < length && sql.charAt(idx + 1) == '-'){
+				while(idx < length && sql.charAt(idx) != '\n')
+					++idx;
+				space = true;
+				continue;
+			}
+			if(c == '/' && idx + 1 < length && sql.charAt(idx + 1) == '*'){
+				final int end = sql.indexOf("*/", idx + 2);
+				idx = end < 0 ? length : end + 2;
+				space = true;
+				continue;
+			}
+
+			if(space && builder.length() > 0)
+				builder.append(' ');
+			final boolean tokenStart = space || builder.length() == 0 || !isIdentifierPart(builder.charAt(builder.length() - 1));
+			space = false;
+
+			if(c == '\'' || c == '"'){
+				idx = skipQuoted(sql, idx, c);
+				builder.append('?');
+			}else if(Character.isDigit(c) && tokenStart){
+				while(idx < length && (Character.isLetterOrDigit(sql.charAt(idx)) || sql.charAt(idx) == '.'))
+					++idx;
+				builder.append('?');
+			}else{
+				builder.append(Character.toLowerCase(c));
+				++idx;
+			}
+		}
+		return IN_LIST.matcher(builder).replaceAll("(?+)");
+	}
+
+	private static boolean isIdentifierPart(final char c){
+		return Character.isLetterOrDigit(c) || c == '_' || c == '$';
+	}
+
+	/**
+	 * @return the index just past the closing quote of the literal starting at {@code start}
+	 */
+	private static int skipQuoted(final String sql, final int start, final char quote){
+		final int length = sql.length();
+		int idx = start + 1;
+		while(idx < length){
+			final char c = sql.charAt(idx);
+			if(c == '\\'){
+				idx += 2;
+				continue;
+			}
+			if(c == quote){
+				//- A doubled quote is an escaped quote
+				if(idx + 1 < length && sql.charAt(idx + 1) == quote){
+					idx += 2;
+					continue;
+				}
+				return idx + 1;
+			}
+			++idx;
+		}
+		return length;
+	}
+
+	/**
+	 * Records one execution
+	 * @param sql the statement text, written to the slow query log if the execution was slow, or {@code null} for the
+	 * batch of a plain statement, logged as its fingerprint
+	 * @param fingerprint the fingerprint of {@code sql} or {@code null} to compute it here
+	 * @param elapsedNanos the execution time
+	 * @param failed whether the execution threw
+	 */
+	void record(final String sql, String fingerprint, final long elapsedNanos, final boolean failed){
+		if(fingerprint == null)
+			fingerprint = sql == null ? "<batch>" : fingerprint(sql);
+		final long elapsed = elapsedNanos / 1000;
+		final QueryStat stat = stat(fingerprint);
+		stat.latency.record(elapsed);
+		if(failed)
+			stat.errors.incrementAndGet();
+		if(statistics.size() > maxEntries)
+			evict();
+
+		if(slowThreshold > 0 && elapsed >= slowThreshold && slowQueryLogger.isLoggable(Level.WARNING))
+			slowQueryLogger.warning(String.format("%.3f ms%s: %s", elapsed / 1000.0, failed ? " (failed)" : "",
+					sql != null ? sql : fingerprint));
+	}
+
+	private QueryStat stat(final String fingerprint){
+		QueryStat stat = statistics.get(fingerprint);
+		if(stat != null)
+			return stat;
+		stat = new QueryStat(fingerprint, sequences.getAndIncrement());
+		final QueryStat existing = statistics.putIfAbsent(fingerprint, stat);
+		return existing != null ? existing : stat;
+	}
+
+	/**
+	 * Sorts the fingerprints on a snapshot of their call count or total time, the live counters keep changing
+	 * while sorting
+	 * @param byTotal sort by descending total time if {@code true}, otherwise by ascending call count and the oldest
+	 * first for the same count
+	 */
+	private List<QueryStat> sorted(final boolean byTotal){
+		final List<QueryStat> stats = new ArrayList<QueryStat>(statistics.values());
+		final int size = stats.size();
+		final long[] keys = new long[size];
+		final Integer[] order = new Integer[size];
+		for(int idx = 0; idx < size; ++idx){
+			final LatencyHistogram latency = stats.get(idx).latency;
+			keys[idx] = byTotal ? -latency.getTotal() : latency.getCount();
+			order[idx] = idx;
+		}
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer o1, Integer o2) {
+				final long k1 = keys[o1], k2 = keys[o2];
+				if(k1 == k2 && !byTotal){
+					final long s1 = stats.get(o1).sequence, s2 = stats.get(o2).sequence;
+					return s1 < s2 ? -1 : (s1 == s2 ? 0 : 1);
+				}
+				return k1 < k2 ? -1 : (k1 == k2 ? 0 : 1);
+			}
+		});
+		final List<QueryStat> result = new ArrayList<QueryStat>(size);
+		for(int idx = 0; idx < size; ++idx)
+			result.add(stats.get(order[idx]));
+		return result;
+	}
+
+	/**
+	 * Drops the least executed fingerprints. Evicts down to 90% of the bound so that the sort is not repeated for every
+	 * new fingerprint once the map is full. The fingerprints first seen since the last eviction, the one just recorded
+	 * among them, have hardly had the time to be executed and go only if the older ones are not enough, otherwise a new
+	 * statement would never stay long enough to be counted
+	 */
+	private synchronized void evict(){
+		if(statistics.size() <= maxEntries)
+			return;
+		final List<QueryStat> stats = sorted(false);
+		int evictCount = stats.size() - maxEntries * 9 / 10;
+		final long recent = evictedAt;
+		evictedAt = sequences.get();
+		for(int pass = 0; pass < 2 && evictCount > 0; ++pass){
+			for(int idx = 0; idx < stats.size() && evictCount > 0; ++idx){
+				final QueryStat stat = stats.get(idx);
+				if((stat.sequence >= recent) == (pass == 0))
+					continue;
+				statistics.remove(stat.fingerprint);
+				--evictCount;
+			}
+		}
+	}
+
+	/**
+	 * @return the {@code count} fingerprints with the highest total execution time
+	 */
+	List<QueryStat> top(final int count){
+		final List<QueryStat> stats = sorted(true);
+		return stats.size() > count ? stats.subList(0, count) : stats;
+	}
+
+	/**
+	 * Formats the top fingerprints as a table, latencies are in microseconds
+	 */
+	String report(){
+		final StringBuilder builder = new StringBuilder();
+		builder.append(String.format("Top %d statements by total time (us)%n", topCount));
+		builder.append(String.format("%10s %8s %12s %10s %10s %10s %10s  %s%n", "count", "errors", "total", "mean", "p50", "p99", "max", "statement"));
+		for(final QueryStat stat : top(topCount)){
+			final LatencyHistogram latency = stat.latency;
+			builder.append(String.format("%10d %8d %12d %10.1f %10d %10d %10d  %s%n", latency.getCount(), stat.errors.get(),
+					latency.getTotal(), latency.getMean(), latency.getValueAtPercentile(50), latency.getValueAtPercentile(99),
+					latency.getMax(), stat.fingerprint));
+		}
+		return builder.toString();
+	}
+
+	/**
+	 * Writes {@link #report()} to the log
+	 */
+	void export(){
+		if(logger.isLoggable(Level.INFO))
+			logger.info(report());
+	}
+
+	/**
+	 * Writes {@link #report()} to the log if the export interval has elapsed since the last export
+	 */
+	void exportIfDue(){
+		final long now = System.currentTimeMillis();
+		if(now < nextExport)
+			return;
+		nextExport = now + interval;
+		export();
+	}
+}
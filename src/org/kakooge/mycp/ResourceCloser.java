@@ -0,0 +1,185 @@
+package org.kakooge.mycp;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Destroys the resources a {@link Pool} lets go of on background threads, so that the thread returning a resource to a
+ * full pool or the maintenance thread evicting one never waits for {@link ResourceFactory#destroy(Object)}. Closing a
+ * JDBC connection is a network round trip and, with the server gone, can block until the TCP timeout.
+ * <p>
+ * The resources wait in a bounded queue. When it is full the resource is destroyed on the calling thread, which is
+ * counted in {@link PoolMetrics#getClosedInline()}. A destroy running longer than the close timeout is given up on:
+ * its thread is left to finish on its own and a new one takes over the queue, so one stuck close does not hold up the
+ * others. The close times and failures are recorded in the pool's {@link PoolMetrics}
+ * </p>
+ * @param <T> the pooled resource
+ * @author Michael Sekamanya
+ *
+ */
+class ResourceCloser<T>{
+
+	final private static Logger logger = Logger.getLogger(ResourceCloser.class.getName());
+
+	private final String name;
+	private final ResourceFactory<T> factory;
+	private final PoolMetrics metrics;
+	private final BlockingQueue<T> queue;
+	private final long closeTimeout;
+
+	/**
+	 * The closing threads, started when a resource is queued and stopped after the close timeout without work, so an
+	 * idle pool keeps no closing thread. A slot is given a new thread when its thread is stuck in a destroy
+	 */
+	private final List<Worker> workers;
+	private volatile boolean stopped = false;
+
+	private class Worker extends Thread{
+		private final int slot;
+		/**
+		 * {@link System#nanoTime()} when the destroy under way started, 0 while waiting for work
+		 */
+		private volatile long closeStart = 0;
+		private volatile boolean abandoned = false;
+
+		Worker(final int slot){
+			super("mycp-closer-" + name);
+			this.slot = slot;
+			//- A close stuck on the network must not keep the JVM alive
+			setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			while(!abandoned){
+				final T resource;
+				try{
+					resource = queue.poll(closeTimeout, TimeUnit.MILLISECONDS);
+				}catch(InterruptedException e){
+					return;
+				}
+				if(resource == null){
+					if(stopped || retire(this))
+						return;
+					continue;
+				}
+				closeStart = System.nanoTime() | 1;
+				try{
+					close(resource);
+				}finally{
+					closeStart = 0;
+				}
+			}
+		}
+	}
+
+	/**
+	 * @param queueSize the number of resources that can wait to be destroyed
+	 * @param threads the number of threads destroying resources
+	 * @param closeTimeout milliseconds after which a destroy is given up on
+	 */
+	ResourceCloser(final String name, final ResourceFactory<T> factory, final PoolMetrics metrics, final int queueSize,
+			final int threads, final long closeTimeout){
+		this.name = name;
+		this.factory = factory;
+		this.metrics = metrics;
+		this.queue = new ArrayBlockingQueue<T>(Math.max(1, queueSize));
+		this.workers = new ArrayList<Worker>(Collections.<Worker>nCopies(Math.max(1, threads), null));
+		this.closeTimeout = Math.max(1, closeTimeout);
+	}
+
+	/**
+	 * Destroys the resource in the background, or on the calling thread if the queue is full or the closer stopped
+	 */
+	void submit(final T resource){
+		//- Queued first, a worker retiring meanwhile has left its slot empty for supervise() to fill
+		if(!stopped && queue.offer(resource)){
+			supervise();
+			return;
+		}
+		metrics.closedInline.incrementAndGet();
+		close(resource);
+	}
+
+	/**
+	 * Destroys the resource on the calling thread and records the time taken
+	 */
+	void close(final T resource){
+		final long start = System.nanoTime();
+		try{
+			factory.destroy(resource);
+		}catch(Exception e){
+			metrics.closeFailed.incrementAndGet();
+			if(logger.isLoggable(Level.FINE))
+				logger.log(Level.FINE, "Could not destroy a resource", e);
+		}finally{
+			metrics.closeTime.record((System.nanoTime() - start) / 1000);
+		}
+	}
+
+	/**
+	 * Starts the missing workers and replaces those stuck in a destroy for longer than the close timeout
+	 */
+	private void supervise(){
+		final long now = System.nanoTime();
+		for(int idx = 0; idx < workers.size(); ++idx){
+			final Worker worker = workers.get(idx);
+			if(worker != null){
+				final long closeStart = worker.closeStart;
+				if(closeStart == 0 || now - closeStart < TimeUnit.MILLISECONDS.toNanos(closeTimeout))
+					continue;
+			}
+			replace(idx, worker);
+		}
+	}
+
+	private synchronized void replace(final int idx, final Worker worker){
+		if(stopped || workers.get(idx) != worker)
+			return;
+		if(worker != null){
+			worker.abandoned = true;
+			metrics.closeTimedOut.incrementAndGet();
+			logger.warning(String.format("Pool %s: a close took more than %d ms, leaving it to finish in the background", name, closeTimeout));
+		}
+		final Worker replacement = new Worker(idx);
+		workers.set(idx, replacement);
+		replacement.start();
+	}
+
+	/**
+	 * Frees the slot of a worker that found no work for the close timeout, after looking after the busy ones
+	 * @return {@code true} if the worker must exit
+	 */
+	private boolean retire(final Worker worker){
+		supervise();
+		synchronized(this){
+			if(workers.get(worker.slot) != worker || !queue.isEmpty())
+				return false;
+			workers.set(worker.slot, null);
+			return true;
+		}
+	}
+
+	/**
+	 * Stops taking resources. The workers finish the destroys under way and exit
+	 * @param pending receives the resources still waiting in the queue, for the caller to destroy
+	 */
+	synchronized void stop(final Collection<? super T> pending){
+		stopped = true;
+		queue.drainTo(pending);
+	}
+
+	/**
+	 * @return the number of resources waiting to be destroyed
+	 */
+	int getQueueSize(){
+		return queue.size();
+	}
+}
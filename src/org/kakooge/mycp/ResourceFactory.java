@@ -0,0 +1,39 @@
+package org.kakooge.mycp;
+
+/**
+ * Service provider interface used by a {@link Pool} to manage the life cycle of the resources it pools, e.g. JDBC
+ * connections, JMS sessions or TCP client channels. The pool calls it from its maintenance thread and from the
+ * threads that return resources, implementations must be thread safe
+ * @param <T> the pooled resource
+ * @author Michael Sekamanya
+ *
+ */
+public interface ResourceFactory<T>{
+
+	/**
+	 * Creates a new resource. May block, e.g. while connecting to a server
+	 * @return the new resource, never {@code null}
+	 * @throws Exception if the resource could not be created
+	 */
+	T create() throws Exception;
+
+	/**
+	 * Checks that an idle resource is still usable. Called periodically on idle resources
+	 * @return {@code false} if the resource must be destroyed
+	 */
+	boolean validate(T resource);
+
+	/**
+	 * Brings a resource back to a clean state before it goes back to the pool, e.g. closes what the last borrower
+	 * left open. Called on the thread returning the resource so it should be cheap
+	 * @throws Exception if the resource cannot be reused, it is then destroyed
+	 */
+	void reset(T resource) throws Exception;
+
+	/**
+	 * Releases the resource for good. Called on one of the pool's closing threads, see {@link ResourceCloser}
+	 * @throws Exception if the resource could not be released cleanly, it is counted in
+	 * {@link PoolMetrics#getCloseFailed()} and forgotten
+	 */
+	void destroy(T resource) throws Exception;
+}
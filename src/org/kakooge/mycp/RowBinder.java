@@ -0,0 +1,19 @@
+package org.kakooge.mycp;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+/**
+ * Sets the parameters of a statement from an item to load, see
+ * {@link PoolManager#bulkLoad(java.util.concurrent.Executor, int, String, java.util.Iterator, RowBinder)}
+ * @param <T> the item
+ * @author Michael Sekamanya
+ *
+ */
+public interface RowBinder<T>{
+
+	/**
+	 * @param statement the statement to set the parameters of, {@code addBatch} is called by the loader
+	 */
+	void bind(PreparedStatement statement, T row) throws SQLException;
+}
@@ -0,0 +1,20 @@
+package org.kakooge.mycp;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Turns the current row of a {@link ResultSet} into an item, see
+ * {@link PoolManager#stream(java.util.concurrent.Executor, String, RowMapper, Object...)} and
+ * {@link PoolManager#parallelQuery(java.util.concurrent.Executor, int, String, Partitioning, RowMapper, Object...)}
+ * @param <T> the item
+ * @author Michael Sekamanya
+ *
+ */
+public interface RowMapper<T>{
+
+	/**
+	 * @param resultSet positioned on the row to map, must not be moved
+	 */
+	T map(ResultSet resultSet) throws SQLException;
+}
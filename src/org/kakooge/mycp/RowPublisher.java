@@ -0,0 +1,256 @@
+package org.kakooge.mycp;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Streams the rows of a query to {@link Flow.Subscriber}s, reading no further ahead than they ask for so that memory
+ * stays flat whatever the size of the result. Each subscription runs the query anew.
+ * <p>
+ * The connection is leased on the first {@link Flow.Subscription#request(long)}, not at subscription, and given back as
+ * soon as the stream completes, fails or is cancelled. The rows are read on the {@link Executor}, one drain at a time
+ * per subscription. The fetch size follows the outstanding demand, between {@value #MIN_FETCH_SIZE} and
+ * {@link Configuration#getStreamFetchSize()}, so the driver fetches in one round trip about what the subscriber is ready
+ * to take and keeps at most that many rows ahead. Auto commit is turned off for the duration of the stream, which some
+ * drivers require to fetch with a cursor, and turned back on afterwards. Drivers that ignore the fetch size, MySQL
+ * without {@code useCursorFetch=true}, still read the whole result into memory
+ * </p>
+ * @param <T> the items the rows are mapped to
+ * @author Michael Sekamanya
+ *
+ */
+class RowPublisher<T> implements Flow.Publisher<T>{
+
+	final static int MIN_FETCH_SIZE = 16;
+
+	final private static Logger logger = Logger.getLogger(RowPublisher.class.getName());
+
+	private final PoolManager poolManager;
+	private final Executor executor;
+	private final String sql;
+	private final RowMapper<T> mapper;
+	private final Object[] parameters;
+
+	RowPublisher(final PoolManager poolManager, final Executor executor, final String sql, final RowMapper<T> mapper,
+			final Object[] parameters){
+		this.poolManager = poolManager;
+		this.executor = executor;
+		this.sql = sql;
+		this.mapper = mapper;
+		this.parameters = parameters != null ? parameters.clone() : new Object[0];
+	}
+
+	@Override
+	public void subscribe(final Flow.Subscriber<? super T> subscriber) {
+		if(subscriber == null)
+			throw new NullPointerException("subscriber");
+		final RowSubscription subscription = new RowSubscription(subscriber);
+		subscriber.onSubscribe(subscription);
+	}
+
+	private final class RowSubscription implements Flow.Subscription, Runnable{
+		private final Flow.Subscriber<? super T> subscriber;
+		private final AtomicLong requested = new AtomicLong();
+		private final AtomicInteger drains = new AtomicInteger();
+		private volatile boolean cancelled = false;
+
+		/**
+		 * Touched only by the drain
+		 */
+		private MyCPConnection connection;
+		private PreparedStatement statement;
+		private ResultSet resultSet;
+		private boolean restoreAutoCommit = false;
+		private boolean done = false;
+		private int fetchSize = 0;
+
+		/**
+		 * Set when the executor refused the drain, reported by the drain run in its place
+		 */
+		private RejectedExecutionException rejected;
+
+		/**
+		 * A request violating the protocol, reported by the drain
+		 */
+		private volatile IllegalArgumentException invalidRequest;
+
+		RowSubscription(final Flow.Subscriber<? super T> subscriber){
+			this.subscriber = subscriber;
+		}
+
+		@Override
+		public void request(final long n) {
+			if(n <= 0){
+				invalidRequest = new IllegalArgumentException("The number of rows requested must be positive, got " + n);
+				cancelled = true;
+			}else{
+				for(;;){
+					final long current = requested.get();
+					final long next = current + n < 0 ? Long.MAX_VALUE : current + n;
+					if(requested.compareAndSet(current, next))
+						break;
+				}
+			}
+			schedule();
+		}
+
+		@Override
+		public void cancel() {
+			cancelled = true;
+			schedule();
+		}
+
+		private void schedule(){
+			if(drains.getAndIncrement() != 0)
+				return;
+			try{
+				executor.execute(this);
+			}catch(RejectedExecutionException e){
+				//- The counter went up from 0, so no drain is running and none starts until this one ends: drain here,
+				//- once, to give back the connection and tell the subscriber
+				rejected = e;
+				cancelled = true;
+				run();
+			}
+		}
+
+		/**
+		 * The drain: emits rows while there is demand, opening the stream on the first demand and closing it on the
+		 * last row, an error or a cancellation
+		 */
+		@Override
+		public void run() {
+			int missed = 1;
+			do{
+				if(!done)
+					emit();
+				missed = drains.addAndGet(-missed);
+			}while(missed != 0);
+		}
+
+		private void emit(){
+			try{
+				if(cancelled){
+					release();
+					final Exception error = invalidRequest != null ? invalidRequest : rejected;
+					if(error != null){
+						done = true;
+						subscriber.onError(error);
+					}
+					return;
+				}
+				long demand = requested.get();
+				if(demand == 0)
+					return;
+				if(resultSet == null && !open(demand))
+					return;
+				long emitted = 0;
+				while(emitted != demand){
+					if(cancelled){
+						release();
+						return;
+					}
+					if(!resultSet.next()){
+						release();
+						done = true;
+						subscriber.onComplete();
+						return;
+					}
+					subscriber.onNext(mapper.map(resultSet));
+					if(++emitted == demand && demand != Long.MAX_VALUE){
+						demand = requested.addAndGet(-emitted);
+						emitted = 0;
+						adjustFetchSize(demand);
+					}
+				}
+			}catch(Throwable e){
+				//- A fetch failing because the connection died leaves it broken
+				if(e instanceof SQLException && connection != null)
+					poolManager.connectionFailed(connection, (SQLException)e);
+				release();
+				if(!done){
+					done = true;
+					subscriber.onError(e);
+				}
+			}
+		}
+
+		/**
+		 * Leases a connection and runs the query
+		 * @return {@code false} if no connection became available, the subscriber has been told
+		 */
+		private boolean open(final long demand) throws SQLException, InterruptedException{
+			connection = poolManager.takeDetachedConnection();
+			if(connection.getUnderlyingConnection() == null){
+				connection = null;
+				done = true;
+				subscriber.onError(new SQLTimeoutException("Timed out waiting for a connection"));
+				return false;
+			}
+			if(connection.getAutoCommit()){
+				connection.setAutoCommit(false);
+				restoreAutoCommit = true;
+			}
+			statement = connection.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+			for(int idx = 0; idx < parameters.length; ++idx)
+				statement.setObject(idx + 1, parameters[idx]);
+			fetchSize = fetchSize(demand);
+			statement.setFetchSize(fetchSize);
+			resultSet = statement.executeQuery();
+			return true;
+		}
+
+		private int fetchSize(final long demand){
+			return (int)Math.max(MIN_FETCH_SIZE, Math.min(demand, poolManager.getConfiguration().getStreamFetchSize()));
+		}
+
+		private void adjustFetchSize(final long demand) throws SQLException{
+			if(demand == 0)
+				return;
+			final int size = fetchSize(demand);
+			if(size != fetchSize){
+				fetchSize = size;
+				resultSet.setFetchSize(size);
+			}
+		}
+
+		/**
+		 * Closes the result and gives the connection back, once
+		 */
+		private void release(){
+			final MyCPConnection leased = connection;
+			if(leased == null)
+				return;
+			connection = null;
+			try{
+				if(resultSet != null)
+					resultSet.close();
+				if(statement != null)
+					statement.close();
+				if(restoreAutoCommit){
+					//- Only read, nothing to keep
+					leased.rollback();
+					leased.setAutoCommit(true);
+				}
+			}catch(SQLException e){
+				logger.log(Level.FINE, "Could not close a stream cleanly", e);
+			}finally{
+				resultSet = null;
+				statement = null;
+				try{
+					leased.close();
+				}catch(SQLException e){
+					logger.log(Level.FINE, "Could not return a stream's connection", e);
+				}
+			}
+		}
+	}
+}
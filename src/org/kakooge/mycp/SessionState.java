@@ -0,0 +1,128 @@
+package org.kakooge.mycp;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.regex.Pattern;
+
+/**
+ * The session state of a physical connection once opened and initialised with
+ * {@link Configuration#getSessionInitSql()}, recorded by the {@link JdbcConnectionFactory} and restored when a lease
+ * leaves it changed.
+ * <p>
+ * The {@link MyCPConnection} keeps a bit per part of the state the current lease left different from the recorded
+ * one: the auto commit mode, the read only flag, the isolation level and the catalog through their setters, and the
+ * variables set by the init SQL when the lease runs SQL that can change them ({@code SET}, {@code RESET} or
+ * {@code USE}). Only the parts with their bit set are restored when the connection goes back to the pool, the init
+ * SQL is run again for the latter. A lease that changes nothing costs no round trip on return. Session variables the
+ * init SQL does not set are not restored
+ * </p>
+ * @author Michael Sekamanya
+ *
+ */
+class SessionState{
+
+	final static int AUTO_COMMIT = 1;
+	final static int READ_ONLY = 2;
+	final static int ISOLATION = 4;
+	final static int CATALOG = 8;
+	final static int VARIABLES = 16;
+
+	/**
+	 * SQL that may change the variables set by the init SQL, matched at the start of the statement after comments
+	 */
+	final private static Pattern SESSION_CHANGE = Pattern.compile("(?:\\s|/\\*.*?\\*/|--[^\\n]*(?:\\n|$))*" +
+			"(?:SET\\s+(?!TRANSACTION\\b|LOCAL\\b)|RESET\\b|USE\\b)", Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+
+	/**
+	 * Splits the init SQL on the semicolons outside of quotes
+	 */
+	final private static Pattern STATEMENT_SEPARATOR = Pattern.compile(";(?=(?:[^']*'[^']*')*[^']*$)");
+
+	/**
+	 * The init SQL statements, empty if none
+	 */
+	private final String[] initSql;
+
+	final boolean autoCommit;
+	final boolean readOnly;
+	final int isolation;
+	final String catalog;
+
+	private SessionState(final String[] initSql, final Connection connection) throws SQLException{
+		this.initSql = initSql;
+		autoCommit = connection.getAutoCommit();
+		readOnly = connection.isReadOnly();
+		isolation = connection.getTransactionIsolation();
+		catalog = connection.getCatalog();
+	}
+
+	/**
+	 * @return the statements of {@code sql}, without the empty ones
+	 */
+	static String[] parse(final String sql){
+		if(StringUtil.Empty(sql))
+			return new String[0];
+		final String[] parts = STATEMENT_SEPARATOR.split(sql);
+		int count = 0;
+		for(final String part : parts)
+			if(part.trim().length() > 0)
+				parts[count++] = part.trim();
+		final String[] statements = new String[count];
+		System.arraycopy(parts, 0, statements, 0, count);
+		return statements;
+	}
+
+	/**
+	 * Runs the init SQL on a new physical connection and records the session state it leaves
+	 * @param initSql the statements of {@link Configuration#getSessionInitSql()}
+	 */
+	static SessionState initialise(final Connection connection, final String[] initSql) throws SQLException{
+		runInitSql(connection, initSql);
+		return new SessionState(initSql, connection);
+	}
+
+	private static void runInitSql(final Connection connection, final String[] initSql) throws SQLException{
+		if(initSql.length == 0)
+			return;
+		final Statement statement = connection.createStatement();
+		try{
+			for(final String sql : initSql)
+				statement.execute(sql);
+		}finally{
+			statement.close();
+		}
+	}
+
+	/**
+	 * @return {@code true} if {@code sql} may change the variables set by the init SQL, always {@code false} without init
+	 * SQL as there is nothing to restore
+	 */
+	boolean isChangedBy(final String sql){
+		return initSql.length > 0 && sql != null && SESSION_CHANGE.matcher(sql).lookingAt();
+	}
+
+	boolean isCatalog(final String catalog){
+		return this.catalog == null ? catalog == null : this.catalog.equals(catalog);
+	}
+
+	/**
+	 * Restores the parts of the session state in {@code changes}. Work left uncommitted is rolled back first, as
+	 * turning auto commit back on would commit it
+	 */
+	void restore(final Connection connection, final int changes) throws SQLException{
+		if((changes & AUTO_COMMIT) != 0){
+			if(!connection.getAutoCommit())
+				connection.rollback();
+			connection.setAutoCommit(autoCommit);
+		}
+		if((changes & READ_ONLY) != 0)
+			connection.setReadOnly(readOnly);
+		if((changes & ISOLATION) != 0)
+			connection.setTransactionIsolation(isolation);
+		if((changes & CATALOG) != 0 && catalog != null)
+			connection.setCatalog(catalog);
+		if((changes & VARIABLES) != 0)
+			runInitSql(connection, initSql);
+	}
+}
@@ -0,0 +1,62 @@
+package org.kakooge.mycp;
+
+/**
+ * The pool sizing rules applied by the {@link ConnectionManager} on every management cycle. They are kept free of any
+ * connection handling so that the same code can be run against a virtual clock by the {@link PoolSimulator}
+ * <ol>
+ * <li>Grow when the idle connections fall to 15% of the managed connections or less: up to the minimum if below it,
+ * otherwise by 1/10 of the maximum</li>
+ * <li>Shrink by 1/10 of the maximum when at least 75% of the managed connections are idle and there are more idle
+ * connections than the minimum</li>
+ * </ol>
+ * @author Michael Sekamanya
+ *
+ */
+class SizingPolicy{
+	final private int minConnections;
+	final private int maxConnections;
+
+	SizingPolicy(final int minConnections, final int maxConnections){
+		this.minConnections = minConnections;
+		this.maxConnections = maxConnections;
+	}
+
+	SizingPolicy(final Configuration configuration){
+		this(configuration.getMinConnections(), configuration.getMaxConnections());
+	}
+
+	/**
+	 * @param availableConnections the number of idle connections in the pool
+	 * @param connectionCount the number of connections managed by the pool, idle or leased
+	 * @return the number of connections to create in this cycle
+	 */
+	int connectionsToCreate(final int availableConnections, final int connectionCount){
+		final int incrementTo = Math.round(0.15f * connectionCount);
+		if(availableConnections > incrementTo)
+			return 0;
+		final int incrementValue = availableConnections < minConnections ? (minConnections - availableConnections) :
+			Math.round(0.1f * maxConnections);
+		return Math.max(0, Math.min(incrementValue, maxConnections - connectionCount));
+	}
+
+	/**
+	 * @param availableConnections the number of idle connections in the pool
+	 * @param connectionCount the number of connections managed by the pool, idle or leased
+	 * @return the number of idle connections to close in this cycle
+	 */
+	int connectionsToDestroy(final int availableConnections, final int connectionCount){
+		final int decrementTo = Math.round(0.75f * connectionCount);
+		if(availableConnections < decrementTo || availableConnections <= minConnections)
+			return 0;
+		final int decrementValue = Math.round(0.1f * maxConnections);
+		return Math.max(0, Math.min(decrementValue, Math.min(availableConnections, connectionCount - minConnections)));
+	}
+
+	int getMinConnections(){
+		return minConnections;
+	}
+
+	int getMaxConnections(){
+		return maxConnections;
+	}
+}
@@ -0,0 +1,84 @@
+package org.kakooge.mycp;
+
+import java.sql.SQLException;
+import java.sql.SQLNonTransientConnectionException;
+import java.sql.SQLRecoverableException;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Sorts the {@link SQLException}s thrown through a pooled connection into fatal ones, after which the connection and,
+ * most likely, every connection opened to the same server before it are unusable (a failover, a restart, a network
+ * cut), and transient ones such as a deadlock or a constraint violation, which say nothing about the connection.
+ * <p>
+ * An exception is fatal if it, or one of its causes or chained exceptions, is
+ * <ul>
+ * <li>a {@link SQLNonTransientConnectionException} or a {@link SQLRecoverableException}</li>
+ * <li>of SQLState class {@code 08} (connection exception), {@code 57P01}-{@code 57P03} (server shutting down) or one
+ * of {@link Configuration#getFatalSqlStates()}</li>
+ * <li>of a vendor code in {@link Configuration#getFatalErrorCodes()}, by default the MySQL server shutdown and lost
+ * connection codes</li>
+ * </ul>
+ * </p>
+ * @author Michael Sekamanya
+ *
+ */
+class SqlErrorClassifier{
+
+	/**
+	 * Bounds the walk through the causes, some drivers chain an exception to itself
+	 */
+	final private static int MAX_DEPTH = 8;
+
+	private final String[] fatalSqlStates;
+	private final Set<Integer> fatalErrorCodes = new HashSet<Integer>();
+
+	SqlErrorClassifier(final Configuration configuration){
+		final String[] extraStates = split(configuration.getFatalSqlStates());
+		fatalSqlStates = new String[extraStates.length + 4];
+		fatalSqlStates[0] = "08";
+		fatalSqlStates[1] = "57P01";
+		fatalSqlStates[2] = "57P02";
+		fatalSqlStates[3] = "57P03";
+		System.arraycopy(extraStates, 0, fatalSqlStates, 4, extraStates.length);
+		for(final String code : split(configuration.getFatalErrorCodes()))
+			fatalErrorCodes.add(Integer.valueOf(code));
+	}
+
+	private static String[] split(final String list){
+		return StringUtil.Empty(list) ? new String[0] : list.trim().split("\\s*,\\s*");
+	}
+
+	/**
+	 * @return {@code true} if the connection that threw {@code e} must not be used again
+	 */
+	boolean isFatal(final SQLException e){
+		Throwable cause = e;
+		for(int depth = 0; cause != null && depth < MAX_DEPTH; ++depth){
+			if(cause instanceof SQLException){
+				final SQLException sqlException = (SQLException)cause;
+				if(isFatalOne(sqlException))
+					return true;
+				final SQLException next = sqlException.getNextException();
+				if(next != null && next != cause && isFatalOne(next))
+					return true;
+			}
+			if(cause.getCause() == cause)
+				break;
+			cause = cause.getCause();
+		}
+		return false;
+	}
+
+	private boolean isFatalOne(final SQLException e){
+		if(e instanceof SQLNonTransientConnectionException || e instanceof SQLRecoverableException)
+			return true;
+		final String sqlState = e.getSQLState();
+		if(sqlState != null){
+			for(final String fatal : fatalSqlStates)
+				if(sqlState.startsWith(fatal))
+					return true;
+		}
+		return e.getErrorCode() != 0 && fatalErrorCodes.contains(e.getErrorCode());
+	}
+}
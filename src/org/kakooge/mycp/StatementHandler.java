@@ -0,0 +1,418 @@
+package org.kakooge.mycp;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+/**
+ * Lightweight proxy around a {@link Statement}, {@link PreparedStatement} or {@link CallableStatement} created through
+ * a {@link MyCPConnection}. The statement is registered with the connection it was created on so that anything still
+ * open when the lease is closed is closed in bulk before the underlying connection goes back to the pool. Closing a
+ * statement closes its current {@link java.sql.ResultSet} so result sets are released along with their statement.
+ * <p>
+ * All calls are passed through to the driver statement except {@code close()}, which also unregisters the statement,
+ * and {@code getConnection()}, which returns the connection the application holds (the {@link MyCPConnection} or its
+ * {@link LogicalConnection}) rather than the underlying connection.
+ * When {@link Configuration#isQueryStats()} is set the {@code execute*} calls are timed and recorded in the pool's
+ * {@link QueryStatistics}. When {@link Configuration#getQueryTimeout()} is set they are given that budget on the
+ * pool's {@link TimerWheel} and the statement is cancelled with {@link Statement#cancel()} when it runs out
+ * </p>
+ * <p>
+ * An execution failing with a fatal error (see {@link SqlErrorClassifier}) is reported to
+ * {@link PoolManager#connectionFailed(MyCPConnection, SQLException)}, which evicts the connections opened before it.
+ * With {@link Configuration#isRetryReads()} on, such an execution is
+ * run once more on a fresh connection, within what is left of the query budget or of
+ * {@link Configuration#getMaxWaitForConnection()}, if
+ * <ul>
+ * <li>the connection is in auto commit, so no earlier work of a transaction is lost</li>
+ * <li>the connection is read only, the SQL is a read ({@code SELECT}, {@code SHOW}, {@code DESCRIBE} or
+ * {@code EXPLAIN}) or it carries the {@code /* idempotent *}{@code /} hint</li>
+ * <li>it is not a batch</li>
+ * </ul>
+ * The statement is created again on the fresh connection with the same result set type and concurrency, and the
+ * setters called on it are replayed. Statements asking for generated keys are created again without
+ * </p>
+ * @author Michael Sekamanya
+ *
+ */
+class StatementHandler implements InvocationHandler{
+
+	/**
+	 * Proxy constructors are looked up once, {@link Proxy#newProxyInstance} would go through the proxy class cache
+	 * on every statement
+	 */
+	final private static Constructor<?> STATEMENT_PROXY = proxyConstructor(Statement.class);
+	final private static Constructor<?> PREPARED_STATEMENT_PROXY = proxyConstructor(PreparedStatement.class);
+	final private static Constructor<?> CALLABLE_STATEMENT_PROXY = proxyConstructor(CallableStatement.class);
+
+	/**
+	 * SQL that only reads, run again when its connection died. {@code SELECT ... INTO} creates a table on some databases
+	 */
+	final private static Pattern READ_SQL = Pattern.compile("^\\s*(?:/\\*.*?\\*/\\s*|--[^\\n]*\\n\\s*)*" +
+			"(?:SELECT\\b(?!.*\\bINTO\\b)|SHOW\\b|DESCRIBE\\b|DESC\\b|EXPLAIN\\b)", Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+	final private static Pattern IDEMPOTENT_HINT = Pattern.compile("/\\*\\s*idempotent\\s*\\*/", Pattern.CASE_INSENSITIVE);
+
+	final private MyCPConnection connection;
+
+	/**
+	 * The driver statement, replaced when the statement is created again on a fresh connection
+	 */
+	private volatile Statement statement;
+
+	/**
+	 * The SQL a prepared or callable statement was created with, {@code null} for plain statements
+	 */
+	final private String sql;
+
+	/**
+	 * {@code null} unless statement statistics are enabled
+	 */
+	final private QueryStatistics statistics;
+
+	/**
+	 * {@code null} unless query budgets are enabled
+	 */
+	final private TimerWheel timer;
+	
+	/**
+	 * The query budget, created on the first execution and scheduled again for every execution
+	 */
+	private QueryTimeout queryTimeout;
+	
+	/**
+	 * The number of the {@code execute*} call under way, 0 between calls. A budget unlinked by the timer just as the
+	 * execution finished must not cancel the next one
+	 */
+	private volatile int executing = 0;
+	
+	/**
+	 * The number of the last budgeted execution, only touched by the thread running the statement
+	 */
+	private int executions = 0;
+	
+	final static private Logger logger = Logger.getLogger(StatementHandler.class.getName());
+	
+	/**
+	 * Cancelling may open a connection to the server, so it is handed off the wheel thread
+	 */
+	private final class QueryTimeout extends TimerWheel.Task{
+		@Override
+		void expire() {
+			final int execution = executing;
+			if(execution == 0)
+				return;
+			connection.getPoolManager().runTimeout(new Runnable() {
+				@Override
+				public void run() {
+					cancel(execution);
+				}
+			});
+		}
+	}
+	
+	private void cancel(final int execution){
+		if(executing != execution)
+			return;
+		try{
+			statement.cancel();
+			connection.getPoolManager().queryCancelled();
+		}catch(SQLException e){
+			logger.log(Level.FINE, "Could not cancel a statement past its budget", e);
+		}
+	}
+
+	/**
+	 * The setters called on the statement, replayed when it is created again on a fresh connection. {@code null}
+	 * unless reads are retried. The statement settings are keyed by setter, the parameters by index or name so that
+	 * setting them again on every execution does not grow the maps
+	 */
+	private final Map<String, Object[]> settings;
+	private final Map<Object, Object[]> parameters;
+
+	/**
+	 * Fingerprint of {@link #sql}, computed on first execution
+	 */
+	private String fingerprint;
+
+	/**
+	 * The proxy handed out to the application
+	 */
+	private Statement proxy;
+
+	private StatementHandler(final MyCPConnection connection, final Statement statement, final String sql){
+		this.connection = connection;
+		this.statement = statement;
+		this.sql = sql;
+		this.statistics = connection.getPoolManager().getQueryStatistics();
+		this.timer = connection.getPoolManager().getQueryTimer();
+		if(connection.getPoolManager().isRetryReads()){
+			settings = new LinkedHashMap<String, Object[]>();
+			parameters = new HashMap<Object, Object[]>();
+		}else{
+			settings = null;
+			parameters = null;
+		}
+	}
+
+	/**
+	 * The proxy class is taken from a throwaway instance, {@link Proxy#getProxyClass} is deprecated
+	 */
+	private static Constructor<?> proxyConstructor(final Class<? extends Statement> type){
+		final Object prototype = Proxy.newProxyInstance(StatementHandler.class.getClassLoader(), new Class<?>[]{type},
+				new InvocationHandler(){
+					@Override
+					public Object invoke(final Object proxy, final Method method, final Object[] args) {
+						throw new UnsupportedOperationException();
+					}
+				});
+		try {
+			return prototype.getClass().getConstructor(InvocationHandler.class);
+		} catch (NoSuchMethodException e) {
+			throw new Error(e);
+		}
+	}
+
+	private static Statement newProxy(final Constructor<?> constructor, final MyCPConnection connection, final Statement statement,
+			final String sql){
+		final StatementHandler handler = new StatementHandler(connection, statement, sql);
+		try {
+			handler.proxy = (Statement)constructor.newInstance(handler);
+		} catch (Exception e) {
+			throw new Error(e);
+		}
+		connection.register(handler);
+		if(sql != null)
+			connection.trackSessionSql(sql);
+		return handler.proxy;
+	}
+
+	static Statement wrap(final MyCPConnection connection, final Statement statement){
+		return newProxy(STATEMENT_PROXY, connection, statement, null);
+	}
+
+	static PreparedStatement wrap(final MyCPConnection connection, final PreparedStatement statement, final String sql){
+		return (PreparedStatement)newProxy(PREPARED_STATEMENT_PROXY, connection, statement, sql);
+	}
+
+	static CallableStatement wrap(final MyCPConnection connection, final CallableStatement statement, final String sql){
+		return (CallableStatement)newProxy(CALLABLE_STATEMENT_PROXY, connection, statement, sql);
+	}
+
+	/**
+	 * Closes the underlying statement without unregistering it, used by {@link MyCPConnection} when it closes all
+	 * the statements of a lease
+	 */
+	void closeStatement(){
+		try{
+			statement.close();
+		}catch(SQLException ignore){}
+	}
+
+	@Override
+	public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable {
+		final String name = method.getName();
+		//- The proxy is its own identity, the driver statement behind it may be shared or compare by content
+		if(method.getDeclaringClass() == Object.class){
+			if(name.equals("equals"))
+				return Boolean.valueOf(proxy == args[0]);
+			if(name.equals("hashCode"))
+				return Integer.valueOf(System.identityHashCode(proxy));
+		}
+		if(name.equals("close") && method.getParameterTypes().length == 0){
+			//- Unregistering the last statement can hand the connection back to the pool, the driver statement goes first
+			try{
+				statement.close();
+			}finally{
+				connection.unregister(this);
+			}
+			return null;
+		}
+		if(name.equals("getConnection") && method.getParameterTypes().length == 0)
+			return connection.getHandle();
+		if(args != null && args.length > 0 && args[0] instanceof String && (name.startsWith("execute") || name.equals("addBatch")))
+			connection.checkSql((String)args[0]);
+		if(name.startsWith("execute")){
+			if(settings != null)
+				return retryingExecute(method, args);
+			try{
+				return execute(method, args, timer != null ? connection.getPoolManager().getQueryTimeout() : 0);
+			}catch(SQLException e){
+				connection.getPoolManager().connectionFailed(connection, e);
+				throw e;
+			}
+		}
+		if(settings != null)
+			record(method, args);
+
+		try{
+			return method.invoke(statement, args);
+		}catch(InvocationTargetException e){
+			if(e.getCause() instanceof SQLException)
+				connection.getPoolManager().connectionFailed(connection, (SQLException)e.getCause());
+			throw e.getCause();
+		}
+	}
+
+	/**
+	 * Runs an {@code execute*} call within {@code budget} milliseconds, 0 for no budget
+	 */
+	private Object execute(final Method method, final Object[] args, final long budget) throws Throwable{
+		if(budget > 0)
+			return budgetedInvoke(method, args, budget);
+		if(statistics != null)
+			return timedInvoke(method, args);
+		try{
+			return method.invoke(statement, args);
+		}catch(InvocationTargetException e){
+			throw e.getCause();
+		}
+	}
+
+	private Object retryingExecute(final Method method, final Object[] args) throws Throwable{
+		final PoolManager poolManager = connection.getPoolManager();
+		final long budget = timer != null ? poolManager.getQueryTimeout() : 0;
+		final long start = System.nanoTime();
+		try{
+			return execute(method, args, budget);
+		}catch(SQLException e){
+			//- The siblings opened before a fatal error go first, so the retry does not land on one of them
+			poolManager.connectionFailed(connection, e);
+			if(!isRetriable(method, args, e))
+				throw e;
+			final long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+			final long remaining = (budget > 0 ? budget : TimeUnit.SECONDS.toMillis(poolManager.getConfiguration().getMaxWaitForConnection())) - elapsed;
+			if(remaining <= 0 || !poolManager.replaceUnderlying(connection, remaining))
+				throw e;
+			logger.log(Level.FINE, "Connection failed, running the statement again on a fresh connection", e);
+			recreate();
+			poolManager.statementRetried();
+			try{
+				return execute(method, args, budget > 0 ? Math.max(1, budget - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)) : 0);
+			}catch(SQLException retryFailure){
+				poolManager.connectionFailed(connection, retryFailure);
+				throw retryFailure;
+			}
+		}
+	}
+
+	/**
+	 * @return {@code true} if the execution failed because the connection died and running it again cannot do
+	 * anything twice
+	 */
+	private boolean isRetriable(final Method method, final Object[] args, final SQLException e){
+		if(!connection.getPoolManager().isFatal(e) || method.getName().endsWith("Batch"))
+			return false;
+		if(!connection.isAutoCommit())
+			return false;
+		try{
+			if(connection.getUnderlyingConnection().isReadOnly())
+				return true;
+		}catch(SQLException dead){}
+		final String executedSql = args != null && args.length > 0 && args[0] instanceof String ? (String)args[0] : sql;
+		return executedSql != null && (READ_SQL.matcher(executedSql).find() || IDEMPOTENT_HINT.matcher(executedSql).find());
+	}
+
+	/**
+	 * Remembers a setter call for {@link #recreate()}
+	 */
+	private void record(final Method method, final Object[] args){
+		final String name = method.getName();
+		if(name.equals("clearParameters")){
+			parameters.clear();
+		}else if(name.startsWith("set") && args != null){
+			if(args.length == 1)
+				settings.put(name, new Object[]{method, args});
+			else
+				parameters.put(args[0], new Object[]{method, args});
+		}
+	}
+
+	/**
+	 * Creates the driver statement again on the current underlying connection and replays the recorded setters
+	 */
+	private void recreate() throws Throwable{
+		final Statement dead = statement;
+		int type = ResultSet.TYPE_FORWARD_ONLY, concurrency = ResultSet.CONCUR_READ_ONLY;
+		try{
+			type = dead.getResultSetType();
+			concurrency = dead.getResultSetConcurrency();
+		}catch(SQLException ignore){}
+		try{
+			dead.close();
+		}catch(SQLException ignore){}
+
+		final Connection underlying = connection.getUnderlyingConnection();
+		final Statement fresh;
+		if(dead instanceof CallableStatement)
+			fresh = underlying.prepareCall(sql, type, concurrency);
+		else if(sql != null)
+			fresh = underlying.prepareStatement(sql, type, concurrency);
+		else
+			fresh = underlying.createStatement(type, concurrency);
+		try{
+			for(final Object[] call : settings.values())
+				((Method)call[0]).invoke(fresh, (Object[])call[1]);
+			for(final Object[] call : parameters.values())
+				((Method)call[0]).invoke(fresh, (Object[])call[1]);
+		}catch(InvocationTargetException e){
+			fresh.close();
+			throw e.getCause();
+		}
+		statement = fresh;
+	}
+
+	private Object budgetedInvoke(final Method method, final Object[] args, final long budget) throws Throwable{
+		if(queryTimeout == null)
+			queryTimeout = new QueryTimeout();
+		//- 0 means no execution
+		if(++executions == 0)
+			++executions;
+		executing = executions;
+		timer.schedule(queryTimeout, budget);
+		try{
+			if(statistics != null)
+				return timedInvoke(method, args);
+			return method.invoke(statement, args);
+		}catch(InvocationTargetException e){
+			throw e.getCause();
+		}finally{
+			executing = 0;
+			timer.cancel(queryTimeout);
+		}
+	}
+
+	private Object timedInvoke(final Method method, final Object[] args) throws Throwable{
+		//- Statement.execute*(String sql, ...) carries its own SQL, prepared statements run the SQL they were created with
+		final boolean ownSql = args == null || args.length == 0 || !(args[0] instanceof String);
+		final String executedSql = ownSql ? sql : (String)args[0];
+		if(ownSql && fingerprint == null && sql != null)
+			fingerprint = QueryStatistics.fingerprint(sql);
+
+		boolean failed = true;
+		final long start = System.nanoTime();
+		try{
+			final Object result = method.invoke(statement, args);
+			failed = false;
+			return result;
+		}catch(InvocationTargetException e){
+			throw e.getCause();
+		}finally{
+			statistics.record(executedSql, ownSql ? fingerprint : null, System.nanoTime() - start, failed);
+		}
+	}
+}
@@ -0,0 +1,111 @@
+package org.kakooge.mycp;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.Driver;
+import java.sql.DriverManager;
+import java.sql.DriverPropertyInfo;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A JDBC driver without database, for running a pool offline, e.g. by the {@link JournalReplayer}. Its url is
+ * {@code jdbc:mycp-stub:<connect ms>}: connecting takes that many milliseconds, after which the connections and their
+ * statements accept every call and return the default value of its return type
+ * <pre>
+ * mycp.driver=org.kakooge.mycp.StubDriver
+ * mycp.driver.url=jdbc:mycp-stub:20
+ * </pre>
+ * @author Michael Sekamanya
+ *
+ */
+public final class StubDriver implements Driver{
+
+	final static String URL_PREFIX = "jdbc:mycp-stub:";
+
+	static{
+		try{
+			DriverManager.registerDriver(new StubDriver());
+		}catch(SQLException e){
+			throw new Error(e);
+		}
+	}
+
+	private static final InvocationHandler HANDLER = new InvocationHandler() {
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			final String name = method.getName();
+			final Class<?> returnType = method.getReturnType();
+			if(name.equals("createStatement"))
+				return newProxy(Statement.class);
+			if(name.equals("prepareStatement") || name.equals("prepareCall"))
+				return newProxy(returnType);
+			if(name.equals("isValid") || name.equals("getAutoCommit"))
+				return Boolean.TRUE;
+			if(name.equals("toString"))
+				return "StubDriver connection";
+			if(name.equals("hashCode"))
+				return Integer.valueOf(System.identityHashCode(proxy));
+			if(name.equals("equals"))
+				return Boolean.valueOf(proxy == args[0]);
+			if(returnType == boolean.class)
+				return Boolean.FALSE;
+			if(returnType == int.class)
+				return Integer.valueOf(0);
+			if(returnType == long.class)
+				return Long.valueOf(0);
+			return null;
+		}
+	};
+
+	private static Object newProxy(final Class<?> type){
+		return Proxy.newProxyInstance(StubDriver.class.getClassLoader(), new Class<?>[]{type}, HANDLER);
+	}
+
+	@Override
+	public Connection connect(String url, Properties info) throws SQLException {
+		if(!acceptsURL(url))
+			return null;
+		final String latency = url.substring(URL_PREFIX.length()).trim();
+		if(latency.length() > 0){
+			try{
+				TimeUnit.MILLISECONDS.sleep(Long.parseLong(latency));
+			}catch(NumberFormatException e){
+				throw new SQLException(String.format("Invalid connect time in '%s'", url), "08001", e);
+			}catch(InterruptedException e){
+				Thread.currentThread().interrupt();
+				throw new SQLException("Interrupted while connecting", "08001", e);
+			}
+		}
+		return (Connection)newProxy(Connection.class);
+	}
+
+	@Override
+	public boolean acceptsURL(String url) {
+		return url != null && url.startsWith(URL_PREFIX);
+	}
+
+	@Override
+	public DriverPropertyInfo[] getPropertyInfo(String url, Properties info) {
+		return new DriverPropertyInfo[0];
+	}
+
+	@Override
+	public int getMajorVersion() {
+		return 1;
+	}
+
+	@Override
+	public int getMinorVersion() {
+		return 0;
+	}
+
+	@Override
+	public boolean jdbcCompliant() {
+		return false;
+	}
+}
@@ -0,0 +1,282 @@
+package org.kakooge.mycp;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Hashed timing wheel shared by all the leases and statements of the pools, so that timeouts cost neither a thread nor
+ * a timer per statement, per connection or per pool. Time is cut into ticks of {@link #tickMillis}; a timeout due at
+ * tick {@code t} goes into bucket {@code t mod wheel size}. One thread walks the buckets once per tick and expires the
+ * timeouts due.
+ * <p>
+ * The pools with the same {@link Configuration#getTimerTick()} share one wheel, taken with {@link #acquire(long)} and
+ * given back with {@link #release(TimerWheel)}. Its thread runs while at least one of them is not destroyed
+ * </p>
+ * <p>
+ * Timeouts are intrusive: a {@link Task} is its own list node and is meant to be reused, so scheduling and cancelling
+ * are O(1) and do not allocate. Each bucket has its own lock so that threads scheduling timeouts on different buckets
+ * do not contend. Expiry runs on the wheel thread, {@link Task#expire()} must not block for long: work waiting on the
+ * network is handed to {@link #execute(Runnable)}
+ * </p>
+ * @author Michael Sekamanya
+ *
+ */
+class TimerWheel{
+
+	/**
+	 * A timeout. Can be scheduled again once it has expired or been cancelled
+	 */
+	static abstract class Task{
+		private long deadlineTick;
+		private Task next;
+		private Task previous;
+		private volatile Bucket bucket;
+
+		/**
+		 * Called on the wheel thread when the timeout is due
+		 */
+		abstract void expire();
+
+		boolean isScheduled(){
+			return bucket != null;
+		}
+	}
+
+	private static final class Bucket{
+		private Task head;
+
+		private void add(final Task task){
+			task.previous = null;
+			task.next = head;
+			if(head != null)
+				head.previous = task;
+			head = task;
+			task.bucket = this;
+		}
+
+		private void remove(final Task task){
+			if(task.previous != null)
+				task.previous.next = task.next;
+			else
+				head = task.next;
+			if(task.next != null)
+				task.next.previous = task.previous;
+			task.next = task.previous = null;
+			task.bucket = null;
+		}
+	}
+
+	final private static Logger logger = Logger.getLogger(TimerWheel.class.getName());
+
+	final private static int WHEEL_SIZE = 512;
+
+	/**
+	 * Number of threads running the work handed off the wheel thread, stopped after a minute without work
+	 */
+	final private static int EXECUTOR_THREADS = 4;
+
+	/**
+	 * The shared wheels by tick. Guarded by the class
+	 */
+	final private static Map<Long, TimerWheel> wheels = new HashMap<Long, TimerWheel>();
+
+	private final String name;
+	private final long tickMillis;
+	private final Bucket[] buckets;
+	private final int mask;
+	private final long startTime = System.nanoTime();
+
+	/**
+	 * The last tick whose bucket has been processed. Only written by the wheel thread while holding that bucket's lock
+	 */
+	private volatile long processedTick = 0;
+
+	private volatile boolean stopped = false;
+	private Thread thread;
+
+	/**
+	 * Runs the work handed off the wheel thread, see {@link #execute(Runnable)}
+	 */
+	private ThreadPoolExecutor executor;
+
+	/**
+	 * Number of pools using the wheel. Guarded by the class
+	 */
+	private int users = 0;
+
+	/**
+	 * @param tickMillis the resolution of the timeouts
+	 * @param wheelSize the number of buckets, rounded up to a power of two. Timeouts further away than
+	 * {@code tickMillis * wheelSize} go round the wheel more than once
+	 */
+	TimerWheel(final String name, final long tickMillis, final int wheelSize){
+		this.name = name;
+		this.tickMillis = Math.max(1, tickMillis);
+		final int size = Integer.highestOneBit(Math.max(2, wheelSize - 1)) << 1;
+		buckets = new Bucket[size];
+		for(int idx = 0; idx < size; ++idx)
+			buckets[idx] = new Bucket();
+		mask = size - 1;
+	}
+
+	/**
+	 * @return the wheel shared by the pools ticking every {@code tickMillis}, started if need be
+	 */
+	static synchronized TimerWheel acquire(final long tickMillis){
+		final Long key = Long.valueOf(Math.max(1, tickMillis));
+		TimerWheel wheel = wheels.get(key);
+		if(wheel == null){
+			wheel = new TimerWheel(key + "ms", key.longValue(), WHEEL_SIZE);
+			wheel.start();
+			wheels.put(key, wheel);
+		}
+		++wheel.users;
+		return wheel;
+	}
+
+	/**
+	 * Gives back a wheel taken with {@link #acquire(long)}, stopping it once no pool uses it
+	 */
+	static synchronized void release(final TimerWheel wheel){
+		if(--wheel.users > 0)
+			return;
+		wheels.remove(Long.valueOf(wheel.tickMillis));
+		wheel.stop();
+	}
+
+	private long currentTick(){
+		return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime) / tickMillis;
+	}
+
+	/**
+	 * Schedules {@code task} to expire in {@code delayMillis}, rounded up to the next tick. A task already scheduled is
+	 * rescheduled
+	 */
+	void schedule(final Task task, final long delayMillis){
+		cancel(task);
+		final long deadlineTick = currentTick() + (Math.max(0, delayMillis) + tickMillis - 1) / tickMillis;
+		for(;;){
+			//- A tick already processed would leave the task waiting for a whole turn of the wheel
+			final long tick = Math.max(deadlineTick, processedTick + 1);
+			final Bucket bucket = buckets[(int)(tick & mask)];
+			synchronized(bucket){
+				if(tick > processedTick){
+					task.deadlineTick = tick;
+					bucket.add(task);
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return {@code true} if the task was scheduled and will not expire
+	 */
+	boolean cancel(final Task task){
+		for(;;){
+			final Bucket bucket = task.bucket;
+			if(bucket == null)
+				return false;
+			synchronized(bucket){
+				//- The wheel thread may have expired the task meanwhile
+				if(task.bucket == bucket){
+					bucket.remove(task);
+					return true;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Expires the tasks of {@code tick} that are due. They are unlinked under the bucket lock and run outside it so that
+	 * an expiring task can schedule itself again
+	 */
+	private void process(final long tick){
+		Task expired = null;
+		final Bucket bucket = buckets[(int)(tick & mask)];
+		synchronized(bucket){
+			processedTick = tick;
+			Task task = bucket.head;
+			while(task != null){
+				final Task next = task.next;
+				if(task.deadlineTick <= tick){
+					bucket.remove(task);
+					task.next = expired;
+					expired = task;
+				}
+				task = next;
+			}
+		}
+		while(expired != null){
+			final Task task = expired;
+			expired = task.next;
+			task.next = null;
+			try{
+				task.expire();
+			}catch(RuntimeException e){
+				logger.log(Level.WARNING, "Timeout task failed", e);
+			}
+		}
+	}
+
+	/**
+	 * Runs work due on the wheel off its thread, e.g. cancelling a statement, which may open a connection to the
+	 * server. The work is dropped once the wheel is stopped
+	 */
+	void execute(final Runnable task){
+		try{
+			executor.execute(task);
+		}catch(RejectedExecutionException e){
+			logger.log(Level.FINE, "The timer is stopped, dropping a timeout", e);
+		}
+	}
+
+	void start(){
+		executor = new ThreadPoolExecutor(EXECUTOR_THREADS, EXECUTOR_THREADS, 60, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				final Thread thread = new Thread(runnable, "mycp-timeout-" + name);
+				//- A cancel stuck on the network must not keep the JVM alive
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		executor.allowCoreThreadTimeOut(true);
+		thread = new Thread("mycp-timer-" + name){
+			@Override
+			public void run() {
+				long tick = processedTick;
+				while(!stopped){
+					final long now = currentTick();
+					while(tick < now && !stopped)
+						process(++tick);
+					final long sleep = (tick + 1) * tickMillis - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime);
+					if(sleep > 0)
+						LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(sleep));
+				}
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Stops the wheel thread, pending timeouts never expire
+	 */
+	void stop(){
+		stopped = true;
+		if(thread != null)
+			LockSupport.unpark(thread);
+		if(executor != null)
+			executor.shutdown();
+	}
+}
@@ -0,0 +1,60 @@
+package org.kakooge.mycp;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits the rate at which a {@link Pool} opens resources, so that the nodes of an application reconnecting after a
+ * database restart do not all rebuild their pools at once and overload the server's authentication.
+ * <p>
+ * Up to {@code burst} permits are handed out at once, after which permits come at {@code rate} per second. The
+ * bucket is kept as the time at which it will have refilled for the last permit handed out (the "theoretical arrival
+ * time" of GCRA), so taking a permit is a single computation under the lock. Each caller is given its own slot and
+ * sleeps until it, callers are therefore served in the order they asked
+ * </p>
+ * @author Michael Sekamanya
+ *
+ */
+class TokenBucket{
+
+	private final long burst;
+	private final long interval;
+
+	/**
+	 * {@link System#nanoTime()} at which the permits handed out so far will have been paid back. Guarded by {@code this}
+	 */
+	private long paidBack;
+
+	/**
+	 * @param rate the sustained number of permits per second
+	 * @param burst the number of permits that can be taken at once after a quiet period
+	 */
+	TokenBucket(final long rate, final long burst){
+		this.burst = Math.max(1, burst);
+		this.interval = TimeUnit.SECONDS.toNanos(1) / Math.max(1, rate);
+		paidBack = System.nanoTime();
+	}
+
+	/**
+	 * Reserves the next permit
+	 * @return the nanoseconds to wait before using it, 0 if it can be used now
+	 */
+	synchronized long reserve(){
+		final long now = System.nanoTime();
+		if(paidBack - now < 0)
+			paidBack = now;
+		paidBack += interval;
+		return Math.max(0, paidBack - burst * interval - now);
+	}
+
+	/**
+	 * Takes a permit, sleeping until its slot
+	 * @return the nanoseconds waited
+	 * @throws InterruptedException if interrupted while waiting, the permit is lost
+	 */
+	long acquire() throws InterruptedException{
+		final long wait = reserve();
+		if(wait > 0)
+			TimeUnit.NANOSECONDS.sleep(wait);
+		return wait;
+	}
+}